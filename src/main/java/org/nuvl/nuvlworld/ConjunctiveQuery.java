@@ -0,0 +1,658 @@
+/*
+Copyright (C) 2017 Jeff Thompson
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package org.nuvl.nuvlworld;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A ConjunctiveQuery is a conjunction of sentence patterns and numeric
+ * filters which is evaluated over the indexes of a NuvlWorldStore. For
+ * example:
+ * (AND (subAttrOf $Event (TimeIntervalFn $Start $End))
+ *      (lessThan $Start 1500000000000) (greaterThanOrEqual $End 1490000000000))
+ * A variable starts with "$". A pattern has a constant predicate and may have
+ * nested expressions like (TimeIntervalFn $Start $End) which match the
+ * structure of the sentence's argument. A filter is (lessThan a b),
+ * (lessThanOrEqual a b), (greaterThan a b), (greaterThanOrEqual a b) or
+ * (equal a b) where a and b are integers or variables bound by the patterns.
+ * Evaluating the query picks a join order from the index sizes and returns an
+ * iterator which finds each result only when asked.
+ * @author Jeff Thompson, jeff@thefirst.org
+ */
+public class ConjunctiveQuery {
+  /**
+   * Parse the query.
+   * @param query The query as (AND pattern-or-filter ...) or a single pattern.
+   * @throws Error if the query can't be parsed.
+   */
+  public ConjunctiveQuery(String query)
+  {
+    int[] position = new int[] { 0 };
+    Object expression = parse(query, position);
+    skipSpaces(query, position);
+    if (position[0] != query.length())
+      throw new Error("Unexpected text after the query: " + query);
+    if (!(expression instanceof List))
+      throw new Error("The query must be a list: " + query);
+
+    List<?> list = (List<?>)expression;
+    List<?> conjuncts;
+    if (!list.isEmpty() && "AND".equals(list.get(0)))
+      conjuncts = list.subList(1, list.size());
+    else
+      conjuncts = Collections.singletonList(list);
+
+    for (Object conjunct : conjuncts) {
+      if (!(conjunct instanceof List) || ((List<?>)conjunct).size() < 2 ||
+          !(((List<?>)conjunct).get(0) instanceof String))
+        throw new Error("Unrecognized query conjunct: " + toText(conjunct));
+      List<?> terms = (List<?>)conjunct;
+      String predicate = (String)terms.get(0);
+      if (isVariable(predicate))
+        throw new Error("The predicate must not be a variable: " + toText(conjunct));
+
+      if (filterPredicates_.contains(predicate))
+        filters_.add(new Filter(terms));
+      else
+        patterns_.add(new Pattern(terms));
+    }
+
+    if (patterns_.isEmpty())
+      throw new Error("The query has no sentence patterns: " + query);
+    for (Filter filter : filters_) {
+      for (String variable : filter.variables) {
+        if (!isBoundByPatterns(variable))
+          throw new Error("The filter variable " + variable +
+                          " is not in a pattern: " + query);
+      }
+    }
+  }
+
+  /**
+   * Get the variables in the order they first appear in the patterns.
+   * @return The list of variable names including the "$".
+   */
+  public List<String>
+  getVariables()
+  {
+    List<String> result = new ArrayList<>();
+    for (Pattern pattern : patterns_) {
+      for (String variable : pattern.variables) {
+        if (!result.contains(variable))
+          result.add(variable);
+      }
+    }
+
+    return result;
+  }
+
+  /**
+   * Evaluate the query over the store. Nothing is computed until hasNext().
+   * Each call to hasNext() holds the store's read lock only while it searches
+   * for the next result, so writers are not blocked between calls and a
+   * query with many results is never materialized. The candidate triples of
+   * each level of the join are copied when the level is entered, and triples
+   * removed since then are skipped, so the results are weakly consistent: a
+   * sentence added during the iteration may or may not be found.
+   * @param store The NuvlWorldStore.
+   * @return An iterator of the results, where each result is a new map from
+   * variable name (including the "$") to its value.
+   */
+  public Iterator<Map<String, String>>
+  evaluate(NuvlWorldStore store) { return new BindingIterator(store); }
+
+  /**
+   * Get the order in which evaluate would join the patterns, based on the
+   * current sizes of the store's indexes.
+   * @param store The NuvlWorldStore.
+   * @return The patterns as text in join order.
+   */
+  public List<String>
+  getJoinOrder(NuvlWorldStore store)
+  {
+    List<Pattern> order;
+    store.lockForRead();
+    try {
+      order = planJoinOrder(store);
+    }
+    finally {
+      store.unlockForRead();
+    }
+
+    List<String> result = new ArrayList<>();
+    for (Pattern pattern : order)
+      result.add(toText(pattern.terms));
+    return result;
+  }
+
+  /**
+   * Order the patterns greedily, each time taking the pattern with the
+   * smallest estimated number of matches given the variables bound so far. A
+   * lookup by a constant uses the exact size of the index list. A lookup by a
+   * bound variable is estimated as one match. Otherwise the estimate is the
+   * number of sentences with the predicate.
+   */
+  private List<Pattern>
+  planJoinOrder(NuvlWorldStore store)
+  {
+    List<Pattern> remaining = new ArrayList<>(patterns_);
+    List<Pattern> result = new ArrayList<>();
+    Set<String> bound = new HashSet<>();
+    while (!remaining.isEmpty()) {
+      Pattern best = null;
+      long bestEstimate = Long.MAX_VALUE;
+      for (Pattern pattern : remaining) {
+        long estimate = pattern.estimateMatches(store, bound);
+        if (estimate < bestEstimate) {
+          best = pattern;
+          bestEstimate = estimate;
+        }
+      }
+
+      remaining.remove(best);
+      result.add(best);
+      bound.addAll(best.variables);
+    }
+
+    return result;
+  }
+
+  private boolean
+  isBoundByPatterns(String variable)
+  {
+    for (Pattern pattern : patterns_) {
+      if (pattern.variables.contains(variable))
+        return true;
+    }
+    return false;
+  }
+
+  /**
+   * A Pattern is one sentence pattern of the query.
+   */
+  private static class Pattern {
+    public Pattern(List<?> terms)
+    {
+      this.terms = terms;
+      predicate = (String)terms.get(0);
+      addVariables(terms, variables);
+    }
+
+    /**
+     * Estimate the number of matches for each binding of the bound variables.
+     */
+    public long
+    estimateMatches(NuvlWorldStore store, Set<String> bound)
+    {
+      long result = store.getTriplesByPredicate(predicate).size();
+      for (int argPosition = 2; argPosition <= terms.size(); ++argPosition) {
+        if (argPosition > 2 &&
+            store.getSecondaryIndex(predicate, argPosition) == null)
+          continue;
+        Object term = terms.get(argPosition - 1);
+        if (!(term instanceof String))
+          continue;
+
+        String atom = (String)term;
+        if (!isVariable(atom))
+          result = Math.min
+            (result, store.getTriplesByArgument(predicate, argPosition, atom).size());
+        else if (bound.contains(atom))
+          result = Math.min(result, 1);
+      }
+
+      return result;
+    }
+
+    /**
+     * Get the triples which may match, using an index on an argument whose
+     * value is known. The caller should hold the read lock.
+     * @param store The NuvlWorldStore.
+     * @param bindings The current variable bindings.
+     * @return The list of triple numbers, which may be an index list and
+     * should not be modified.
+     */
+    public IntList
+    getCandidates(NuvlWorldStore store, Map<String, String> bindings)
+    {
+      for (int argPosition = 2; argPosition <= terms.size(); ++argPosition) {
+        if (argPosition > 2 &&
+            store.getSecondaryIndex(predicate, argPosition) == null)
+          continue;
+        Object term = terms.get(argPosition - 1);
+        if (!(term instanceof String))
+          continue;
+
+        String value = (String)term;
+        if (isVariable(value))
+          value = bindings.get(value);
+        if (value != null)
+          return store.getTriplesByArgument(predicate, argPosition, value);
+      }
+
+      return store.getTriplesByPredicate(predicate);
+    }
+
+    /**
+     * Match the triple's arguments to this pattern and add new variable
+     * bindings.
+     * @param store The NuvlWorldStore.
+     * @param triple The triple number, which has this pattern's predicate.
+     * @param bindings The variable bindings, which this updates.
+     * @param added This adds the names of the newly bound variables.
+     * @return True if matched. If false, the caller should remove the added
+     * bindings.
+     */
+    public boolean
+    match
+      (NuvlWorldStore store, int triple, Map<String, String> bindings,
+       List<String> added)
+    {
+      if (!unify(terms.get(1), store.getArgument(triple, 2), bindings, added))
+        return false;
+
+      String rest = store.getRestTerm(triple);
+      List<Object> restArguments;
+      if (rest.charAt(0) == '"')
+        // A string is one argument which may have spaces or parentheses.
+        restArguments = Collections.singletonList(rest);
+      else
+        restArguments = parseList(rest);
+      if (restArguments.size() != terms.size() - 2)
+        return false;
+
+      for (int i = 0; i < restArguments.size(); ++i) {
+        if (!unify(terms.get(i + 2), restArguments.get(i), bindings, added))
+          return false;
+      }
+      return true;
+    }
+
+    public final List<?> terms;
+    public final String predicate;
+    /** The variables in the order they appear. */
+    public final Set<String> variables = new LinkedHashSet<>();
+  }
+
+  /**
+   * A Filter is a numeric comparison of the query.
+   */
+  private static class Filter {
+    public Filter(List<?> terms)
+    {
+      if (terms.size() != 3 || !(terms.get(1) instanceof String) ||
+          !(terms.get(2) instanceof String))
+        throw new Error("A filter must have two atoms: " + toText(terms));
+      operator = (String)terms.get(0);
+      arg1 = (String)terms.get(1);
+      arg2 = (String)terms.get(2);
+      for (String arg : new String[] { arg1, arg2 }) {
+        if (isVariable(arg))
+          variables.add(arg);
+        else if (parseLong(arg) == null)
+          throw new Error("A filter argument must be an integer: " + toText(terms));
+      }
+    }
+
+    /**
+     * Check the filter with the bindings of all its variables.
+     * @return True if it passes, false if not or if a value is not an integer.
+     */
+    public boolean
+    test(Map<String, String> bindings)
+    {
+      Long value1 = parseLong(isVariable(arg1) ? bindings.get(arg1) : arg1);
+      Long value2 = parseLong(isVariable(arg2) ? bindings.get(arg2) : arg2);
+      if (value1 == null || value2 == null)
+        return false;
+
+      int compare = Long.compare(value1, value2);
+      switch (operator) {
+        case "lessThan": return compare < 0;
+        case "lessThanOrEqual": return compare <= 0;
+        case "greaterThan": return compare > 0;
+        case "greaterThanOrEqual": return compare >= 0;
+        default: return compare == 0;
+      }
+    }
+
+    public final String operator;
+    public final String arg1;
+    public final String arg2;
+    public final Set<String> variables = new HashSet<>();
+  }
+
+  /**
+   * A BindingIterator does a depth-first nested loop join of the patterns in
+   * the planned order, using the indexes to get the candidates at each level.
+   * Each filter is checked at the first level where all its variables are
+   * bound. The join order is planned by the first call to hasNext().
+   */
+  private class BindingIterator implements Iterator<Map<String, String>> {
+    public BindingIterator(NuvlWorldStore store)
+    {
+      store_ = store;
+      int n = patterns_.size();
+      candidates_ = new IntList[n];
+      positions_ = new int[n];
+    }
+
+    @Override
+    public boolean
+    hasNext()
+    {
+      if (next_ == null && level_ >= 0) {
+        store_.lockForRead();
+        try {
+          if (order_ == null)
+            start();
+          next_ = findNext();
+        }
+        finally {
+          store_.unlockForRead();
+        }
+      }
+      return next_ != null;
+    }
+
+    @Override
+    public Map<String, String>
+    next()
+    {
+      if (!hasNext())
+        throw new NoSuchElementException();
+      Map<String, String> result = next_;
+      next_ = null;
+      return result;
+    }
+
+    /**
+     * Plan the join order, assign the filters to levels and get the
+     * candidates of the first level. The caller should hold the read lock.
+     */
+    private void
+    start()
+    {
+      order_ = planJoinOrder(store_);
+      int n = order_.size();
+      Set<String> bound = new HashSet<>();
+      Set<Filter> remainingFilters = new HashSet<>(filters_);
+      for (int level = 0; level < n; ++level) {
+        added_.add(new ArrayList<>());
+        bound.addAll(order_.get(level).variables);
+        List<Filter> filters = new ArrayList<>();
+        for (Iterator<Filter> i = remainingFilters.iterator(); i.hasNext(); ) {
+          Filter filter = i.next();
+          if (bound.containsAll(filter.variables)) {
+            filters.add(filter);
+            i.remove();
+          }
+        }
+        filtersAtLevel_.add(filters);
+      }
+
+      candidates_[0] = NuvlWorldStore.copy
+        (order_.get(0).getCandidates(store_, bindings_));
+    }
+
+    /**
+     * Continue the search from the current state. The caller should hold the
+     * read lock.
+     * @return A copy of the bindings for the next result, or null if there
+     * are no more results.
+     */
+    private Map<String, String>
+    findNext()
+    {
+      int lastLevel = order_.size() - 1;
+      while (level_ >= 0) {
+        // Remove the bindings of the previous candidate at this level.
+        List<String> added = added_.get(level_);
+        for (String variable : added)
+          bindings_.remove(variable);
+        added.clear();
+
+        if (positions_[level_] >= candidates_[level_].size()) {
+          --level_;
+          continue;
+        }
+        int triple = candidates_[level_].get(positions_[level_]++);
+        if (store_.getTriples().isRemoved(triple))
+          // Removed since the candidates were copied.
+          continue;
+        if (!order_.get(level_).match(store_, triple, bindings_, added) ||
+            !testFilters(filtersAtLevel_.get(level_)))
+          continue;
+
+        if (level_ == lastLevel)
+          return new HashMap<>(bindings_);
+
+        ++level_;
+        candidates_[level_] = NuvlWorldStore.copy
+          (order_.get(level_).getCandidates(store_, bindings_));
+        positions_[level_] = 0;
+      }
+
+      return null;
+    }
+
+    private boolean
+    testFilters(List<Filter> filters)
+    {
+      for (Filter filter : filters) {
+        if (!filter.test(bindings_))
+          return false;
+      }
+      return true;
+    }
+
+    private final NuvlWorldStore store_;
+    /** The patterns in join order, or null until start(). */
+    private List<Pattern> order_ = null;
+    private final IntList[] candidates_;
+    private final int[] positions_;
+    /** For each level, the variables bound by the current candidate. */
+    private final List<List<String>> added_ = new ArrayList<>();
+    private final List<List<Filter>> filtersAtLevel_ = new ArrayList<>();
+    private final Map<String, String> bindings_ = new HashMap<>();
+    private int level_ = 0;
+    private Map<String, String> next_ = null;
+  }
+
+  /**
+   * Unify the pattern term with the argument value.
+   * @param term A String atom or variable, or a List for a nested expression.
+   * @param value The argument as a String atom or a List.
+   */
+  private static boolean
+  unify
+    (Object term, Object value, Map<String, String> bindings, List<String> added)
+  {
+    if (term instanceof String) {
+      String atom = (String)term;
+      if (isVariable(atom)) {
+        String valueText = toText(value);
+        String boundValue = bindings.get(atom);
+        if (boundValue != null)
+          return boundValue.equals(valueText);
+        bindings.put(atom, valueText);
+        added.add(atom);
+        return true;
+      }
+
+      return atom.equals(value);
+    }
+
+    if (value instanceof String) {
+      String valueText = (String)value;
+      if (valueText.isEmpty() || valueText.charAt(0) != '(')
+        return false;
+      value = parse(valueText, new int[] { 0 });
+    }
+    List<?> terms = (List<?>)term;
+    List<?> values = (List<?>)value;
+    if (terms.size() != values.size())
+      return false;
+    for (int i = 0; i < terms.size(); ++i) {
+      if (!unify(terms.get(i), values.get(i), bindings, added))
+        return false;
+    }
+    return true;
+  }
+
+  private static boolean
+  isVariable(String atom) { return atom.startsWith("$"); }
+
+  private static void
+  addVariables(Object term, Set<String> variables)
+  {
+    if (term instanceof String) {
+      if (isVariable((String)term))
+        variables.add((String)term);
+    }
+    else {
+      for (Object subterm : (List<?>)term)
+        addVariables(subterm, variables);
+    }
+  }
+
+  /**
+   * Parse the space-separated items of text, where nested expressions in
+   * parentheses are one item (as Lists).
+   */
+  private static List<Object>
+  parseList(String text)
+  {
+    List<Object> result = new ArrayList<>();
+    int[] position = new int[] { 0 };
+    while (true) {
+      skipSpaces(text, position);
+      if (position[0] >= text.length())
+        return result;
+      result.add(parse(text, position));
+    }
+  }
+
+  /**
+   * Parse one atom, quoted string or parenthesized list starting at
+   * position[0], and update position[0] to the end.
+   * @return A String for an atom or quoted string, or a List.
+   */
+  private static Object
+  parse(String text, int[] position)
+  {
+    skipSpaces(text, position);
+    int i = position[0];
+    if (i >= text.length())
+      throw new Error("Unexpected end of query: " + text);
+
+    char c = text.charAt(i);
+    if (c == '(') {
+      List<Object> result = new ArrayList<>();
+      position[0] = i + 1;
+      while (true) {
+        skipSpaces(text, position);
+        if (position[0] >= text.length())
+          throw new Error("Missing close parenthesis: " + text);
+        if (text.charAt(position[0]) == ')') {
+          ++position[0];
+          return result;
+        }
+        result.add(parse(text, position));
+      }
+    }
+    else if (c == ')')
+      throw new Error("Unexpected close parenthesis: " + text);
+    else if (c == '"') {
+      int end = i + 1;
+      while (end < text.length() && text.charAt(end) != '"') {
+        if (text.charAt(end) == '\\')
+          ++end;
+        ++end;
+      }
+      if (end >= text.length())
+        throw new Error("Missing close quote: " + text);
+      position[0] = end + 1;
+      return text.substring(i, end + 1);
+    }
+    else {
+      int end = i;
+      while (end < text.length() && text.charAt(end) != ' ' &&
+             text.charAt(end) != '(' && text.charAt(end) != ')')
+        ++end;
+      position[0] = end;
+      return text.substring(i, end);
+    }
+  }
+
+  private static void
+  skipSpaces(String text, int[] position)
+  {
+    while (position[0] < text.length() &&
+           Character.isWhitespace(text.charAt(position[0])))
+      ++position[0];
+  }
+
+  /**
+   * Get the text of a parsed atom or list, with single spaces like the
+   * sentences in the store.
+   */
+  private static String
+  toText(Object term)
+  {
+    if (term instanceof String)
+      return (String)term;
+
+    StringBuilder result = new StringBuilder("(");
+    List<?> terms = (List<?>)term;
+    for (int i = 0; i < terms.size(); ++i) {
+      if (i > 0)
+        result.append(' ');
+      result.append(toText(terms.get(i)));
+    }
+    return result.append(')').toString();
+  }
+
+  private static Long
+  parseLong(String text)
+  {
+    if (text == null)
+      return null;
+    try {
+      return Long.parseLong(text);
+    } catch (NumberFormatException ex) {
+      return null;
+    }
+  }
+
+  private static final Set<String> filterPredicates_ = new HashSet<>
+    (Arrays.asList
+     ("lessThan", "lessThanOrEqual", "greaterThan", "greaterThanOrEqual",
+      "equal"));
+  private final List<Pattern> patterns_ = new ArrayList<>();
+  private final List<Filter> filters_ = new ArrayList<>();
+}
@@ -0,0 +1,311 @@
+/*
+Copyright (C) 2017 Jeff Thompson
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package org.nuvl.nuvlworld;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * A DescriptionStore maps a subject term to its description string, like a
+ * Map&lt;String, String&gt;, but keeps everything off the Java heap. The
+ * descriptions are packed as UTF-8 in direct ByteBuffer segments, and the
+ * index is an open-addressing hash table in a direct buffer keyed by the
+ * subject's term ID in the NuvlWorldStore's TermDictionary.
+ * Writes are serialized by a StampedLock. A read never takes the lock. It
+ * reads the table with an optimistic stamp and tries again if a write
+ * happened at the same time, so that the GUI can render descriptions while
+ * they are loaded on another thread without waiting.
+ * @author Jeff Thompson, jeff@thefirst.org
+ */
+public class DescriptionStore {
+  /**
+   * Create an empty DescriptionStore.
+   * @param store The NuvlWorldStore whose TermDictionary has the subjects.
+   */
+  DescriptionStore(NuvlWorldStore store)
+  {
+    store_ = store;
+    slots_ = allocateSlots(INITIAL_CAPACITY);
+    capacity_ = INITIAL_CAPACITY;
+  }
+
+  /**
+   * Get the description of the subject.
+   * @param subject The subject term.
+   * @param defaultValue The value to return if there is no description.
+   * @return The description, or defaultValue if none.
+   */
+  public String
+  getOrDefault(String subject, String defaultValue)
+  {
+    int termId = store_.getTerms().getId(subject);
+    String description = termId >= 0 ? get(termId) : null;
+    LabelIndex labelIndex = labelIndex_;
+    if (description == null && labelIndex != null)
+      description = labelIndex.get(subject);
+    return description != null ? description : defaultValue;
+  }
+
+  /**
+   * Get the description of the subject.
+   * @param subject The subject term.
+   * @return The description, or null if none.
+   */
+  public String get(String subject) { return getOrDefault(subject, null); }
+
+  /**
+   * Get the description of the subject.
+   * @param termId The term ID of the subject.
+   * @return The description, or null if none.
+   */
+  public String
+  get(int termId)
+  {
+    byte[] bytes = getUtf8(termId);
+    return bytes != null ? new String(bytes, StandardCharsets.UTF_8) : null;
+  }
+
+  public boolean
+  containsKey(String subject)
+  {
+    int termId = store_.getTerms().getId(subject);
+    return termId >= 0 && getUtf8(termId) != null;
+  }
+
+  /**
+   * Set the description of the subject, replacing any existing description.
+   * @param subject The subject term. This is added to the TermDictionary if
+   * needed.
+   * @param description The description.
+   */
+  public void
+  put(String subject, String description)
+  {
+    byte[] bytes = description.getBytes(StandardCharsets.UTF_8);
+    // Adding to the TermDictionary is a write to the NuvlWorldStore.
+    store_.lockForWrite();
+    try {
+      putUtf8(store_.getTerms().add(subject), bytes, 0, bytes.length);
+    }
+    finally {
+      store_.unlockForWrite();
+    }
+  }
+
+  /**
+   * Set the description of the subject from UTF-8 bytes, replacing any
+   * existing description. (The space of a replaced description is not
+   * reused.)
+   * @param termId The term ID of the subject.
+   * @param bytes The array with the UTF-8 encoded description.
+   * @param offset The offset in bytes of the description.
+   * @param length The number of bytes.
+   */
+  public void
+  putUtf8(int termId, byte[] bytes, int offset, int length)
+  {
+    long stamp = lock_.writeLock();
+    try {
+      // Append to the last segment, or start a new one.
+      ByteBuffer segment = segments_.length == 0 ?
+        null : segments_[segments_.length - 1];
+      if (segment == null || segment.remaining() < length) {
+        segment = ByteBuffer.allocateDirect(Math.max(SEGMENT_SIZE, length));
+        segments_ = Arrays.copyOf(segments_, segments_.length + 1);
+        segments_[segments_.length - 1] = segment;
+      }
+      int position = segment.position();
+      segment.put(bytes, offset, length);
+
+      int slot = findSlot(slots_, termId);
+      if (slots_.get(slot) == 0) {
+        ++size_;
+        slots_.put(slot, termId + 1);
+      }
+      slots_.put(slot + 1, segments_.length - 1);
+      slots_.put(slot + 2, position);
+      slots_.put(slot + 3, length);
+
+      if (size_ * 2 > capacity_)
+        rehash(capacity_ * 2);
+    }
+    finally {
+      lock_.unlockWrite(stamp);
+    }
+  }
+
+  public int size() { return size_; }
+
+  /**
+   * Set the LabelIndex which getOrDefault uses to look up the description of a
+   * Wikidata item which is not in this store. This is used instead of loading
+   * all the item descriptions. The descriptions from the LabelIndex are not
+   * counted in size() or returned by getTermIds().
+   * @param labelIndex The LabelIndex, or null to not use one.
+   */
+  public void setLabelIndex(LabelIndex labelIndex) { labelIndex_ = labelIndex; }
+
+  /**
+   * Get the term IDs of all subjects which have a description.
+   * @return A new IntList of term IDs.
+   */
+  public IntList
+  getTermIds()
+  {
+    long stamp = lock_.readLock();
+    try {
+      IntList result = new IntList();
+      for (int i = 0; i < capacity_; ++i) {
+        int key = slots_.get(i * SLOT_INTS);
+        if (key != 0)
+          result.add(key - 1);
+      }
+
+      return result;
+    }
+    finally {
+      lock_.unlockRead(stamp);
+    }
+  }
+
+  /**
+   * Get the number of bytes allocated off the heap for descriptions and the
+   * index.
+   */
+  public long
+  getAllocatedBytes()
+  {
+    long stamp = lock_.readLock();
+    try {
+      long result = 4L * slots_.capacity();
+      for (ByteBuffer segment : segments_)
+        result += segment.capacity();
+      return result;
+    }
+    finally {
+      lock_.unlockRead(stamp);
+    }
+  }
+
+  /**
+   * Get a copy of the UTF-8 bytes of the description without taking the lock.
+   * This reads with an optimistic stamp and tries again until no write
+   * happened at the same time. Values read before the stamp is validated may
+   * be inconsistent, so they are checked before they are used as indexes.
+   * @param termId The term ID of the subject.
+   * @return A new byte array, or null if there is no description.
+   */
+  private byte[]
+  getUtf8(int termId)
+  {
+    while (true) {
+      long stamp = lock_.tryOptimisticRead();
+      if (stamp != 0) {
+        IntBuffer slots = slots_;
+        ByteBuffer[] segments = segments_;
+        int slot = findSlot(slots, termId);
+        int key = slots.get(slot);
+        int iSegment = slots.get(slot + 1);
+        int position = slots.get(slot + 2);
+        int length = slots.get(slot + 3);
+        if (key == 0) {
+          if (lock_.validate(stamp))
+            return null;
+        }
+        else if (iSegment >= 0 && iSegment < segments.length &&
+                 position >= 0 && length >= 0 &&
+                 position <= segments[iSegment].capacity() - length) {
+          ByteBuffer segment = segments[iSegment].duplicate();
+          segment.clear();
+          segment.position(position);
+          byte[] bytes = new byte[length];
+          segment.get(bytes);
+          if (lock_.validate(stamp))
+            return bytes;
+        }
+      }
+
+      // A write is in progress.
+      Thread.yield();
+    }
+  }
+
+  /**
+   * Find the slot for the termId with linear probing.
+   * @param slots The slots_ buffer, whose capacity has a power of 2 slots.
+   * @param termId The term ID.
+   * @return The int index in slots of the slot, whose first int is termId + 1
+   * or 0 if empty.
+   */
+  private static int
+  findSlot(IntBuffer slots, int termId)
+  {
+    int mask = slots.capacity() / SLOT_INTS - 1;
+    for (int i = TermDictionary.mix(termId) & mask; ; i = (i + 1) & mask) {
+      int key = slots.get(i * SLOT_INTS);
+      if (key == 0 || key == termId + 1)
+        return i * SLOT_INTS;
+    }
+  }
+
+  private void
+  rehash(int capacity)
+  {
+    IntBuffer slots = allocateSlots(capacity);
+    for (int i = 0; i < capacity_; ++i) {
+      int key = slots_.get(i * SLOT_INTS);
+      if (key == 0)
+        continue;
+      int slot = findSlot(slots, key - 1);
+      for (int j = 0; j < SLOT_INTS; ++j)
+        slots.put(slot + j, slots_.get(i * SLOT_INTS + j));
+    }
+
+    // Publish the filled table.
+    slots_ = slots;
+    capacity_ = capacity;
+  }
+
+  private static IntBuffer
+  allocateSlots(int capacity)
+  {
+    // allocateDirect fills with zeros, which is an empty slot.
+    return ByteBuffer.allocateDirect(4 * SLOT_INTS * capacity).asIntBuffer();
+  }
+
+  /**
+   * Each slot is termId + 1 (or 0 if empty), segment index, position in the
+   * segment and byte length.
+   */
+  private static final int SLOT_INTS = 4;
+  private static final int INITIAL_CAPACITY = 1024;
+  private static final int SEGMENT_SIZE = 1 << 24;
+  private final NuvlWorldStore store_;
+  private final StampedLock lock_ = new StampedLock();
+  /**
+   * The segments, where the last is being filled. The array is copied when
+   * one is added so that a reader sees a fixed array.
+   */
+  private volatile ByteBuffer[] segments_ = new ByteBuffer[0];
+  private volatile IntBuffer slots_;
+  private int capacity_;
+  private volatile int size_ = 0;
+  private volatile LabelIndex labelIndex_ = null;
+}
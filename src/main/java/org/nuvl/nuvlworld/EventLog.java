@@ -0,0 +1,315 @@
+/*
+Copyright (C) 2017 Jeff Thompson
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package org.nuvl.nuvlworld;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.CRC32;
+
+/**
+ * An EventLog is a write-ahead log of the sentences of new events so that
+ * they can be replayed into the NuvlWorldStore on startup. Each event is one
+ * record of the int length of the payload, the int CRC32 of the payload and
+ * the payload, which is the UTF-8 sentences separated by "\n". A record is
+ * written completely or not at all: when the log is opened, a torn or
+ * corrupted record at the end (from a crash while writing) is truncated.
+ * Appending gives the record to a writer thread which writes all waiting
+ * records and then calls fsync once for all of them (group commit), so the
+ * caller never waits for the disk.
+ * @author Jeff Thompson, jeff@thefirst.org
+ */
+public class EventLog implements AutoCloseable {
+  /**
+   * Open or create the log file, read the existing records and start the
+   * writer thread.
+   * @param filePath The log file path.
+   * @throws IOException for an error opening or reading the file, or if the
+   * file is not an EventLog.
+   */
+  public EventLog(String filePath) throws IOException
+  {
+    filePath_ = filePath;
+    channel_ = FileChannel.open
+      (Paths.get(filePath), StandardOpenOption.CREATE, StandardOpenOption.READ,
+       StandardOpenOption.WRITE);
+    try {
+      recover();
+    } catch (IOException ex) {
+      channel_.close();
+      throw ex;
+    }
+
+    writer_ = new Thread(this::runWriter, "EventLog writer");
+    writer_.setDaemon(true);
+    writer_.start();
+  }
+
+  /**
+   * Add the sentences of each record read when the log was opened to the
+   * store.
+   * @param store The NuvlWorldStore.
+   * @return The number of records replayed.
+   */
+  public int
+  replay(NuvlWorldStore store)
+  {
+    for (List<String> record : records_) {
+      for (String sentence : record) {
+        if (!sentence.isEmpty())
+          store.addSentence(sentence);
+      }
+    }
+
+    return records_.size();
+  }
+
+  /**
+   * Get the records which were read when the log was opened.
+   * @return An unmodifiable list where each record is a list of sentences.
+   */
+  public List<List<String>>
+  getRecords() { return Collections.unmodifiableList(records_); }
+
+  /**
+   * Get the number of times the writer thread has synced to the disk, which
+   * is less than the number of appended records when they are grouped.
+   */
+  public long getSyncCount() { return nSyncs_; }
+
+  /**
+   * Append the sentences as one record. This returns immediately and the
+   * writer thread writes the record.
+   * @param sentences The sentences of the event. A sentence must not have
+   * "\n".
+   * @return A future which is completed when the record is written and synced
+   * to the disk, or completed exceptionally for a write error or if the log
+   * is closed.
+   */
+  public CompletableFuture<Void>
+  append(List<String> sentences)
+  {
+    CompletableFuture<Void> result = new CompletableFuture<>();
+    byte[] payload = String.join("\n", sentences).getBytes(StandardCharsets.UTF_8);
+    // Synchronize with close so that the record is either before the stop
+    // record in the queue or rejected.
+    synchronized (queue_) {
+      if (isClosed_)
+        result.completeExceptionally(new IOException("The EventLog is closed"));
+      else
+        queue_.add(new PendingRecord(payload, result));
+    }
+    return result;
+  }
+
+  /**
+   * Write the records which are still waiting, stop the writer thread and
+   * close the file.
+   */
+  @Override
+  public void
+  close() throws IOException
+  {
+    synchronized (queue_) {
+      if (isClosed_)
+        return;
+      isClosed_ = true;
+      // An empty payload tells the writer thread to stop after writing the
+      // rest.
+      queue_.add(new PendingRecord(null, null));
+    }
+    try {
+      writer_.join();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+    channel_.close();
+  }
+
+  /**
+   * Check the header and read the records, truncating the file after the
+   * last good record. If the file is empty, write the header.
+   * @throws IOException if the file is not empty and doesn't have the header.
+   */
+  private void
+  recover() throws IOException
+  {
+    long size = channel_.size();
+    if (size == 0) {
+      // A new file.
+      ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+      header.putInt(MAGIC).putInt(VERSION).flip();
+      writeFully(header, 0);
+      channel_.force(true);
+      position_ = HEADER_SIZE;
+      return;
+    }
+
+    if (size < HEADER_SIZE)
+      // Don't overwrite a file which is not ours. This is also a crash while
+      // writing the header, which is so unlikely that it can be fixed by hand.
+      throw new IOException("Not an EventLog file: " + filePath_);
+
+    ByteBuffer buffer = ByteBuffer.allocate((int)Math.min(size, Integer.MAX_VALUE));
+    while (buffer.hasRemaining()) {
+      if (channel_.read(buffer, buffer.position()) < 0)
+        break;
+    }
+    buffer.flip();
+    if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION)
+      throw new IOException("Not an EventLog file: " + filePath_);
+
+    CRC32 crc = new CRC32();
+    while (buffer.remaining() >= RECORD_HEADER_SIZE) {
+      int recordBegin = buffer.position();
+      int length = buffer.getInt();
+      int checksum = buffer.getInt();
+      if (length < 0 || length > buffer.remaining()) {
+        buffer.position(recordBegin);
+        break;
+      }
+
+      byte[] payload = new byte[length];
+      buffer.get(payload);
+      crc.reset();
+      crc.update(payload);
+      if ((int)crc.getValue() != checksum) {
+        buffer.position(recordBegin);
+        break;
+      }
+
+      records_.add(Arrays.asList
+        (new String(payload, StandardCharsets.UTF_8).split("\n")));
+    }
+
+    position_ = buffer.position();
+    if (position_ < size) {
+      System.out.println
+        ("EventLog: Truncating " + (size - position_) +
+         " bytes of an incomplete record at the end of " + filePath_);
+      channel_.truncate(position_);
+      channel_.force(true);
+    }
+  }
+
+  /**
+   * The writer thread takes all waiting records, writes them in one write,
+   * syncs once, then completes their futures.
+   */
+  private void
+  runWriter()
+  {
+    List<PendingRecord> batch = new ArrayList<>();
+    CRC32 crc = new CRC32();
+    boolean isStopping = false;
+    while (!isStopping) {
+      batch.clear();
+      try {
+        batch.add(queue_.take());
+      } catch (InterruptedException ex) {
+        // Only close stops the writer.
+        continue;
+      }
+      queue_.drainTo(batch);
+
+      int size = 0;
+      for (PendingRecord record : batch) {
+        if (record.payload != null)
+          size += RECORD_HEADER_SIZE + record.payload.length;
+      }
+
+      ByteBuffer buffer = ByteBuffer.allocate(size);
+      List<CompletableFuture<Void>> futures = new ArrayList<>();
+      for (PendingRecord record : batch) {
+        if (record.payload == null) {
+          isStopping = true;
+          continue;
+        }
+        crc.reset();
+        crc.update(record.payload);
+        buffer.putInt(record.payload.length).putInt((int)crc.getValue())
+          .put(record.payload);
+        futures.add(record.future);
+      }
+      buffer.flip();
+      if (futures.isEmpty())
+        continue;
+
+      try {
+        writeFully(buffer, position_);
+        channel_.force(false);
+        position_ += size;
+        ++nSyncs_;
+        for (CompletableFuture<Void> future : futures)
+          future.complete(null);
+      } catch (IOException ex) {
+        // Don't leave a partial batch where the next batch would go.
+        try {
+          channel_.truncate(position_);
+        } catch (IOException ignored) {
+        }
+        for (CompletableFuture<Void> future : futures)
+          future.completeExceptionally(ex);
+      }
+    }
+  }
+
+  private void
+  writeFully(ByteBuffer buffer, long position) throws IOException
+  {
+    while (buffer.hasRemaining())
+      position += channel_.write(buffer, position);
+  }
+
+  /**
+   * A PendingRecord is a record payload waiting for the writer thread.
+   */
+  private static class PendingRecord {
+    public PendingRecord(byte[] payload, CompletableFuture<Void> future)
+    {
+      this.payload = payload;
+      this.future = future;
+    }
+
+    public final byte[] payload;
+    public final CompletableFuture<Void> future;
+  }
+
+  private static final int MAGIC = 0x4e574c47;
+  private static final int VERSION = 1;
+  private static final int HEADER_SIZE = 8;
+  private static final int RECORD_HEADER_SIZE = 8;
+  private final String filePath_;
+  private final FileChannel channel_;
+  private final List<List<String>> records_ = new ArrayList<>();
+  private final LinkedBlockingQueue<PendingRecord> queue_ =
+    new LinkedBlockingQueue<>();
+  private final Thread writer_;
+  /** The file position after the last good record. Used by the writer thread. */
+  private long position_;
+  private volatile long nSyncs_ = 0;
+  private volatile boolean isClosed_ = false;
+}
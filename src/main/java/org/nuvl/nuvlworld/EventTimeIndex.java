@@ -0,0 +1,391 @@
+/*
+Copyright (C) 2017 Jeff Thompson
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package org.nuvl.nuvlworld;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.nuvl.nuvlworld.NuvlWorldStore.EventTimeInterval;
+
+/**
+ * An EventTimeIndex is an immutable interval index over the rows of an
+ * EventTimeTable as of one version of the table. The rows are sorted by start
+ * time and viewed as an implicit balanced binary tree where each node has the
+ * maximum end time of its subtree, so that a range query takes O(log n + k) for
+ * k results. The index copies the times and event terms of its rows, so it
+ * doesn't read the table after it is made and can be used by any number of
+ * threads while the table changes. Call update to get the index for a later
+ * version of the table. It shares the tree and only lists the rows which were
+ * added or removed since the tree was built. The added rows have their own
+ * small tree so that a query is still O(log n + k). The tree is built again
+ * when there are too many of these.
+ * @author Jeff Thompson, jeff@thefirst.org
+ */
+public class EventTimeIndex {
+  /**
+   * Create an EventTimeIndex for the current rows of the table.
+   * @param table The EventTimeTable.
+   * @param terms The TermDictionary with the event terms.
+   */
+  public EventTimeIndex(EventTimeTable table, TermDictionary terms)
+  {
+    this(new Tree(table, terms, getRows(table, 0, table.size())), table.size(),
+         table.getRemovedCount(), table, terms);
+  }
+
+  /**
+   * Create an EventTimeIndex for the current rows of the table which uses the
+   * tree built for an earlier version.
+   * @param tree The tree of the rows which were not removed when it was built.
+   * @param builtSize The table size when the tree was built.
+   * @param removedCountAtBuild The removed count when the tree was built.
+   */
+  private EventTimeIndex
+    (Tree tree, int builtSize, int removedCountAtBuild, EventTimeTable table,
+     TermDictionary terms)
+  {
+    tree_ = tree;
+    builtSize_ = builtSize;
+    removedCountAtBuild_ = removedCountAtBuild;
+    tableSize_ = table.size();
+    removedCount_ = table.getRemovedCount();
+
+    int[] added = getRows(table, builtSize, tableSize_);
+    added_ = new Rows(table, terms, added);
+    addedTree_ = new Tree(table, terms, added.clone());
+
+    IntList removed = new IntList();
+    for (int i = removedCountAtBuild; i < removedCount_; ++i) {
+      int row = table.getRemovedRow(i);
+      // Skip a row which was added since the tree was built.
+      if (row < builtSize)
+        removed.add(row);
+    }
+    int[] removedRows = removed.toArray();
+    Arrays.sort(removedRows);
+    removed_ = new Rows(table, terms, removedRows);
+  }
+
+  /**
+   * Get the index for the current rows of the table, which must be the same
+   * table that this index was made from.
+   * @param table The EventTimeTable.
+   * @param terms The TermDictionary with the event terms.
+   * @return This index if the table hasn't changed, otherwise a new
+   * EventTimeIndex.
+   */
+  public EventTimeIndex
+  update(EventTimeTable table, TermDictionary terms)
+  {
+    if (table.size() == tableSize_ && table.getRemovedCount() == removedCount_)
+      return this;
+
+    int nChanges = (table.size() - builtSize_) +
+      (table.getRemovedCount() - removedCountAtBuild_);
+    if (nChanges > Math.max(MIN_CHANGES, tree_.rows_.rows_.length / 16))
+      return new EventTimeIndex(table, terms);
+    return new EventTimeIndex
+      (tree_, builtSize_, removedCountAtBuild_, table, terms);
+  }
+
+  /**
+   * Get the intervals whose time overlaps the range from beginUtcMillis up to
+   * but not including endUtcMillis. An interval where the end is not after the
+   * start is treated as the single millisecond at the start.
+   * @param beginUtcMillis The beginning of the range in milliseconds since the
+   * Unix epoch.
+   * @param endUtcMillis The end of the range (exclusive).
+   * @return A new list of the matching EventTimeInterval, sorted by start time.
+   */
+  public List<EventTimeInterval>
+  overlaps(long beginUtcMillis, long endUtcMillis)
+  {
+    ArrayList<EventTimeInterval> result = new ArrayList<>();
+    if (beginUtcMillis >= endUtcMillis)
+      return result;
+    overlaps
+      (tree_, 0, tree_.rows_.rows_.length, beginUtcMillis, endUtcMillis,
+       removed_.rows_, result);
+
+    // Check the rows added since the tree was built. They are not removed.
+    ArrayList<EventTimeInterval> added = new ArrayList<>();
+    overlaps
+      (addedTree_, 0, addedTree_.rows_.rows_.length, beginUtcMillis,
+       endUtcMillis, null, added);
+    if (added.size() == 0)
+      return result;
+    return merge(result, added);
+  }
+
+  /**
+   * Get the intervals which were added and removed between an earlier index
+   * and this one, for example to update cached results.
+   * @param earlier An index from an earlier call to update on the same table.
+   * @param added Add the added intervals to this list.
+   * @param removed Add the removed intervals to this list.
+   * @return True for success, or false if this index doesn't share the tree
+   * of the earlier index, in which case the lists are not changed and the
+   * caller should start over from this index.
+   */
+  public boolean
+  getChangesSince
+    (EventTimeIndex earlier, List<EventTimeInterval> added,
+     List<EventTimeInterval> removed)
+  {
+    if (earlier.tree_ != tree_ || earlier.tableSize_ > tableSize_ ||
+        earlier.removedCount_ > removedCount_)
+      return false;
+
+    // A row in the earlier added_ which is not in added_ was removed since.
+    getDifference(added_, earlier.added_, added, removed);
+    // removed_ has all the rows of the earlier removed_.
+    getDifference(removed_, earlier.removed_, removed, null);
+    return true;
+  }
+
+  /**
+   * Search the subtree of the tree for indexes begin to end (exclusive) whose
+   * root is at the midpoint, and add matching intervals to the result in order
+   * of start time.
+   * @param removedRows Skip the rows in this sorted array, or null for none.
+   */
+  private static void
+  overlaps
+    (Tree tree, int begin, int end, long beginUtcMillis, long endUtcMillis,
+     int[] removedRows, List<EventTimeInterval> result)
+  {
+    if (begin >= end)
+      return;
+    int middle = (begin + end) >>> 1;
+    if (tree.maxEnds_[middle] <= beginUtcMillis)
+      // Everything in the subtree ends before the range.
+      return;
+
+    overlaps
+      (tree, begin, middle, beginUtcMillis, endUtcMillis, removedRows, result);
+    Rows rows = tree.rows_;
+    if (rows.starts_[middle] >= endUtcMillis)
+      // The middle and everything after it start after the range.
+      return;
+    if (rows.getEffectiveEnd(middle) > beginUtcMillis &&
+        (removedRows == null ||
+         Arrays.binarySearch(removedRows, rows.rows_[middle]) < 0))
+      result.add(rows.getInterval(middle));
+    overlaps
+      (tree, middle + 1, end, beginUtcMillis, endUtcMillis, removedRows,
+       result);
+  }
+
+  /**
+   * Get the rows of the table from begin to end (exclusive) which are not
+   * removed.
+   * @return A new array of the row numbers in increasing order.
+   */
+  private static int[]
+  getRows(EventTimeTable table, int begin, int end)
+  {
+    IntList rows = new IntList();
+    for (int row = begin; row < end; ++row) {
+      if (!table.isRemoved(row))
+        rows.add(row);
+    }
+    return rows.toArray();
+  }
+
+  /**
+   * Merge the two lists of intervals which are sorted by start time.
+   */
+  private static List<EventTimeInterval>
+  merge(List<EventTimeInterval> intervals1, List<EventTimeInterval> intervals2)
+  {
+    ArrayList<EventTimeInterval> result =
+      new ArrayList<>(intervals1.size() + intervals2.size());
+    int i = 0, j = 0;
+    while (i < intervals1.size() && j < intervals2.size())
+      result.add(intervals2.get(j).startUtcMillis <
+                 intervals1.get(i).startUtcMillis ?
+                 intervals2.get(j++) : intervals1.get(i++));
+    while (i < intervals1.size())
+      result.add(intervals1.get(i++));
+    while (j < intervals2.size())
+      result.add(intervals2.get(j++));
+    return result;
+  }
+
+  /**
+   * Compare the Rows which are sorted by row number.
+   * @param rows1 The first Rows.
+   * @param rows2 The second Rows.
+   * @param only1 Add the intervals of rows which are only in rows1.
+   * @param only2 Add the intervals of rows which are only in rows2, or null to
+   * not add.
+   */
+  private static void
+  getDifference
+    (Rows rows1, Rows rows2, List<EventTimeInterval> only1,
+     List<EventTimeInterval> only2)
+  {
+    int i = 0, j = 0;
+    while (i < rows1.rows_.length || j < rows2.rows_.length) {
+      if (j == rows2.rows_.length ||
+          (i < rows1.rows_.length && rows1.rows_[i] < rows2.rows_[j]))
+        only1.add(rows1.getInterval(i++));
+      else if (i == rows1.rows_.length || rows2.rows_[j] < rows1.rows_[i]) {
+        if (only2 != null)
+          only2.add(rows2.getInterval(j));
+        ++j;
+      }
+      else {
+        ++i;
+        ++j;
+      }
+    }
+  }
+
+  /**
+   * Rows holds copies of the columns of some rows of an EventTimeTable.
+   */
+  private static class Rows {
+    /**
+     * Copy the columns of the rows.
+     * @param table The EventTimeTable.
+     * @param terms The TermDictionary with the event terms.
+     * @param rows The row numbers, which is used directly.
+     */
+    public Rows(EventTimeTable table, TermDictionary terms, int[] rows)
+    {
+      rows_ = rows;
+      starts_ = new long[rows.length];
+      ends_ = new long[rows.length];
+      events_ = new String[rows.length];
+      for (int i = 0; i < rows.length; ++i) {
+        starts_[i] = table.getStart(rows[i]);
+        ends_[i] = table.getEnd(rows[i]);
+        events_[i] = terms.getTerm(table.getEventId(rows[i]));
+      }
+    }
+
+    /**
+     * Get the end of the time interval at index i, which is at least one
+     * millisecond after the start, as in EventTimeTable.getEffectiveEnd.
+     */
+    public long
+    getEffectiveEnd(int i)
+    {
+      return ends_[i] > starts_[i] ? ends_[i] : starts_[i] + 1;
+    }
+
+    public EventTimeInterval
+    getInterval(int i)
+    {
+      return new EventTimeInterval(events_[i], starts_[i], ends_[i]);
+    }
+
+    public final int[] rows_;
+    public final long[] starts_;
+    public final long[] ends_;
+    public final String[] events_;
+  }
+
+  /**
+   * A Tree has some rows of the table sorted by start time, viewed as an
+   * implicit balanced binary tree.
+   */
+  private static class Tree {
+    /**
+     * Create a Tree of the rows.
+     * @param table The EventTimeTable.
+     * @param terms The TermDictionary with the event terms.
+     * @param rows The row numbers in increasing order. This is sorted by start
+     * time and used directly.
+     */
+    public Tree(EventTimeTable table, TermDictionary terms, int[] rows)
+    {
+      sortByStart(table, rows);
+      rows_ = new Rows(table, terms, rows);
+
+      maxEnds_ = new long[rows.length];
+      setMaxEnds(0, rows.length);
+    }
+
+    /**
+     * Set maxEnds_ for the subtree for indexes begin to end (exclusive).
+     * @return The maximum end of the subtree, or Long.MIN_VALUE if empty.
+     */
+    private long
+    setMaxEnds(int begin, int end)
+    {
+      if (begin >= end)
+        return Long.MIN_VALUE;
+      int middle = (begin + end) >>> 1;
+      maxEnds_[middle] = Math.max
+        (rows_.getEffectiveEnd(middle),
+         Math.max(setMaxEnds(begin, middle), setMaxEnds(middle + 1, end)));
+      return maxEnds_[middle];
+    }
+
+    /**
+     * Sort the row numbers by the start time in the table with a stable merge
+     * sort, without boxing.
+     */
+    private static void
+    sortByStart(EventTimeTable table, int[] rows)
+    {
+      int[] temp = new int[rows.length];
+      for (int width = 1; width < rows.length; width *= 2) {
+        for (int begin = 0; begin < rows.length; begin += 2 * width) {
+          int middle = Math.min(begin + width, rows.length);
+          int end = Math.min(begin + 2 * width, rows.length);
+          int i = begin, j = middle, k = begin;
+          while (i < middle && j < end)
+            temp[k++] = table.getStart(rows[j]) < table.getStart(rows[i]) ?
+              rows[j++] : rows[i++];
+          while (i < middle)
+            temp[k++] = rows[i++];
+          while (j < end)
+            temp[k++] = rows[j++];
+        }
+        System.arraycopy(temp, 0, rows, 0, rows.length);
+      }
+    }
+
+    /** The rows in the tree, sorted by start time. */
+    public final Rows rows_;
+    /** The maximum effective end in the subtree rooted at each index. */
+    public final long[] maxEnds_;
+  }
+
+  /**
+   * The minimum number of added and removed rows to allow before building the
+   * tree again.
+   */
+  private static final int MIN_CHANGES = 256;
+  /** The rows which were not removed when the tree was built. */
+  private final Tree tree_;
+  /** The table size when tree_ was built. Later rows are in added_. */
+  private final int builtSize_;
+  private final int removedCountAtBuild_;
+  /** The table size and removed count for this version. */
+  private final int tableSize_;
+  private final int removedCount_;
+  /** The rows added since the tree was built, sorted by row number. */
+  private final Rows added_;
+  /** The same rows as added_, as a tree sorted by start time. */
+  private final Tree addedTree_;
+  /** The rows in the tree which were removed since, sorted by row number. */
+  private final Rows removed_;
+}
@@ -0,0 +1,157 @@
+/*
+Copyright (C) 2017 Jeff Thompson
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package org.nuvl.nuvlworld;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * An EventTimeTable holds the sentences
+ * (subAttrOf $Event (TimeIntervalFn $Start $End)) as primitive columns, one
+ * row per sentence, so that time queries don't parse the sentence text. Rows
+ * are added in order of increasing triple number. A removed row is kept and
+ * marked as removed so that the row numbers don't change, and the removed rows
+ * are also listed in the order they were removed so that an EventTimeIndex can
+ * find the rows removed since it was built.
+ * @author Jeff Thompson, jeff@thefirst.org
+ */
+public class EventTimeTable {
+  /**
+   * Parse rest as "(TimeIntervalFn $Start $End)" and add a row.
+   * @param triple The triple number of the sentence, which must be greater
+   * than the triple number of all previously added rows.
+   * @param eventId The term ID of $Event.
+   * @param rest The rest of the sentence after the event (see TripleTable).
+   * @return The new row number, or -1 if rest doesn't match or a time is too
+   * big for a long.
+   */
+  public int
+  add(int triple, int eventId, String rest)
+  {
+    if (!rest.startsWith(TIME_INTERVAL_FN) || !rest.endsWith(")"))
+      return -1;
+    int startBegin = TIME_INTERVAL_FN.length();
+    int startEnd = scanInt(rest, startBegin);
+    if (startEnd < 0 || rest.charAt(startEnd) != ' ')
+      return -1;
+    int endEnd = scanInt(rest, startEnd + 1);
+    if (endEnd != rest.length() - 1)
+      return -1;
+    long start, end;
+    try {
+      start = Long.parseLong(rest.substring(startBegin, startEnd));
+      end = Long.parseLong(rest.substring(startEnd + 1, endEnd));
+    } catch (NumberFormatException ex) {
+      // The number is too big for a long.
+      return -1;
+    }
+
+    if (size_ == triples_.length) {
+      int capacity = Math.max(16, size_ + (size_ >> 1));
+      triples_ = Arrays.copyOf(triples_, capacity);
+      eventIds_ = Arrays.copyOf(eventIds_, capacity);
+      starts_ = Arrays.copyOf(starts_, capacity);
+      ends_ = Arrays.copyOf(ends_, capacity);
+    }
+
+    int row = size_++;
+    triples_[row] = triple;
+    eventIds_[row] = eventId;
+    starts_[row] = start;
+    ends_[row] = end;
+    return row;
+  }
+
+  /**
+   * Find the row for the triple and mark it as removed.
+   * @param triple The triple number of the removed sentence.
+   * @return The removed row number, or -1 if there is no row for the triple.
+   */
+  public int
+  remove(int triple)
+  {
+    int row = Arrays.binarySearch(triples_, 0, size_, triple);
+    if (row < 0 || removed_.get(row))
+      return -1;
+
+    removed_.set(row);
+    removedRows_.add(row);
+    return row;
+  }
+
+  public long getStart(int row) { return starts_[row]; }
+
+  public long getEnd(int row) { return ends_[row]; }
+
+  /**
+   * Get the end of the row's time interval, which is at least one millisecond
+   * after the start. An interval where the end is not after the start is
+   * treated as the single millisecond at the start.
+   */
+  public long
+  getEffectiveEnd(int row)
+  {
+    return ends_[row] > starts_[row] ? ends_[row] : starts_[row] + 1;
+  }
+
+  /**
+   * Get the term ID of the row's event, which is kept if the row is removed.
+   */
+  public int getEventId(int row) { return eventIds_[row]; }
+
+  public boolean isRemoved(int row) { return removed_.get(row); }
+
+  /**
+   * Get the number of rows, including removed rows.
+   */
+  public int size() { return size_; }
+
+  public int getRemovedCount() { return removedRows_.size(); }
+
+  /**
+   * Get a removed row in the order they were removed.
+   * @param i The index from 0 to getRemovedCount() - 1.
+   * @return The row number.
+   */
+  public int getRemovedRow(int i) { return removedRows_.get(i); }
+
+  /**
+   * Scan INT = -?\d+ starting at begin.
+   * @return The index after the integer, or -1 if there is no integer at begin.
+   */
+  private static int
+  scanInt(String s, int begin)
+  {
+    int i = begin;
+    if (i < s.length() && s.charAt(i) == '-')
+      ++i;
+    int digitsBegin = i;
+    while (i < s.length() && s.charAt(i) >= '0' && s.charAt(i) <= '9')
+      ++i;
+    return i == digitsBegin ? -1 : i;
+  }
+
+  private static final String TIME_INTERVAL_FN = "(TimeIntervalFn ";
+  private int[] triples_ = new int[0];
+  private int[] eventIds_ = new int[0];
+  private long[] starts_ = new long[0];
+  private long[] ends_ = new long[0];
+  private int size_ = 0;
+  private final BitSet removed_ = new BitSet();
+  /** The removed rows in the order they were removed. */
+  private final IntList removedRows_ = new IntList();
+}
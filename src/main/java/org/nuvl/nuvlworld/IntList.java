@@ -0,0 +1,86 @@
+/*
+Copyright (C) 2017 Jeff Thompson
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package org.nuvl.nuvlworld;
+
+import java.util.Arrays;
+
+/**
+ * An IntList is a growable array of primitive int values, used instead of a
+ * List of Integer to save memory.
+ * @author Jeff Thompson, jeff@thefirst.org
+ */
+public class IntList {
+  public IntList() { values_ = new int[4]; }
+
+  /**
+   * Create an IntList which holds the given values.
+   * @param values The array which is used directly, not copied.
+   * @param size The number of values in the array to use.
+   */
+  public IntList(int[] values, int size)
+  {
+    values_ = values;
+    size_ = size;
+  }
+
+  public int size() { return size_; }
+
+  public int get(int index)
+  {
+    if (index >= size_)
+      throw new IndexOutOfBoundsException("Index " + index + ", size " + size_);
+    return values_[index];
+  }
+
+  public void
+  add(int value)
+  {
+    if (size_ == values_.length)
+      values_ = Arrays.copyOf(values_, Math.max(4, size_ + (size_ >> 1)));
+    values_[size_++] = value;
+  }
+
+  /**
+   * Remove the last occurrence of the value, shifting the following values
+   * down. This searches from the end since recently added values are the most
+   * likely to be removed.
+   * @param value The value to remove.
+   * @return True if removed, false if not found.
+   */
+  public boolean
+  remove(int value)
+  {
+    for (int i = size_ - 1; i >= 0; --i) {
+      if (values_[i] == value) {
+        System.arraycopy(values_, i + 1, values_, i, size_ - i - 1);
+        --size_;
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  /**
+   * Get a copy of the values.
+   * @return A new array of size() values.
+   */
+  public int[] toArray() { return Arrays.copyOf(values_, size_); }
+
+  private int[] values_;
+  private int size_ = 0;
+}
@@ -0,0 +1,605 @@
+/*
+Copyright (C) 2017 Jeff Thompson
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+
+package org.nuvl.nuvlworld;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A LabelIndex looks up the description of a Wikidata item in the
+ * itemEnLabel.tsv file when it is needed, instead of loading all the
+ * descriptions into memory. The first time, it scans the TSV file and writes
+ * an index file of the item numbers, sorted, with the file offset of each line:
+ * <pre>
+ * int MAGIC, int VERSION, long tsvSize, long tsvLastModified, int nItems,
+ *   int 0
+ * int[nItems] item numbers, sorted
+ * padding to a multiple of 8 bytes
+ * long[nItems] the offset in the TSV file of the line of each item
+ * </pre>
+ * To build the index file for a TSV file of any size with bounded memory, runs
+ * of lines are sorted and written to run files, which are then merged.
+ * After that, the index file is memory-mapped and searched with a binary
+ * search, and only the needed lines of the TSV file are read. Recent lookups
+ * are kept in a bounded cache, so the memory use doesn't depend on how many
+ * items the store has. The methods are thread-safe and never take a lock, so
+ * that get can be called while rendering on the event dispatch thread. The
+ * cache has two generations of ConcurrentHashMap. When the current generation
+ * is full, it becomes the previous generation and the old previous generation
+ * is dropped. A lookup found in the previous generation is copied to the
+ * current one, so that recently used items are kept, close to an LRU cache.
+ * @author Jeff Thompson, jeff@thefirst.org
+ */
+public class LabelIndex implements AutoCloseable {
+  /**
+   * Create a LabelIndex for the TSV file, building the index file if it is
+   * missing or was made from a different version of the TSV file. The TSV file
+   * is kept open until close is called.
+   * @param tsvPath The TSV file of item number, tab and JSON string. This can't
+   * be a gzip file.
+   * @param indexPath The index file to use or build.
+   * @param cacheSize The maximum number of lookups to keep in the cache.
+   */
+  public LabelIndex(String tsvPath, String indexPath, int cacheSize)
+    throws IOException
+  {
+    if (tsvPath.endsWith(".gz"))
+      throw new IOException
+        ("The LabelIndex needs an uncompressed TSV file to read the lines: " +
+         tsvPath);
+    File tsvFile = new File(tsvPath);
+    File indexFile = new File(indexPath);
+    if (!isUpToDate(tsvFile, indexFile))
+      build(tsvFile, indexFile, MAX_RUN_ENTRIES);
+
+    generationSize_ = Math.max(1, cacheSize / 2);
+    tsvChannel_ = FileChannel.open(tsvFile.toPath(), StandardOpenOption.READ);
+    try (FileChannel channel = FileChannel.open
+           (indexFile.toPath(), StandardOpenOption.READ)) {
+      // The mapping stays valid after the channel is closed.
+      ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+      nItems_ = header.getInt(HEADER_SIZE - 8);
+      if (channel.size() < getOffsetsPosition(nItems_) + 8L * nItems_)
+        throw new IOException("The label index is truncated: " + indexPath);
+
+      itemNumbers_ = channel.map
+        (FileChannel.MapMode.READ_ONLY, HEADER_SIZE, 4L * nItems_).asIntBuffer();
+      for (long i = 0; i < nItems_; i += OFFSETS_PER_WINDOW) {
+        long nOffsets = Math.min(OFFSETS_PER_WINDOW, nItems_ - i);
+        offsets_.add(channel.map
+          (FileChannel.MapMode.READ_ONLY, getOffsetsPosition(nItems_) + 8 * i,
+           8 * nOffsets).asLongBuffer());
+      }
+    }
+  }
+
+  /**
+   * Get the description of the Wikidata item.
+   * @param subject The item term, like "Q42".
+   * @return The description, or null if the subject is not "Q" + number or
+   * the item is not in the TSV file.
+   */
+  public String
+  get(String subject)
+  {
+    if (subject.length() < 2 || subject.length() > 11 ||
+        subject.charAt(0) != 'Q' ||
+        (subject.length() > 2 && subject.charAt(1) == '0'))
+      return null;
+    long itemNumber = 0;
+    for (int i = 1; i < subject.length(); ++i) {
+      char c = subject.charAt(i);
+      if (c < '0' || c > '9')
+        return null;
+      itemNumber = itemNumber * 10 + (c - '0');
+    }
+    if (itemNumber > Integer.MAX_VALUE)
+      return null;
+
+    return get((int)itemNumber);
+  }
+
+  /**
+   * Get the description of the Wikidata item.
+   * @param itemNumber The numeric part of the item ID.
+   * @return The description, or null if the item is not in the TSV file.
+   */
+  public String
+  get(int itemNumber)
+  {
+    CacheGenerations generations = cache_.get();
+    String description = generations.current.get(itemNumber);
+    if (description != null)
+      return description == NOT_FOUND ? null : description;
+    description = generations.previous.get(itemNumber);
+    if (description != null) {
+      putInCache(generations, itemNumber, description);
+      return description == NOT_FOUND ? null : description;
+    }
+
+    int index = find(itemNumber);
+    if (index < 0)
+      description = NOT_FOUND;
+    else {
+      try {
+        description = readDescription
+          (offsets_.get(index / OFFSETS_PER_WINDOW).get
+           (index % OFFSETS_PER_WINDOW));
+      } catch (IOException ex) {
+        System.out.println("Error reading the label of Q" + itemNumber + ": " + ex);
+        // Don't cache the error.
+        return null;
+      }
+    }
+
+    putInCache(generations, itemNumber, description);
+    return description == NOT_FOUND ? null : description;
+  }
+
+  /**
+   * Close the TSV file. After this, get returns null for an item which is not
+   * in the cache.
+   */
+  @Override
+  public void
+  close() throws IOException { tsvChannel_.close(); }
+
+  /**
+   * Get the number of items in the index.
+   */
+  public int size() { return nItems_; }
+
+  /**
+   * Get the number of lookups in the cache.
+   */
+  public int
+  getCacheSize()
+  {
+    CacheGenerations generations = cache_.get();
+    return generations.current.size() + generations.previous.size();
+  }
+
+  /**
+   * Put the description in the current generation of the cache. If it is
+   * full, start a new generation. If another thread already started a new
+   * generation, the compareAndSet fails and the entry is only in the
+   * generation which became the previous one, which is fine.
+   * @param generations The generations from cache_ when the lookup started.
+   */
+  private void
+  putInCache
+    (CacheGenerations generations, int itemNumber, String description)
+  {
+    generations.current.put(itemNumber, description);
+    if (generations.current.size() >= generationSize_)
+      cache_.compareAndSet
+        (generations, new CacheGenerations
+         (new ConcurrentHashMap<Integer, String>(), generations.current));
+  }
+
+  /**
+   * Binary search the sorted item numbers.
+   * @return The index of the item, or -1 if not found.
+   */
+  private int
+  find(int itemNumber)
+  {
+    int low = 0;
+    int high = nItems_ - 1;
+    while (low <= high) {
+      int middle = (low + high) >>> 1;
+      int value = itemNumbers_.get(middle);
+      if (value < itemNumber)
+        low = middle + 1;
+      else if (value > itemNumber)
+        high = middle - 1;
+      else
+        return middle;
+    }
+
+    return -1;
+  }
+
+  /**
+   * Read the line in the TSV file at the offset and return the unescaped
+   * description after the tab.
+   */
+  private String
+  readDescription(long offset) throws IOException
+  {
+    // Use a new buffer for each call so that threads can read at the same time.
+    // A positional read doesn't change the channel's position.
+    byte[] readBuffer = new byte[256];
+    int length = 0;
+    int lineEnd = -1;
+    while (lineEnd < 0) {
+      if (length == readBuffer.length)
+        readBuffer = Arrays.copyOf(readBuffer, 2 * readBuffer.length);
+      int nBytes = tsvChannel_.read
+        (ByteBuffer.wrap(readBuffer, length, readBuffer.length - length),
+         offset + length);
+      if (nBytes < 0) {
+        // The last line has no newline.
+        lineEnd = length;
+        break;
+      }
+
+      for (int i = length; i < length + nBytes; ++i) {
+        if (readBuffer[i] == '\n') {
+          lineEnd = i;
+          break;
+        }
+      }
+      length += nBytes;
+    }
+    if (lineEnd > 0 && readBuffer[lineEnd - 1] == '\r')
+      --lineEnd;
+
+    int tabIndex = 0;
+    while (tabIndex < lineEnd && readBuffer[tabIndex] != '\t')
+      ++tabIndex;
+    if (tabIndex == lineEnd)
+      throw new IOException("The label index doesn't match the TSV file");
+
+    return NuvlWorldStore.fromEscapedString
+      (new String(readBuffer, tabIndex + 1, lineEnd - tabIndex - 1,
+                  StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Check if the index file has the header for this version of the TSV file.
+   */
+  private static boolean
+  isUpToDate(File tsvFile, File indexFile) throws IOException
+  {
+    if (!indexFile.isFile() || indexFile.length() < HEADER_SIZE)
+      return false;
+
+    try (DataInputStream in = new DataInputStream
+           (new FileInputStream(indexFile))) {
+      return in.readInt() == MAGIC && in.readInt() == VERSION &&
+        in.readLong() == tsvFile.length() &&
+        in.readLong() == tsvFile.lastModified();
+    }
+  }
+
+  /**
+   * Scan the TSV file and write the index file. This first writes to a
+   * temporary file and renames it when done. Lines which don't start with a
+   * number and a tab are skipped. If an item number is repeated, use the last
+   * line, the same as loading the descriptions, which replaces. So that the
+   * memory use doesn't depend on the size of the TSV file, this sorts runs of
+   * at most maxRunEntries lines and writes each to a run file, then merges the
+   * run files.
+   * @param maxRunEntries The maximum number of lines to sort in memory.
+   */
+  static void
+  build(File tsvFile, File indexFile, int maxRunEntries) throws IOException
+  {
+    System.out.println("Building the label index " + indexFile);
+    // Each key is the item number in the high int and the entry in the low
+    // int, so that sorting the keys sorts by item number then by line order.
+    long[] keys = new long[Math.min(1024, maxRunEntries)];
+    long[] lineOffsets = new long[keys.length];
+    int nEntries = 0;
+    ArrayList<File> runFiles = new ArrayList<>();
+
+    try {
+      try (FileInputStream file = new FileInputStream(tsvFile);
+           FileChannel channel = file.getChannel()) {
+        long size = channel.size();
+        long windowBegin = 0;
+        while (windowBegin < size) {
+          long windowSize = Math.min(MAX_MAPPED_WINDOW, size - windowBegin);
+          MappedByteBuffer buffer = channel.map
+            (FileChannel.MapMode.READ_ONLY, windowBegin, windowSize);
+          boolean isLastWindow = (windowBegin + windowSize == size);
+
+          int lineBegin = 0;
+          int limit = (int)windowSize;
+          while (lineBegin < limit) {
+            int lineEnd = lineBegin;
+            while (lineEnd < limit && buffer.get(lineEnd) != '\n')
+              ++lineEnd;
+            if (lineEnd == limit && !isLastWindow)
+              // The line continues in the next window.
+              break;
+
+            long itemNumber = parseItemNumber(buffer, lineBegin, lineEnd);
+            if (itemNumber >= 0) {
+              if (nEntries == maxRunEntries) {
+                writeRun(keys, lineOffsets, nEntries, indexFile, runFiles);
+                nEntries = 0;
+              }
+              if (nEntries == keys.length) {
+                int newLength = (int)Math.min(2L * nEntries, maxRunEntries);
+                keys = Arrays.copyOf(keys, newLength);
+                lineOffsets = Arrays.copyOf(lineOffsets, newLength);
+              }
+              keys[nEntries] = (itemNumber << 32) | nEntries;
+              lineOffsets[nEntries] = windowBegin + lineBegin;
+              ++nEntries;
+            }
+            lineBegin = lineEnd + 1;
+          }
+
+          if (lineBegin == 0 && !isLastWindow)
+            throw new IOException
+              ("Line is longer than " + MAX_MAPPED_WINDOW + " bytes in " +
+               tsvFile);
+          windowBegin += Math.min(lineBegin, limit);
+        }
+      }
+
+      // Always write the last run, so that an empty TSV file has one run.
+      writeRun(keys, lineOffsets, nEntries, indexFile, runFiles);
+      keys = null;
+      lineOffsets = null;
+      mergeRuns(tsvFile, indexFile, runFiles);
+    }
+    finally {
+      for (File runFile : runFiles)
+        runFile.delete();
+    }
+  }
+
+  /**
+   * Sort the entries and write a run file of the count and each item number
+   * and line offset, with only the last entry of a repeated item number.
+   * @param runFiles Add the run file to this list before writing it, so that
+   * the caller deletes it even if writing fails.
+   */
+  private static void
+  writeRun
+    (long[] keys, long[] lineOffsets, int nEntries, File indexFile,
+     List<File> runFiles) throws IOException
+  {
+    Arrays.sort(keys, 0, nEntries);
+    // Remove all but the last entry of a repeated item number.
+    int nItems = 0;
+    for (int i = 0; i < nEntries; ++i) {
+      if (i + 1 < nEntries && (keys[i + 1] >>> 32) == (keys[i] >>> 32))
+        continue;
+      keys[nItems++] = keys[i];
+    }
+
+    File runFile = new File(indexFile.getPath() + ".run" + runFiles.size());
+    runFiles.add(runFile);
+    try (DataOutputStream out = new DataOutputStream
+           (new BufferedOutputStream(new FileOutputStream(runFile), 1 << 16))) {
+      out.writeInt(nItems);
+      for (int i = 0; i < nItems; ++i) {
+        out.writeInt((int)(keys[i] >>> 32));
+        out.writeLong(lineOffsets[(int)keys[i]]);
+      }
+    }
+  }
+
+  /**
+   * Merge the sorted run files and write the index file. The item numbers are
+   * written to a temporary index file and the offsets to another temporary
+   * file which is appended when the number of items is known.
+   * @param runFiles The run files in the order of the TSV file, so that a
+   * later run has the later line of a repeated item number.
+   */
+  private static void
+  mergeRuns(File tsvFile, File indexFile, List<File> runFiles)
+    throws IOException
+  {
+    File tempFile = new File(indexFile.getPath() + ".tmp");
+    File offsetsFile = new File(indexFile.getPath() + ".offsets");
+    ArrayList<RunReader> readers = new ArrayList<>();
+    int nItems = 0;
+    try {
+      try (DataOutputStream out = new DataOutputStream
+             (new BufferedOutputStream(new FileOutputStream(tempFile), 1 << 16))) {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(tsvFile.length());
+        out.writeLong(tsvFile.lastModified());
+        // Set nItems below.
+        out.writeInt(0);
+        out.writeInt(0);
+
+        try (DataOutputStream offsetsOut = new DataOutputStream
+               (new BufferedOutputStream
+                (new FileOutputStream(offsetsFile), 1 << 16))) {
+          // Order by item number, then by run so that the last run is last.
+          PriorityQueue<RunReader> queue = new PriorityQueue<>
+            (Math.max(1, runFiles.size()), (a, b) ->
+               a.itemNumber != b.itemNumber ?
+                 Integer.compare(a.itemNumber, b.itemNumber) :
+                 Integer.compare(a.runNumber, b.runNumber));
+          for (int i = 0; i < runFiles.size(); ++i) {
+            RunReader reader = new RunReader(runFiles.get(i), i);
+            readers.add(reader);
+            if (reader.next())
+              queue.add(reader);
+          }
+
+          while (!queue.isEmpty()) {
+            RunReader reader = queue.poll();
+            int itemNumber = reader.itemNumber;
+            long lineOffset = reader.lineOffset;
+            // Each run has an item number once, so the next one is greater.
+            if (reader.next())
+              queue.add(reader);
+            RunReader next = queue.peek();
+            if (next != null && next.itemNumber == itemNumber)
+              // A later run has a later line of the same item.
+              continue;
+
+            out.writeInt(itemNumber);
+            offsetsOut.writeLong(lineOffset);
+            ++nItems;
+          }
+        }
+
+        for (long i = HEADER_SIZE + 4L * nItems; i < getOffsetsPosition(nItems); ++i)
+          out.writeByte(0);
+        Files.copy(offsetsFile.toPath(), out);
+      }
+
+      try (RandomAccessFile file = new RandomAccessFile(tempFile, "rw")) {
+        file.seek(HEADER_SIZE - 8);
+        file.writeInt(nItems);
+      }
+    }
+    finally {
+      for (RunReader reader : readers)
+        reader.close();
+      offsetsFile.delete();
+    }
+
+    Files.move(tempFile.toPath(), indexFile.toPath(),
+               StandardCopyOption.REPLACE_EXISTING);
+    System.out.println("Indexed " + nItems + " items");
+  }
+
+  /**
+   * Parse the item number from the start of the line up to the tab.
+   * @return The item number, or -1 if the line doesn't start with a number
+   * without leading zeros followed by a tab, or the number is too big.
+   */
+  private static long
+  parseItemNumber(ByteBuffer buffer, int lineBegin, int lineEnd)
+  {
+    long itemNumber = 0;
+    int i = lineBegin;
+    for (; i < lineEnd; ++i) {
+      byte b = buffer.get(i);
+      if (b == '\t')
+        break;
+      if (b < '0' || b > '9' || itemNumber > Integer.MAX_VALUE)
+        return -1;
+      itemNumber = itemNumber * 10 + (b - '0');
+    }
+
+    if (i == lineEnd || i == lineBegin || itemNumber > Integer.MAX_VALUE ||
+        (i - lineBegin > 1 && buffer.get(lineBegin) == '0'))
+      return -1;
+    return itemNumber;
+  }
+
+  /**
+   * Get the position in the index file of the offsets, after the item numbers
+   * padded to a multiple of 8 bytes.
+   */
+  private static long
+  getOffsetsPosition(int nItems)
+  {
+    return (HEADER_SIZE + 4L * nItems + 7) & ~7L;
+  }
+
+  /**
+   * CacheGenerations has the current and previous generations of the cache,
+   * which are replaced together.
+   */
+  private static class CacheGenerations {
+    public CacheGenerations
+      (ConcurrentHashMap<Integer, String> current,
+       ConcurrentHashMap<Integer, String> previous)
+    {
+      this.current = current;
+      this.previous = previous;
+    }
+
+    public final ConcurrentHashMap<Integer, String> current;
+    public final ConcurrentHashMap<Integer, String> previous;
+  }
+
+  /**
+   * A RunReader reads the item numbers and line offsets of a run file in
+   * order.
+   */
+  private static class RunReader {
+    public RunReader(File runFile, int runNumber) throws IOException
+    {
+      this.runNumber = runNumber;
+      in_ = new DataInputStream
+        (new BufferedInputStream(new FileInputStream(runFile), 1 << 16));
+      nRemaining_ = in_.readInt();
+    }
+
+    /**
+     * Read the next item number and line offset.
+     * @return True if read, or false if there are no more in the run.
+     */
+    public boolean
+    next() throws IOException
+    {
+      if (nRemaining_ == 0)
+        return false;
+      itemNumber = in_.readInt();
+      lineOffset = in_.readLong();
+      --nRemaining_;
+      return true;
+    }
+
+    public void
+    close() throws IOException { in_.close(); }
+
+    public final int runNumber;
+    public int itemNumber;
+    public long lineOffset;
+    private final DataInputStream in_;
+    private int nRemaining_;
+  }
+
+  private static final int MAGIC = 0x4e574c49;
+  private static final int VERSION = 1;
+  private static final int HEADER_SIZE = 32;
+  private static final long MAX_MAPPED_WINDOW = 1L << 30;
+  /** The number of lines in each sorted run, which uses 64 MB to build. */
+  private static final int MAX_RUN_ENTRIES = 1 << 22;
+  /** The number of longs in each mapped window of offsets_. */
+  private static final int OFFSETS_PER_WINDOW = 1 << 27;
+  /** Cached to mean that the item is not in the TSV file. */
+  private static final String NOT_FOUND = new String("");
+  private final FileChannel tsvChannel_;
+  private final int nItems_;
+  private final IntBuffer itemNumbers_;
+  private final ArrayList<LongBuffer> offsets_ = new ArrayList<>();
+  private final int generationSize_;
+  private final AtomicReference<CacheGenerations> cache_ =
+    new AtomicReference<>(new CacheGenerations
+      (new ConcurrentHashMap<Integer, String>(),
+       new ConcurrentHashMap<Integer, String>()));
+}
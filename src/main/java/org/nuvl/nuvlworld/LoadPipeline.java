@@ -0,0 +1,402 @@
+/*
+Copyright (C) 2017 Jeff Thompson
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+
+package org.nuvl.nuvlworld;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A LoadPipeline loads a line-oriented file in three stages which are
+ * connected by bounded queues:
+ * <ul>
+ * <li>A reader thread reads the input into batches of whole lines. If there
+ * are multiple inputs, each has its own reader thread and queue so that they
+ * are read and parsed at the same time.</li>
+ * <li>A pool of parser threads parse each batch with the Parser. This must
+ * not change the store.</li>
+ * <li>The thread which calls run is the writer. It takes the parsed batches
+ * in the order of the inputs and file order and gives them to the Writer,
+ * which is the only stage that changes the store.</li>
+ * </ul>
+ * The reader waits if the queue of batches waiting for the writer is full, so
+ * a slow parser or writer holds back the reader instead of filling memory.
+ * Each stage keeps counters of the bytes, busy time and waiting time, and
+ * toString() summarizes them so that it is easy to see which stage is the
+ * bottleneck.
+ * @param <T> The type of the result of parsing a batch.
+ * @author Jeff Thompson, jeff@thefirst.org
+ */
+public class LoadPipeline<T> {
+  public interface Parser<T> {
+    /**
+     * Parse the lines in bytes from 0 to length. This is called on a parser
+     * thread.
+     * @param bytes The bytes of the lines. The last line ends with a newline,
+     * except maybe at the end of the input.
+     * @param length The number of bytes.
+     * @return The parsed result, which is given to the Writer.
+     */
+    T parse(byte[] bytes, int length) throws IOException;
+  }
+
+  public interface Writer<T> {
+    /**
+     * Add the parsed result to the store. This is called on the thread which
+     * called run, in the order of the input.
+     * @param result The result from the Parser.
+     */
+    void write(T result) throws IOException;
+  }
+
+  /**
+   * Create a LoadPipeline.
+   * @param name The name to show in toString(), such as the file path.
+   * @param nParsers The number of parser threads.
+   */
+  public LoadPipeline(String name, int nParsers)
+  {
+    name_ = name;
+    nParsers_ = Math.max(1, nParsers);
+  }
+
+  /**
+   * Read all of the input through the pipeline, returning when the Writer has
+   * written the last batch. A LoadPipeline should only be run once.
+   * @param input The input to read. This does not close it.
+   * @param parser The Parser to call on the parser threads.
+   * @param writer The Writer to call on this thread.
+   * @throws IOException for an error from the input, parser or writer.
+   */
+  public void
+  run(InputStream input, Parser<T> parser, Writer<T> writer) throws IOException
+  {
+    run(Collections.singletonList(input), parser, writer);
+  }
+
+  /**
+   * Read all of the inputs through the pipeline at the same time, returning
+   * when the Writer has written the last batch. The Writer gets all the
+   * batches of the first input, then all the batches of the next input, etc.,
+   * so the result is the same as running each input in order. A LoadPipeline
+   * should only be run once.
+   * @param inputs The inputs to read. This does not close them.
+   * @param parser The Parser to call on the parser threads, which are shared
+   * by all the inputs.
+   * @param writer The Writer to call on this thread.
+   * @throws IOException for an error from an input, parser or writer.
+   */
+  public void
+  run(List<InputStream> inputs, final Parser<T> parser, Writer<T> writer)
+    throws IOException
+  {
+    long startNanos = System.nanoTime();
+    final ExecutorService executor = Executors.newFixedThreadPool(nParsers_);
+    ArrayList<Thread> readers = new ArrayList<>();
+    ArrayList<BlockingQueue<Future<Parsed<T>>>> queues = new ArrayList<>();
+    for (int i = 0; i < inputs.size(); ++i) {
+      final InputStream input = inputs.get(i);
+      final BlockingQueue<Future<Parsed<T>>> queue =
+        new ArrayBlockingQueue<>(getQueueCapacity());
+      queues.add(queue);
+      Thread reader = new Thread
+        (() -> read(input, parser, executor, queue),
+         "LoadPipeline reader " + name_ + " " + i);
+      reader.setDaemon(true);
+      readers.add(reader);
+    }
+    for (Thread reader : readers)
+      reader.start();
+
+    try {
+      for (BlockingQueue<Future<Parsed<T>>> queue : queues)
+        write(queue, writer);
+    }
+    finally {
+      for (Thread reader : readers)
+        reader.interrupt();
+      executor.shutdownNow();
+      try {
+        for (Thread reader : readers)
+          reader.join();
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      }
+      elapsedNanos_ = System.nanoTime() - startNanos;
+    }
+  }
+
+  /** Get the number of bytes read by the reader stage. */
+  public long getReadBytes() { return readBytes_.get(); }
+
+  /** Get the nanoseconds that the readers spent reading the inputs. */
+  public long getReadNanos() { return readNanos_.get(); }
+
+  /**
+   * Get the nanoseconds that the readers waited because a queue was full,
+   * meaning that the parsers or writer are slower.
+   */
+  public long getReaderBlockedNanos() { return readerBlockedNanos_.get(); }
+
+  /** Get the total nanoseconds that all the parser threads spent parsing. */
+  public long getParseNanos() { return parseNanos_.get(); }
+
+  /** Get the number of batches which the writer has written. */
+  public long getWrittenBatches() { return writtenBatches_; }
+
+  /** Get the number of bytes of the batches which the writer has written. */
+  public long getWrittenBytes() { return writtenBytes_; }
+
+  /** Get the nanoseconds that the writer spent in the Writer. */
+  public long getWriteNanos() { return writeNanos_; }
+
+  /**
+   * Get the nanoseconds that the writer waited for the next parsed batch,
+   * meaning that the reader or parsers are slower.
+   */
+  public long getWriterWaitNanos() { return writerWaitNanos_; }
+
+  /**
+   * Get the average number of batches in the queue when the writer takes the
+   * next batch. If this is near getQueueCapacity(), then the writer is the
+   * bottleneck. If it is near zero, then the reader or parsers are.
+   */
+  public double
+  getAverageQueueDepth()
+  {
+    return writtenBatches_ == 0 ? 0 : (double)queueDepthSum_ / writtenBatches_;
+  }
+
+  /** Get the maximum number of batches seen in the queue by the writer. */
+  public int getMaxQueueDepth() { return maxQueueDepth_; }
+
+  /** Get the capacity of the queue for each input. */
+  public int getQueueCapacity() { return QUEUE_BATCHES_PER_PARSER * nParsers_; }
+
+  @Override
+  public String
+  toString()
+  {
+    double megabytes = readBytes_.get() / 1e6;
+    return String.format
+      ("%s: %.1f MB in %.2f s. Reader: %.1f MB/s, blocked %.2f s by a full queue." +
+       " Parsers (%d): %.1f MB/s each, busy %.2f s total." +
+       " Writer: %.1f MB/s, busy %.2f s, waited %.2f s for parsed batches." +
+       " Queue depth: average %.1f, max %d of %d.",
+       name_, megabytes, elapsedNanos_ / 1e9,
+       rate(megabytes, readNanos_.get()), readerBlockedNanos_.get() / 1e9,
+       nParsers_, rate(megabytes, parseNanos_.get()), parseNanos_.get() / 1e9,
+       rate(writtenBytes_ / 1e6, writeNanos_), writeNanos_ / 1e9,
+       writerWaitNanos_ / 1e9,
+       getAverageQueueDepth(), maxQueueDepth_, getQueueCapacity());
+  }
+
+  /**
+   * Take the parsed batches from the queue and give them to the writer until
+   * the end of the input.
+   */
+  private void
+  write(BlockingQueue<Future<Parsed<T>>> queue, Writer<T> writer)
+    throws IOException
+  {
+    while (true) {
+      int depth = queue.size();
+      queueDepthSum_ += depth;
+      maxQueueDepth_ = Math.max(maxQueueDepth_, depth);
+
+      long waitBeginNanos = System.nanoTime();
+      Future<Parsed<T>> future;
+      try {
+        future = queue.take();
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException(ex.getMessage());
+      }
+      if (future == end_) {
+        writerWaitNanos_ += System.nanoTime() - waitBeginNanos;
+        IOException readError = readErrors_.get(queue);
+        if (readError != null)
+          throw readError;
+        return;
+      }
+      Parsed<T> parsed = getParsed(future);
+      long writeBeginNanos = System.nanoTime();
+      writerWaitNanos_ += writeBeginNanos - waitBeginNanos;
+
+      writer.write(parsed.result);
+      writeNanos_ += System.nanoTime() - writeBeginNanos;
+      ++writtenBatches_;
+      writtenBytes_ += parsed.nBytes;
+    }
+  }
+
+  /**
+   * This runs in a reader thread to read batches of lines, submit them to the
+   * executor and put the futures in the queue, ending with end_.
+   */
+  private void
+  read(InputStream input, final Parser<T> parser, ExecutorService executor,
+       BlockingQueue<Future<Parsed<T>>> queue)
+  {
+    try {
+      try {
+        byte[] bytes = new byte[BATCH_BYTES];
+        int length = 0;
+        boolean isEnd = false;
+        while (!isEnd) {
+          // Fill the batch.
+          long readBeginNanos = System.nanoTime();
+          while (length < bytes.length) {
+            int nBytes = input.read(bytes, length, bytes.length - length);
+            if (nBytes < 0) {
+              isEnd = true;
+              break;
+            }
+            length += nBytes;
+            readBytes_.addAndGet(nBytes);
+          }
+          readNanos_.addAndGet(System.nanoTime() - readBeginNanos);
+
+          // Find the end of the last whole line.
+          int batchLength = length;
+          if (!isEnd) {
+            while (batchLength > 0 && bytes[batchLength - 1] != '\n')
+              --batchLength;
+            if (batchLength == 0) {
+              // A line is longer than the batch.
+              bytes = Arrays.copyOf(bytes, 2 * bytes.length);
+              continue;
+            }
+          }
+          if (batchLength == 0)
+            break;
+
+          // Move the partial line to the next batch.
+          byte[] nextBytes = new byte[Math.max(BATCH_BYTES, length - batchLength)];
+          System.arraycopy
+            (bytes, batchLength, nextBytes, 0, length - batchLength);
+          length -= batchLength;
+
+          final byte[] batch = bytes;
+          final int finalBatchLength = batchLength;
+          Future<Parsed<T>> future = executor.submit(() -> {
+            long parseBeginNanos = System.nanoTime();
+            Parsed<T> parsed = new Parsed<>
+              (parser.parse(batch, finalBatchLength), finalBatchLength);
+            parseNanos_.addAndGet(System.nanoTime() - parseBeginNanos);
+            return parsed;
+          });
+          long putBeginNanos = System.nanoTime();
+          queue.put(future);
+          readerBlockedNanos_.addAndGet(System.nanoTime() - putBeginNanos);
+
+          bytes = nextBytes;
+        }
+      } catch (IOException ex) {
+        readErrors_.put(queue, ex);
+      } catch (RejectedExecutionException ex) {
+        // The writer stopped and shut down the executor.
+        return;
+      }
+
+      queue.put(end_);
+    } catch (InterruptedException ex) {
+      // The writer stopped.
+    }
+  }
+
+  /**
+   * Wait for the future and return its result, unwrapping the exception from
+   * the parser thread.
+   */
+  private static <T> Parsed<T>
+  getParsed(Future<Parsed<T>> future) throws IOException
+  {
+    try {
+      return future.get();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException(ex.getMessage());
+    } catch (ExecutionException ex) {
+      Throwable cause = ex.getCause();
+      if (cause instanceof IOException)
+        throw (IOException)cause;
+      if (cause instanceof RuntimeException)
+        throw (RuntimeException)cause;
+      if (cause instanceof Error)
+        throw (Error)cause;
+      throw new IOException(cause);
+    }
+  }
+
+  private static double
+  rate(double megabytes, long nanos)
+  {
+    return nanos == 0 ? 0 : megabytes / (nanos / 1e9);
+  }
+
+  private static class Parsed<T> {
+    public Parsed(T result, int nBytes)
+    {
+      this.result = result;
+      this.nBytes = nBytes;
+    }
+
+    public final T result;
+    public final int nBytes;
+  }
+
+  private static final int BATCH_BYTES = 1 << 20;
+  private static final int QUEUE_BATCHES_PER_PARSER = 2;
+  private final String name_;
+  private final int nParsers_;
+  /** Put by the reader after the last batch. */
+  private final Future<Parsed<T>> end_ = CompletableFuture.completedFuture(null);
+  /** key: queue, value: the error set by its reader before it puts end_. */
+  private final Map<BlockingQueue<Future<Parsed<T>>>, IOException> readErrors_ =
+    new ConcurrentHashMap<>();
+  // Updated by the reader threads.
+  private final AtomicLong readBytes_ = new AtomicLong();
+  private final AtomicLong readNanos_ = new AtomicLong();
+  private final AtomicLong readerBlockedNanos_ = new AtomicLong();
+  // Updated by the parser threads.
+  private final AtomicLong parseNanos_ = new AtomicLong();
+  // Updated by the writer thread.
+  private volatile long writtenBatches_ = 0;
+  private volatile long writtenBytes_ = 0;
+  private volatile long writeNanos_ = 0;
+  private volatile long writerWaitNanos_ = 0;
+  private long queueDepthSum_ = 0;
+  private int maxQueueDepth_ = 0;
+  private long elapsedNanos_ = 0;
+}
@@ -18,6 +18,11 @@ package org.nuvl.nuvlworld;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.DoubleConsumer;
+import javax.swing.SwingUtilities;
 import org.nuvl.nuvlworld.gui.NuvlCalendarFrame;
 
 /**
@@ -33,22 +38,183 @@ public class NuvlWorldApp {
   public static void main (String args[]) throws IOException
   {
     NuvlWorldPreferences preferences = new NuvlWorldPreferences("Jefft0");
-    NuvlWorldStore store = new NuvlWorldStore();
 
     String wikidataDir = "/home/jeff/wikidata";
-    store.loadSchemeFile(new File(wikidataDir, "locationIanaTimeZone.scm").getAbsolutePath());
-    store.loadSchemeFile(new File(wikidataDir, "iataAirportCode.scm").getAbsolutePath());
-    store.loadSchemeFile(new File(wikidataDir, "ianaTimeZoneInstanceOf.scm").getAbsolutePath());
-    store.loadSchemeFile(new File(wikidataDir, "jefft0.scm").getAbsolutePath());
-    store.loadWikidataDescriptions
-      (new File(wikidataDir, "itemEnLabel.tsv").getAbsolutePath());
+    List<String> schemeFiles = Arrays.asList
+      (new File(wikidataDir, "locationIanaTimeZone.scm").getAbsolutePath(),
+       new File(wikidataDir, "iataAirportCode.scm").getAbsolutePath(),
+       new File(wikidataDir, "ianaTimeZoneInstanceOf.scm").getAbsolutePath(),
+       new File(wikidataDir, "jefft0.scm").getAbsolutePath());
+    String descriptionsFile =
+      new File(wikidataDir, "itemEnLabel.tsv").getAbsolutePath();
+    // With -Dnuvlworld.labelIndex=true, look up descriptions on demand with a
+    // LabelIndex instead of loading them.
+    String labelIndexFile = null;
+    if (Boolean.getBoolean("nuvlworld.labelIndex"))
+      labelIndexFile =
+        new File(wikidataDir, "itemEnLabel.idx").getAbsolutePath();
+    List<String> sourceFiles = new ArrayList<>(schemeFiles);
+    if (labelIndexFile == null)
+      // The descriptions are in the snapshot.
+      sourceFiles.add(descriptionsFile);
+    String snapshotFile =
+      new File(wikidataDir, "nuvlworld.snapshot").getAbsolutePath();
 
+    EventLog eventLog = null;
     try {
-      NuvlCalendarFrame frame = new NuvlCalendarFrame(store, preferences);
-      frame.pack();
-      frame.setVisible(true);
-    } catch (Exception ex) {
-      ex.printStackTrace();
+      eventLog = new EventLog
+        (new File(wikidataDir, "nuvlworld.log").getAbsolutePath());
+
+      final EventLog finalEventLog = eventLog;
+      // Write any waiting events when the frame exits.
+      Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+        try {
+          finalEventLog.close();
+        } catch (IOException ex) {
+          System.out.println("Error closing the event log: " + ex);
+        }
+      }));
+    } catch (IOException ex) {
+      System.out.println("Can't open the event log, so new events won't be saved: " + ex);
+    }
+
+    // Show the frame right away with an empty store. This main thread loads
+    // the data in stages and gives it to the frame on the event dispatch thread.
+    final NuvlCalendarFrame frame = new NuvlCalendarFrame
+      (new NuvlWorldStore(), preferences, eventLog);
+    frame.setSolverParallelism(Runtime.getRuntime().availableProcessors());
+    frame.setLoadingProgress("Loading events", -1);
+    frame.pack();
+    frame.setVisible(true);
+
+    try {
+      loadInStages
+        (frame, schemeFiles, descriptionsFile, labelIndexFile, sourceFiles,
+         snapshotFile, eventLog);
+    } catch (IOException ex) {
+      SwingUtilities.invokeLater(() -> frame.setLoadingProgress
+        ("Error loading: " + ex.getMessage(), 0));
+      throw ex;
     }
   }
+
+  /**
+   * Load the snapshot if it is up to date. Otherwise load the event and time
+   * facts from the Scheme files, give the store to the frame, then load the
+   * descriptions while the frame is showing them in batches. But if
+   * labelIndexFile is not null, open (or build) the LabelIndex instead of
+   * loading the descriptions. Replay the event
+   * log before giving the store to the frame. Finally, save the snapshot and
+   * tell the frame that loading is finished.
+   * While loading descriptions, the frame only reads the store, and its New
+   * Event menu item is disabled so that this is the only thread which changes
+   * the store.
+   */
+  private static void
+  loadInStages
+    (final NuvlCalendarFrame frame, List<String> schemeFiles,
+     String descriptionsFile, String labelIndexFile, List<String> sourceFiles,
+     String snapshotFile, EventLog eventLog) throws IOException
+  {
+    final NuvlWorldStore store = new NuvlWorldStore();
+    // Declare the indexes before loading so that they are filled while loading.
+    store.addSecondaryIndex("iataAirportCode", 3);
+
+    boolean loadedSnapshot = false;
+    try {
+      loadedSnapshot = store.loadSnapshot(snapshotFile, sourceFiles);
+    } catch (IOException ex) {
+      System.out.println("Can't load the snapshot, so load the source files: " + ex);
+    }
+
+    int nThreads = Runtime.getRuntime().availableProcessors();
+    if (!loadedSnapshot)
+      // Load the files at the same time. The descriptions are loaded below,
+      // after all the facts which decide which descriptions are kept.
+      store.loadSchemeFiles(schemeFiles, nThreads);
+
+    // Replay the events which were saved after the source files. Replaying
+    // is repeatable because adding an existing triple does nothing, so it is
+    // OK if the snapshot saved below already has some of the events.
+    if (eventLog != null) {
+      int nEvents = eventLog.replay(store);
+      System.out.println("Replayed " + nEvents + " events from the event log");
+    }
+
+    SwingUtilities.invokeLater(() -> frame.setStore(store));
+
+    if (labelIndexFile != null) {
+      SwingUtilities.invokeLater
+        (() -> frame.setLoadingProgress("Indexing descriptions", -1));
+      final LabelIndex labelIndex = new LabelIndex
+        (descriptionsFile, labelIndexFile, LABEL_CACHE_SIZE);
+      // Close the TSV file when the frame exits.
+      Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+        try {
+          labelIndex.close();
+        } catch (IOException ex) {
+          System.out.println("Error closing the label index: " + ex);
+        }
+      }));
+      store.descriptions_.setLabelIndex(labelIndex);
+      SwingUtilities.invokeLater(() -> frame.refreshDescriptions());
+    }
+
+    if (!loadedSnapshot) {
+      if (labelIndexFile == null)
+        store.loadWikidataDescriptions
+          (descriptionsFile, nThreads, new DescriptionsProgress(frame, store));
+
+      SwingUtilities.invokeLater
+        (() -> frame.setLoadingProgress("Saving snapshot", -1));
+      try {
+        store.saveSnapshot(snapshotFile, sourceFiles);
+      } catch (IOException ex) {
+        System.out.println("Can't save the snapshot: " + ex);
+      }
+    }
+
+    SwingUtilities.invokeLater(() -> frame.setLoadingProgress(null, 0));
+  }
+
+  /**
+   * DescriptionsProgress is called by the description loader. It updates the
+   * frame's progress bar and refreshes the days panel with the new
+   * descriptions, but not more often than every REFRESH_MILLIS.
+   */
+  private static class DescriptionsProgress implements DoubleConsumer {
+    public DescriptionsProgress(NuvlCalendarFrame frame, NuvlWorldStore store)
+    {
+      frame_ = frame;
+      store_ = store;
+    }
+
+    @Override
+    public void
+    accept(double fraction)
+    {
+      long now = System.currentTimeMillis();
+      if (now - lastRefreshMillis_ < REFRESH_MILLIS && fraction < 1.0)
+        return;
+      lastRefreshMillis_ = now;
+
+      final int percent = (int)(100 * fraction);
+      int nDescriptions = store_.descriptions_.size();
+      final boolean isChanged = (nDescriptions != lastDescriptionCount_);
+      lastDescriptionCount_ = nDescriptions;
+      SwingUtilities.invokeLater(() -> {
+        frame_.setLoadingProgress("Loading descriptions", percent);
+        if (isChanged)
+          frame_.refreshDescriptions();
+      });
+    }
+
+    private final NuvlCalendarFrame frame_;
+    private final NuvlWorldStore store_;
+    private long lastRefreshMillis_ = 0;
+    private int lastDescriptionCount_ = 0;
+    private static final long REFRESH_MILLIS = 1000;
+  }
+
+  private static final int LABEL_CACHE_SIZE = 10000;
 }
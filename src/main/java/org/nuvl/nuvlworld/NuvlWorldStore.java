@@ -19,25 +19,62 @@ package org.nuvl.nuvlworld;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDate;
 import java.time.LocalTime;
+import java.time.ZoneId;
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.TimeZone;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.DoubleConsumer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import org.nuvl.argue.aba_plus.Sentence;
 
 /**
  * A NuvlWorldStore holds a set of aba_plus Sentences plus other cached values
- * needed by the application.
+ * needed by the application. To save memory, each distinct term is stored
+ * once in a TermDictionary and each sentence is stored as a triple of term IDs
+ * in a TripleTable. A Sentence object is only made when requested, for
+ * example by getSentencesByPredicate.
+ * <p>
+ * The store is safe to use from multiple threads. Each method which changes
+ * the store, such as addSentence or a load method, holds the write lock so
+ * that only one thread writes at a time, and readers see each change as a
+ * whole. (A load publishes its changes in batches.) The term and triple data
+ * is append-only, so a triple number stays valid after it is removed.
+ * Queries and methods like getSentencesByPredicate hold the read lock while
+ * they find the triples and return a copy, so the result doesn't change if
+ * sentences are added later. The methods used to render the calendar,
+ * overlapsDate, overlapsRange and descriptions_.getOrDefault, never take a
+ * lock. They read the immutable EventTimeIndex which the writer publishes
+ * with a volatile write when it releases the write lock.
  * @author Jeff Thompson, jeff@thefirst.org
  */
 public class NuvlWorldStore {
@@ -47,15 +84,18 @@ public class NuvlWorldStore {
 
   /**
    * Read filePath as a list of Scheme triples where the first term is the
-   * predicate, and add to sentencesByPredicate_ and sentencesByArg2_.
+   * predicate, and add to the store indexed by predicate and arg2.
    * However, if the predicate is "description", then only add to descriptions_
-   * if the  subject is already in sentencesByArg2_.
-   * @param filePath The Scheme file to read.
+   * if the  subject is already an arg2 in the store (see hasArg2).
+   * @param filePath The Scheme file to read. If it ends in ".gz", it is
+   * decompressed while reading.
    */
   public void
   loadSchemeFile(String filePath) throws FileNotFoundException, IOException
   {
-    try (FileReader file = new FileReader(filePath);
+    SchemeTokenizer tokenizer = new SchemeTokenizer();
+    lockForWrite();
+    try (Reader file = openReader(filePath);
             BufferedReader reader = new BufferedReader(file)) {
     int nLines = 0;
       String line;
@@ -63,76 +103,110 @@ public class NuvlWorldStore {
         ++nLines;
         if (nLines % 1000000 == 0)
           System.out.println("Loading " + filePath + ", line " + nLines);
+        if (nLines % WRITE_BATCH_LINES == 0) {
+          // Publish the lines so far and let readers in.
+          unlockForWrite();
+          lockForWrite();
+        }
 
-        if (line.equals("") || line.startsWith(";"))
+        if (!parseSchemeLine(line, tokenizer))
           continue;
 
-        String predicate;
-        String arg2;
-        Matcher matcher = termPattern_.matcher(line);
-        if (matcher.find()) {
-          predicate = matcher.group(1);
-          arg2 = matcher.group(2);
-        }
-        else {
-          matcher = termPattern4_.matcher(line);
-          if (matcher.find()) {
-            predicate = matcher.group(1);
-            arg2 = matcher.group(2);
-          }
-          else {
-            matcher = integerPattern_.matcher(line);
-            if (matcher.find()) {
-              predicate = matcher.group(1);
-              arg2 = matcher.group(2);
-            }
-            else {
-              matcher = stringPattern_.matcher(line);
-              if (matcher.find()) {
-                predicate = matcher.group(1);
-                arg2 = matcher.group(2);
-
-                if (predicate.equals("description")) {
-                  if (!sentencesByArg2_.containsKey(arg2))
-                    // Don't add extraneous descriptions, to save memory.
-                    continue;
-
-                  descriptions_.put
-                    (matcher.group(2), fromEscapedString(matcher.group(3)));
-                  // Don't add to sentencesByPredicate_, etc.
-                  continue;
-                }
-              }
-              else
-                throw new Error("Unrecognized Scheme pattern: " + line);
-            }
-          }
+        if (isDescription(tokenizer)) {
+          addDescription(tokenizer.getArg2(), tokenizer.getLiteral());
+          // Don't add to the triples.
+          continue;
         }
 
-        Sentence sentence = new Sentence(line, false);
-        Set<Sentence> sentenceSet = sentencesByPredicate_.get(predicate);
-        if (sentenceSet == null)
-          sentencesByPredicate_.put(predicate, (sentenceSet = new HashSet()));
-        sentenceSet.add(sentence);
-
-        sentenceSet = sentencesByArg2_.get(arg2);
-        if (sentenceSet == null)
-          sentencesByArg2_.put(arg2, (sentenceSet = new HashSet()));
-        sentenceSet.add(sentence);
+        addTriple(tokenizer.getPredicate(), tokenizer.getArg2(),
+                  tokenizer.getRest());
       }
     }
+    finally {
+      unlockForWrite();
+    }
+  }
+
+  /**
+   * Do the same as loadSchemeFile(filePath), but load through a LoadPipeline
+   * which reads batches of lines, parses them on a pool of nThreads parser
+   * threads and adds the parsed batches to the store in file order, so the
+   * result is identical to the sequential loadSchemeFile(filePath). This
+   * prints the LoadPipeline counters when done.
+   * @param filePath The Scheme file to read. If it ends in ".gz", it is
+   * decompressed while reading.
+   * @param nThreads The number of parser threads. If this is 1 or less, just
+   * call loadSchemeFile(filePath).
+   */
+  public void
+  loadSchemeFile(String filePath, int nThreads)
+    throws FileNotFoundException, IOException
+  {
+    if (nThreads <= 1) {
+      loadSchemeFile(filePath);
+      return;
+    }
+
+    loadSchemeFiles(Collections.singletonList(filePath), nThreads);
+  }
+
+  /**
+   * Load all the Scheme files at the same time through one LoadPipeline. Each
+   * file has its own reader thread and they share a pool of nThreads parser
+   * threads. Only adding to the store is in order: this thread adds all the
+   * parsed batches of the first file, then the next file, etc. So the result
+   * is identical to calling loadSchemeFile(filePath) for each file in order,
+   * including the triple numbers and which descriptions are kept. This prints
+   * the LoadPipeline counters when done.
+   * @param filePaths The Scheme files to read. If a file ends in ".gz", it is
+   * decompressed while reading.
+   * @param nThreads The number of parser threads.
+   */
+  public void
+  loadSchemeFiles(List<String> filePaths, int nThreads)
+    throws FileNotFoundException, IOException
+  {
+    LoadPipeline<SchemeChunk> pipeline = new LoadPipeline<>
+      (filePaths.size() == 1 ? filePaths.get(0) : filePaths.toString(),
+       nThreads);
+    ArrayList<InputStream> inputs = new ArrayList<>();
+    try {
+      for (String filePath : filePaths)
+        inputs.add(openInputStream(filePath));
+
+      pipeline.run
+        (inputs, NuvlWorldStore::parseSchemeChunk, (chunk) -> {
+          lockForWrite();
+          try {
+            mergeSchemeChunk(chunk);
+          }
+          finally {
+            unlockForWrite();
+          }
+        });
+    }
+    finally {
+      for (InputStream input : inputs)
+        input.close();
+    }
+    System.out.println(pipeline);
   }
 
   /**
    * Read filePath as a list of tab-separated values of ID and description,
    * and add to descriptions_ where the subject is "Q" + ID. But to save memory,
-   * only add if the subject is already in sentencesByArg2_.
-   * @param filePath The TSV file to read.
+   * only add if the subject is already an arg2 in the store.
+   * @param filePath The TSV file to read. If it ends in ".gz", it is
+   * decompressed while reading.
    */
   public void
   loadWikidataDescriptions(String filePath) throws FileNotFoundException, IOException
   {
-    try (FileReader file = new FileReader(filePath);
+    BitSet wantedItems = getWantedWikidataItems();
+    // Add in batches so that each write lock and update of the event time
+    // index is for many descriptions, the same as the pipelined loader.
+    DescriptionBatch batch = new DescriptionBatch();
+    try (Reader file = openReader(filePath);
             BufferedReader reader = new BufferedReader(file)) {
     int nLines = 0;
       String line;
@@ -140,25 +214,1046 @@ public class NuvlWorldStore {
         ++nLines;
         if (nLines % 10000000 == 0)
           System.out.println("Loading " + filePath + ", line " + nLines);
+        if (nLines % WRITE_BATCH_LINES == 0)
+          addDescriptionBatch(batch);
 
         int tabIndex = line.indexOf('\t');
-        String subject = "Q" + line.substring(0, tabIndex);
+        long id = parseWikidataItemNumber(line, tabIndex);
+        if (id >= 0) {
+          if (!isWantedWikidataItem(wantedItems, id))
+            // Don't add extraneous descriptions, to save memory.
+            continue;
+        }
+        else if (tabIndex < 0)
+          continue;
+        else
+          // addDescriptionBatch checks hasArg2.
+          batch.isUnchecked.set(batch.subjects.size());
+
+        batch.subjects.add("Q" + line.substring(0, tabIndex));
+        batch.descriptions.add(fromEscapedString(line.substring(tabIndex + 1)));
+      }
+    }
+
+    addDescriptionBatch(batch);
+  }
+
+  /**
+   * Do the same as loadWikidataDescriptions(filePath), but memory-map the file
+   * and scan its bytes. The numeric ID is parsed from the bytes, and the
+   * description is only decoded as UTF-8 and unescaped if the subject is
+   * wanted, so the lines which are skipped don't make any objects. (A gzip file
+   * can't be mapped, so its lines are scanned in the decompressed blocks.)
+   * @param filePath The TSV file to read.
+   */
+  public void
+  loadWikidataDescriptionsMapped(String filePath)
+    throws FileNotFoundException, IOException
+  {
+    loadWikidataDescriptionsMapped(filePath, null);
+  }
+
+  /**
+   * Do the same as loadWikidataDescriptionsMapped(filePath), but periodically
+   * call onProgress so that the caller can show the descriptions loaded so far.
+   * @param filePath The TSV file to read.
+   * @param onProgress This is called with the fraction of the file read so far,
+   * from 0.0 to 1.0, from the thread which is loading. If null, don't call.
+   */
+  public void
+  loadWikidataDescriptionsMapped(String filePath, DoubleConsumer onProgress)
+    throws FileNotFoundException, IOException
+  {
+    if (isGzip(filePath)) {
+      // A gzip file can't be mapped.
+      loadWikidataDescriptions(filePath, 1, onProgress);
+      return;
+    }
+
+    BitSet wantedItems = getWantedWikidataItems();
+    DescriptionBatch batch = new DescriptionBatch();
+    try (FileInputStream file = new FileInputStream(filePath);
+         FileChannel channel = file.getChannel()) {
+      long size = channel.size();
+      long nLines = 0;
+      long windowBegin = 0;
+      while (windowBegin < size) {
+        long windowSize = Math.min(MAX_MAPPED_WINDOW, size - windowBegin);
+        MappedByteBuffer buffer = channel.map
+          (FileChannel.MapMode.READ_ONLY, windowBegin, windowSize);
+        boolean isLastWindow = (windowBegin + windowSize == size);
+
+        int lineBegin = 0;
+        int limit = (int)windowSize;
+        while (lineBegin < limit) {
+          int lineEnd = lineBegin;
+          while (lineEnd < limit && buffer.get(lineEnd) != '\n')
+            ++lineEnd;
+          if (lineEnd == limit && !isLastWindow)
+            // The line continues in the next window.
+            break;
+
+          ++nLines;
+          if (nLines % 10000000 == 0)
+            System.out.println("Loading " + filePath + ", line " + nLines);
+          if (onProgress != null && nLines % PROGRESS_LINES == 0) {
+            addDescriptionBatch(batch);
+            onProgress.accept((double)(windowBegin + lineBegin) / size);
+          }
 
-        if (!sentencesByArg2_.containsKey(subject))
+          parseDescriptionLine(buffer, lineBegin, lineEnd, wantedItems, batch);
+          lineBegin = lineEnd + 1;
+        }
+        // The descriptions are decoded, so they don't use the mapped window.
+        addDescriptionBatch(batch);
+
+        if (lineBegin == 0 && !isLastWindow)
+          throw new IOException
+            ("Line is longer than " + MAX_MAPPED_WINDOW + " bytes in " + filePath);
+        windowBegin += Math.min(lineBegin, limit);
+      }
+    }
+
+    if (onProgress != null)
+      onProgress.accept(1.0);
+  }
+
+  /**
+   * Do the same as loadWikidataDescriptions(filePath), but load through a
+   * LoadPipeline which reads batches of lines, parses them (including decoding
+   * UTF-8 and unescaping the wanted descriptions) on a pool of nThreads parser
+   * threads, and adds them to descriptions_ in file order. This prints the
+   * LoadPipeline counters when done.
+   * @param filePath The TSV file to read. If it ends in ".gz", it is
+   * decompressed while reading.
+   * @param nThreads The number of parser threads.
+   * @param onProgress This is called with the fraction of the file read so far,
+   * from 0.0 to 1.0, from the thread which is loading, after adding each
+   * batch. If null, don't call.
+   */
+  public void
+  loadWikidataDescriptions
+    (String filePath, int nThreads, final DoubleConsumer onProgress)
+    throws FileNotFoundException, IOException
+  {
+    final BitSet wantedItems = getWantedWikidataItems();
+    final LoadPipeline<DescriptionBatch> pipeline =
+      new LoadPipeline<>(filePath, nThreads);
+    final long size = new File(filePath).length();
+    try (final InputStream input = openInputStream(filePath)) {
+      pipeline.run
+        (input,
+         (bytes, length) -> parseDescriptionLines(bytes, length, wantedItems),
+         (batch) -> {
+           addDescriptionBatch(batch);
+           if (onProgress != null) {
+             if (input instanceof PipelinedGzipInputStream)
+               onProgress.accept
+                 (((PipelinedGzipInputStream)input).getCompressedFraction());
+             else
+               onProgress.accept
+                 (size == 0 ? 1.0 : (double)pipeline.getWrittenBytes() / size);
+           }
+         });
+    }
+    System.out.println(pipeline);
+
+    if (onProgress != null)
+      onProgress.accept(1.0);
+  }
+
+  /**
+   * The wanted descriptions parsed from a batch of lines of the TSV file.
+   */
+  private static class DescriptionBatch {
+    public final ArrayList<String> subjects = new ArrayList<>();
+    public final ArrayList<String> descriptions = new ArrayList<>();
+    /**
+     * The index in subjects of each subject which was not checked with the
+     * wanted items BitSet, so addDescriptionBatch must check hasArg2.
+     */
+    public final BitSet isUnchecked = new BitSet();
+  }
+
+  /**
+   * Parse the lines of the TSV file in the bytes. This doesn't change the store
+   * so that it can be called from a parser thread.
+   * @param bytes The bytes of whole lines.
+   * @param length The number of bytes.
+   * @param wantedItems The BitSet from getWantedWikidataItems().
+   * @return The new DescriptionBatch.
+   */
+  private static DescriptionBatch
+  parseDescriptionLines(byte[] bytes, int length, BitSet wantedItems)
+  {
+    DescriptionBatch batch = new DescriptionBatch();
+    ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, length);
+    int lineBegin = 0;
+    while (lineBegin < length) {
+      int lineEnd = lineBegin;
+      while (lineEnd < length && bytes[lineEnd] != '\n')
+        ++lineEnd;
+
+      parseDescriptionLine(buffer, lineBegin, lineEnd, wantedItems, batch);
+      lineBegin = lineEnd + 1;
+    }
+
+    return batch;
+  }
+
+  /**
+   * Add the descriptions in the batch to descriptions_, checking hasArg2 for
+   * the subjects that need it, and clear the batch.
+   * @param batch The DescriptionBatch.
+   */
+  private void
+  addDescriptionBatch(DescriptionBatch batch)
+  {
+    lockForWrite();
+    try {
+      for (int i = 0; i < batch.subjects.size(); ++i) {
+        String subject = batch.subjects.get(i);
+        if (batch.isUnchecked.get(i) && !hasArg2(subject))
           // Don't add extraneous descriptions, to save memory.
           continue;
+        descriptions_.put(subject, batch.descriptions.get(i));
+      }
+    }
+    finally {
+      unlockForWrite();
+    }
 
-        descriptions_.put
-          (subject, fromEscapedString(line.substring(tabIndex + 1)));
+    batch.subjects.clear();
+    batch.descriptions.clear();
+    batch.isUnchecked.clear();
+  }
+
+  /**
+   * Parse the line of the TSV file from lineBegin to lineEnd, adding to the
+   * batch if the subject may be wanted. This doesn't change the store so that
+   * it can be called from a parser thread.
+   * @param buffer The mapped buffer.
+   * @param lineBegin The index in the buffer of the start of the line.
+   * @param lineEnd The index in the buffer of the newline or end of the file.
+   * @param wantedItems The BitSet from getWantedWikidataItems().
+   * @param batch The DescriptionBatch to add to.
+   */
+  private static void
+  parseDescriptionLine
+    (ByteBuffer buffer, int lineBegin, int lineEnd, BitSet wantedItems,
+     DescriptionBatch batch)
+  {
+    if (lineEnd > lineBegin && buffer.get(lineEnd - 1) == '\r')
+      --lineEnd;
+
+    // Parse the ID up to the tab.
+    long id = 0;
+    int nDigits = 0;
+    boolean isNumber = true;
+    int tabIndex = lineBegin;
+    for (; tabIndex < lineEnd; ++tabIndex) {
+      byte b = buffer.get(tabIndex);
+      if (b == '\t')
+        break;
+      if (b >= '0' && b <= '9' && nDigits < 18) {
+        id = id * 10 + (b - '0');
+        ++nDigits;
       }
+      else
+        isNumber = false;
+    }
+    if (tabIndex == lineEnd)
+      // No tab. Skip the malformed line.
+      return;
+    // "Q" + id must be the same as the ID text, so no leading zeros.
+    if (nDigits == 0 ||
+        (nDigits > 1 && buffer.get(lineBegin) == '0'))
+      isNumber = false;
+
+    String subject;
+    boolean isUnchecked;
+    if (isNumber && id <= Integer.MAX_VALUE) {
+      if (!wantedItems.get((int)id))
+        // Don't add extraneous descriptions, to save memory.
+        return;
+      subject = "Q" + id;
+      isUnchecked = false;
+    }
+    else {
+      // This is not expected in the Wikidata files, so addDescriptionBatch
+      // checks the slow way.
+      subject = isNumber ? "Q" + id : "Q" + decodeUtf8(buffer, lineBegin, tabIndex);
+      isUnchecked = true;
     }
+
+    if (isUnchecked)
+      batch.isUnchecked.set(batch.subjects.size());
+    batch.subjects.add(subject);
+    batch.descriptions.add
+      (fromEscapedString(decodeUtf8(buffer, tabIndex + 1, lineEnd)));
+  }
+
+  /**
+   * Make a BitSet of each number N where "Q" + N is already an arg2 in the
+   * store, so that checking a Wikidata item while loading descriptions is a
+   * bit test instead of making and hashing a string. A number above
+   * Integer.MAX_VALUE is not included, and isWantedWikidataItem checks it the
+   * slow way.
+   * @return The new BitSet.
+   */
+  private BitSet
+  getWantedWikidataItems()
+  {
+    BitSet result = new BitSet();
+    lock_.readLock().lock();
+    try {
+      for (int termId = 0; termId < triplesByArg2_.length; ++termId) {
+        IntList triples = triplesByArg2_[termId];
+        if (triples == null || triples.size() == 0)
+          continue;
+
+        String term = terms_.getTerm(termId);
+        if (term.length() < 2 || term.charAt(0) != 'Q')
+          continue;
+        long id = parseWikidataItemNumber(term.substring(1), term.length() - 1);
+        if (id >= 0 && id <= Integer.MAX_VALUE)
+          result.set((int)id);
+      }
+    }
+    finally {
+      lock_.readLock().unlock();
+    }
+
+    return result;
+  }
+
+  /**
+   * Check if "Q" + id is wanted for descriptions_ because it is already an arg2
+   * in the store.
+   * @param wantedItems The BitSet from getWantedWikidataItems().
+   * @param id The numeric part of the Wikidata item ID, without leading zeros.
+   * @return True if wanted.
+   */
+  private boolean
+  isWantedWikidataItem(BitSet wantedItems, long id)
+  {
+    if (id <= Integer.MAX_VALUE)
+      return wantedItems.get((int)id);
+    return hasArg2("Q" + id);
+  }
+
+  /**
+   * Parse the digits of s up to end as a Wikidata item number.
+   * @param s The string with the digits.
+   * @param end The index in s of the end of the digits.
+   * @return The number, or -1 if s up to end is not a number of up to 18
+   * digits without leading zeros.
+   */
+  private static long
+  parseWikidataItemNumber(String s, int end)
+  {
+    if (end <= 0 || end > 18 || (end > 1 && s.charAt(0) == '0'))
+      return -1;
+
+    long result = 0;
+    for (int i = 0; i < end; ++i) {
+      char c = s.charAt(i);
+      if (c < '0' || c > '9')
+        return -1;
+      result = result * 10 + (c - '0');
+    }
+    return result;
+  }
+
+  /**
+   * Open the file to read bytes. If it is a gzip file, it is decompressed on
+   * another thread by a PipelinedGzipInputStream.
+   * @param filePath The file to read.
+   * @return The new InputStream.
+   */
+  private static InputStream
+  openInputStream(String filePath) throws IOException
+  {
+    if (isGzip(filePath))
+      return new PipelinedGzipInputStream(filePath);
+    return new FileInputStream(filePath);
+  }
+
+  /**
+   * Open the file to read characters, the same as FileReader. If it is a gzip
+   * file, it is decompressed on another thread by a PipelinedGzipInputStream.
+   * @param filePath The file to read.
+   * @return The new Reader.
+   */
+  private static Reader
+  openReader(String filePath) throws IOException
+  {
+    if (isGzip(filePath))
+      return new InputStreamReader(new PipelinedGzipInputStream(filePath));
+    return new FileReader(filePath);
+  }
+
+  /**
+   * Check if the file is gzip compressed, based on the ".gz" extension.
+   */
+  private static boolean
+  isGzip(String filePath) { return filePath.endsWith(".gz"); }
+
+  /**
+   * Decode the bytes in the buffer from begin to end as UTF-8.
+   */
+  private static String
+  decodeUtf8(ByteBuffer buffer, int begin, int end)
+  {
+    byte[] bytes = new byte[end - begin];
+    for (int i = 0; i < bytes.length; ++i)
+      bytes[i] = buffer.get(begin + i);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Get the sentences with the given predicate. The Sentence objects are made
+   * from the stored terms while iterating.
+   * @param predicate The predicate.
+   * @return A read-only collection of Sentence, which is empty if there are
+   * none.
+   */
+  public Collection<Sentence>
+  getSentencesByPredicate(String predicate)
+  {
+    lock_.readLock().lock();
+    try {
+      return new SentenceCollection(copy
+        (getTriplesByTerm(triplesByPredicate_, terms_.getId(predicate))));
+    }
+    finally {
+      lock_.readLock().unlock();
+    }
+  }
+
+  /**
+   * Get the sentences with the given arg2, which is the term after the
+   * predicate. The Sentence objects are made from the stored terms while
+   * iterating.
+   * @param arg2 The arg2 term.
+   * @return A read-only collection of Sentence, which is empty if there are
+   * none.
+   */
+  public Collection<Sentence>
+  getSentencesByArg2(String arg2)
+  {
+    lock_.readLock().lock();
+    try {
+      return new SentenceCollection
+        (copy(getTriplesByTerm(triplesByArg2_, terms_.getId(arg2))));
+    }
+    finally {
+      lock_.readLock().unlock();
+    }
+  }
+
+  /**
+   * Add the sentence to the store, and incrementally update the EventTimeIndex
+   * and the cached overlapsDate results if it is a
+   * (subAttrOf $Event (TimeIntervalFn $Start $End)) .
+   * @param sentence The sentence in the same Scheme syntax as a line of the
+   * files for loadSchemeFile. A "description" sentence is added to
+   * descriptions_.
+   * @return True if added, false if the sentence is already in the store.
+   */
+  public boolean
+  addSentence(String sentence)
+  {
+    SchemeTokenizer tokenizer = new SchemeTokenizer();
+    if (!tokenizer.tokenize(sentence))
+      throw new Error("Unrecognized Scheme pattern: " + sentence);
+
+    if (isDescription(tokenizer)) {
+      descriptions_.put
+        (tokenizer.getArg2(), fromEscapedString(tokenizer.getLiteral()));
+      return true;
+    }
+
+    lockForWrite();
+    try {
+      return addTriple
+        (tokenizer.getPredicate(), tokenizer.getArg2(), tokenizer.getRest()) >= 0;
+    }
+    finally {
+      unlockForWrite();
+    }
+  }
+
+  /**
+   * Remove the sentence from the store, and incrementally update the
+   * EventTimeIndex and the cached overlapsDate results if it is a
+   * (subAttrOf $Event (TimeIntervalFn $Start $End)) .
+   * @param sentence The sentence in the same Scheme syntax as a line of the
+   * files for loadSchemeFile. A "description" sentence is not in the
+   * sentences, so this returns false.
+   * @return True if removed, false if the sentence is not in the store.
+   */
+  public boolean
+  removeSentence(String sentence)
+  {
+    SchemeTokenizer tokenizer = new SchemeTokenizer();
+    if (!tokenizer.tokenize(sentence))
+      throw new Error("Unrecognized Scheme pattern: " + sentence);
+
+    lockForWrite();
+    try {
+      return removeTriple(tokenizer);
+    }
+    finally {
+      unlockForWrite();
+    }
+  }
+
+  /**
+   * Remove the tokenized sentence from triples_, the indexes and eventTimes_.
+   * The caller should hold the write lock.
+   * @return True if removed, false if the sentence is not in the store.
+   */
+  private boolean
+  removeTriple(SchemeTokenizer tokenizer)
+  {
+    int predicateId = terms_.getId(tokenizer.getPredicate());
+    int arg2Id = terms_.getId(tokenizer.getArg2());
+    int restId = terms_.getId(tokenizer.getRest());
+    if (predicateId < 0 || arg2Id < 0 || restId < 0)
+      return false;
+    int triple = triples_.getTriple(predicateId, arg2Id, restId);
+    if (triple < 0)
+      return false;
+
+    for (SecondaryIndex index : secondaryIndexes_) {
+      if (index.getPredicate().equals(tokenizer.getPredicate()))
+        updateSecondaryIndex(index, triple, false);
+    }
+    triples_.remove(predicateId, arg2Id, restId);
+    triplesByPredicate_[predicateId].remove(triple);
+    triplesByArg2_[arg2Id].remove(triple);
+    // The EventTimeIndex is updated when the write lock is released.
+    eventTimes_.remove(triple);
+    return true;
+  }
+
+  /**
+   * Check if there is any sentence with the given arg2.
+   * @param arg2 The arg2 term.
+   * @return True if there is a sentence with the arg2.
+   */
+  public boolean
+  hasArg2(String arg2)
+  {
+    lock_.readLock().lock();
+    try {
+      IntList triples = getTriplesByTerm(triplesByArg2_, terms_.getId(arg2));
+      return triples != null && triples.size() > 0;
+    }
+    finally {
+      lock_.readLock().unlock();
+    }
+  }
+
+  /**
+   * Declare a SecondaryIndex on the argument position of the sentences with
+   * the predicate, and add the sentences already in the store. The index is
+   * maintained as sentences are added or removed and when a snapshot is
+   * loaded. It is used by getSentencesByArgument and findFirstArgument. (An
+   * index on position 2 is not needed since all sentences are indexed by
+   * arg2.)
+   * @param predicate The predicate of the sentences to index.
+   * @param argPosition The argument position of the key, as in getArgument.
+   */
+  public void
+  addSecondaryIndex(String predicate, int argPosition)
+  {
+    if (argPosition < 2)
+      throw new IllegalArgumentException
+        ("The SecondaryIndex argPosition must be 2 or more");
+    lockForWrite();
+    try {
+      if (getSecondaryIndex(predicate, argPosition) != null)
+        // Already declared.
+        return;
+
+      SecondaryIndex index = new SecondaryIndex(predicate, argPosition);
+      secondaryIndexes_.add(index);
+      buildSecondaryIndex(index);
+    }
+    finally {
+      unlockForWrite();
+    }
+  }
+
+  /**
+   * Get the sentences with the predicate where the argument at argPosition
+   * is the key. If there is a SecondaryIndex for the predicate and
+   * argPosition, or if argPosition is 2, then this is a hash lookup. Otherwise
+   * this checks every sentence with the predicate.
+   * @param predicate The sentence predicate.
+   * @param argPosition The argument position, as in getArgument.
+   * @param key The argument value, for example "Q8688" or "\"SFO\"".
+   * @return A read-only collection of Sentence, which is empty if there are
+   * none.
+   */
+  public Collection<Sentence>
+  getSentencesByArgument(String predicate, int argPosition, String key)
+  {
+    lock_.readLock().lock();
+    try {
+      return new SentenceCollection
+        (copy(getTriplesByArgument(predicate, argPosition, key)));
+    }
+    finally {
+      lock_.readLock().unlock();
+    }
+  }
+
+  /**
+   * Find the first sentence with the predicate where the argument at
+   * keyPosition is the key, and return its argument at valuePosition. This
+   * uses the same lookup as getSentencesByArgument.
+   * @param predicate The sentence predicate.
+   * @param keyPosition The argument position of the key, as in getArgument.
+   * @param key The argument value to find.
+   * @param valuePosition The argument position of the value to return.
+   * @return The argument value, or null if not found.
+   */
+  public String
+  findFirstArgument
+    (String predicate, int keyPosition, String key, int valuePosition)
+  {
+    lock_.readLock().lock();
+    try {
+      IntList triples = getTriplesByArgument(predicate, keyPosition, key);
+      if (triples.size() == 0)
+        return null;
+      return getArgument(triples.get(0), valuePosition);
+    }
+    finally {
+      lock_.readLock().unlock();
+    }
+  }
+
+  /**
+   * Evaluate the conjunctive query over the store, for example
+   * (AND (subAttrOf $Event (TimeIntervalFn $Start $End)) (lessThan $Start 5)) .
+   * See ConjunctiveQuery for the syntax.
+   * @param query The query text.
+   * @return An iterator of the results, where each result is a new map from
+   * variable name (including the "$") to its value. Nothing is computed until
+   * hasNext(), and each call only holds the read lock while it searches for
+   * the next result (see ConjunctiveQuery.evaluate).
+   * @throws Error if the query can't be parsed.
+   */
+  public Iterator<Map<String, String>>
+  query(String query) { return new ConjunctiveQuery(query).evaluate(this); }
+
+  /**
+   * Get an argument of the triple's sentence. Position 1 is the predicate and
+   * position 2 is the arg2. Positions 3 and more are the arguments in the rest
+   * of the sentence, where a nested expression such as
+   * "(TimeIntervalFn 1 2)" is one argument. This doesn't take a lock.
+   * @param triple The triple number.
+   * @param argPosition The argument position.
+   * @return The argument, or null if the sentence doesn't have the position.
+   */
+  public String
+  getArgument(int triple, int argPosition)
+  {
+    if (argPosition == 1)
+      return terms_.getTerm(triples_.getPredicate(triple));
+    if (argPosition == 2)
+      return terms_.getTerm(triples_.getArg2(triple));
+    if (argPosition < 1)
+      return null;
+
+    String rest = terms_.getTerm(triples_.getRest(triple));
+    if (rest.charAt(0) == '"')
+      // A string is the last argument and may have spaces.
+      return argPosition == 3 ? rest : null;
+
+    // Find the argument at depth zero.
+    int begin = 0;
+    int depth = 0;
+    int iArgument = 3;
+    for (int i = 0; i <= rest.length(); ++i) {
+      char c = i < rest.length() ? rest.charAt(i) : ' ';
+      if (c == '(')
+        ++depth;
+      else if (c == ')')
+        --depth;
+      else if (c == ' ' && depth == 0) {
+        if (iArgument == argPosition)
+          return rest.substring(begin, i);
+        ++iArgument;
+        begin = i + 1;
+      }
+    }
+
+    return null;
+  }
+
+  /**
+   * Make a Sentence from the stored terms of the triple. This doesn't take a
+   * lock, and works for a triple which has since been removed.
+   * @param triple The triple number in triples_.
+   * @return A new Sentence.
+   */
+  public Sentence
+  getSentence(int triple)
+  {
+    return new Sentence(StoreSnapshot.toSymbol
+      (terms_.getTerm(triples_.getPredicate(triple)),
+       terms_.getTerm(triples_.getArg2(triple)),
+       terms_.getTerm(triples_.getRest(triple))), false);
+  }
+
+  /**
+   * Save the sentences and descriptions_ to a binary snapshot file which
+   * loadSnapshot can load much faster than parsing the source files.
+   * @param snapshotPath The snapshot file to write.
+   * @param sourcePaths The files that the store was loaded from, which are
+   * used to check if the snapshot is stale.
+   */
+  public void
+  saveSnapshot(String snapshotPath, List<String> sourcePaths) throws IOException
+  {
+    lock_.readLock().lock();
+    try {
+      StoreSnapshot.save(this, new File(snapshotPath), toFiles(sourcePaths));
+    }
+    finally {
+      lock_.readLock().unlock();
+    }
+  }
+
+  /**
+   * Load the sentences and descriptions_ from a snapshot file written by
+   * saveSnapshot, if it is up to date. The store should be empty.
+   * @param snapshotPath The snapshot file to read.
+   * @param sourcePaths The files that the store would otherwise be loaded
+   * from.
+   * @return True if loaded. False if the snapshot file doesn't exist, is from
+   * a different format version, or if any of the source files have changed
+   * since it was saved, in which case the caller should load the source files.
+   * @throws IOException for a read error or a corrupted snapshot file, in
+   * which case the store is not changed.
+   */
+  public boolean
+  loadSnapshot(String snapshotPath, List<String> sourcePaths) throws IOException
+  {
+    lockForWrite();
+    try {
+      return StoreSnapshot.load
+        (this, new File(snapshotPath), toFiles(sourcePaths));
+    }
+    finally {
+      unlockForWrite();
+    }
+  }
+
+  private static List<File>
+  toFiles(List<String> paths)
+  {
+    List<File> files = new ArrayList<>();
+    for (String path : paths)
+      files.add(new File(path));
+    return files;
+  }
+
+  /**
+   * Use the tokenizer to classify the line, which is the same as matching
+   * termPattern_, termPattern4_, integerPattern_ and stringPattern_ in that
+   * order.
+   * @param line The line from the Scheme file.
+   * @param tokenizer The SchemeTokenizer which holds the result.
+   * @return False if the line is empty or a comment, otherwise true.
+   * @throws Error if the line doesn't match any pattern.
+   */
+  private static boolean
+  parseSchemeLine(String line, SchemeTokenizer tokenizer)
+  {
+    if (line.equals("") || line.startsWith(";"))
+      return false;
+
+    if (!tokenizer.tokenize(line))
+      throw new Error("Unrecognized Scheme pattern: " + line);
+
+    return true;
+  }
+
+  /**
+   * Check if the tokenized line is a description which should go in
+   * descriptions_ instead of the triples.
+   */
+  private static boolean
+  isDescription(SchemeTokenizer tokenizer)
+  {
+    return tokenizer.getKind() == SchemeTokenizer.Kind.STRING &&
+      tokenizer.predicateEquals("description");
+  }
+
+  /**
+   * Add the triple of terms to triples_ and the predicate and arg2 indexes,
+   * unless it is already in the store. The caller should hold the write lock.
+   * @param predicate The sentence predicate.
+   * @param arg2 The sentence arg2.
+   * @param rest The rest of the sentence after arg2 (see TripleTable).
+   * @return The new triple number, or -1 if already in the store.
+   */
+  private int
+  addTriple(String predicate, String arg2, String rest)
+  {
+    int predicateId = terms_.add(predicate);
+    int arg2Id = terms_.add(arg2);
+    int triple = triples_.add(predicateId, arg2Id, terms_.add(rest));
+    if (triple < 0)
+      return -1;
+
+    triplesByPredicate_ = addToIndex(triplesByPredicate_, predicateId, triple);
+    triplesByArg2_ = addToIndex(triplesByArg2_, arg2Id, triple);
+    for (SecondaryIndex index : secondaryIndexes_) {
+      if (index.getPredicate().equals(predicate))
+        updateSecondaryIndex(index, triple, true);
+    }
+
+    if (predicate.equals("subAttrOf") && arg2.charAt(0) != '(')
+      // Parse the time interval once now. The EventTimeIndex is updated when
+      // the write lock is released.
+      eventTimes_.add(triple, arg2Id, rest);
+    return triple;
+  }
+
+  /**
+   * Find the triples with the predicate where the argument at argPosition is
+   * the key, using a SecondaryIndex or the arg2 index if possible. The caller
+   * should hold the read or write lock.
+   * @return The list of triple numbers, which may be the list in the
+   * SecondaryIndex and should not be modified.
+   */
+  IntList
+  getTriplesByArgument(String predicate, int argPosition, String key)
+  {
+    IntList result = new IntList();
+    SecondaryIndex index = getSecondaryIndex(predicate, argPosition);
+    if (index != null) {
+      IntList triples = index.get(key);
+      return triples != null ? triples : result;
+    }
+
+    int predicateId = terms_.getId(predicate);
+    if (predicateId < 0)
+      return result;
+    if (argPosition == 2) {
+      IntList triples = getTriplesByTerm(triplesByArg2_, terms_.getId(key));
+      if (triples != null) {
+        for (int i = 0; i < triples.size(); ++i) {
+          if (triples_.getPredicate(triples.get(i)) == predicateId)
+            result.add(triples.get(i));
+        }
+      }
+      return result;
+    }
+
+    // An argument in the rest may not be a term by itself, so check all.
+    IntList triples = getTriplesByTerm(triplesByPredicate_, predicateId);
+    if (triples != null) {
+      for (int i = 0; i < triples.size(); ++i) {
+        if (key.equals(getArgument(triples.get(i), argPosition)))
+          result.add(triples.get(i));
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Get the declared SecondaryIndex.
+   * @return The SecondaryIndex, or null if not declared.
+   */
+  SecondaryIndex
+  getSecondaryIndex(String predicate, int argPosition)
+  {
+    for (SecondaryIndex index : secondaryIndexes_) {
+      if (index.getArgPosition() == argPosition &&
+          index.getPredicate().equals(predicate))
+        return index;
+    }
+
+    return null;
+  }
+
+  /**
+   * Clear the index and add all the triples with its predicate.
+   */
+  private void
+  buildSecondaryIndex(SecondaryIndex index)
+  {
+    index.clear();
+    IntList triples = getTriplesByTerm
+      (triplesByPredicate_, terms_.getId(index.getPredicate()));
+    if (triples == null)
+      return;
+
+    for (int i = 0; i < triples.size(); ++i)
+      updateSecondaryIndex(index, triples.get(i), true);
+  }
+
+  /**
+   * Add the triple to or remove it from the index, using the triple's argument
+   * at the index's position as the key.
+   * @param index The SecondaryIndex, which has the triple's predicate.
+   * @param triple The triple number. If removing, this must still be in
+   * triples_.
+   * @param isAdded True to add, false to remove.
+   */
+  private void
+  updateSecondaryIndex(SecondaryIndex index, int triple, boolean isAdded)
+  {
+    String key = getArgument(triple, index.getArgPosition());
+    if (key == null)
+      return;
+
+    if (isAdded)
+      index.add(key, triple);
+    else
+      index.remove(key, triple);
+  }
+
+  /**
+   * Add the triple to the list in the index for the term, growing the index if
+   * needed.
+   * @return The index array, which is a new array if it was grown.
+   */
+  private IntList[]
+  addToIndex(IntList[] index, int termId, int triple)
+  {
+    if (termId >= index.length)
+      // Grow by half so that adding sentences one at a time doesn't copy the
+      // index each time.
+      index = Arrays.copyOf
+        (index, Math.max(termId + 1,
+                         Math.max(terms_.size(), index.length + (index.length >> 1) + 16)));
+    if (index[termId] == null)
+      index[termId] = new IntList();
+    index[termId].add(triple);
+    return index;
+  }
+
+  /**
+   * Get the list of triples in the index for the term.
+   * @param index The triplesByPredicate_ or triplesByArg2_ index.
+   * @param termId The term ID, or -1 if not in the dictionary.
+   * @return The IntList, or null if none.
+   */
+  static IntList
+  getTriplesByTerm(IntList[] index, int termId)
+  {
+    if (termId < 0 || termId >= index.length)
+      return null;
+    return index[termId];
+  }
+
+  /**
+   * Add to descriptions_, but only if the subject is already an arg2 in the
+   * store.
+   * @param subject The subject of the description.
+   * @param escapedDescription The description as a JSON string with quotes.
+   */
+  private void
+  addDescription(String subject, String escapedDescription)
+  {
+    if (!hasArg2(subject))
+      // Don't add extraneous descriptions, to save memory.
+      return;
+
+    descriptions_.put(subject, fromEscapedString(escapedDescription));
+  }
+
+  /**
+   * A SchemeChunk holds the parsed lines of one byte range of a Scheme file in
+   * the order they appear in the file.
+   */
+  private static class SchemeChunk {
+    public final ArrayList<String> predicates = new ArrayList<>();
+    public final ArrayList<String> arg2s = new ArrayList<>();
+    public final ArrayList<String> rests = new ArrayList<>();
+    public final ArrayList<String> descriptionSubjects = new ArrayList<>();
+    public final ArrayList<String> escapedDescriptions = new ArrayList<>();
+    /** For each description, the number of sentences in the chunk before it. */
+    public final ArrayList<Integer> descriptionPositions = new ArrayList<>();
+  }
+
+  /**
+   * Parse the lines in the bytes. This doesn't change the store so that it can
+   * be called from a parser thread.
+   * @param bytes The bytes of whole lines.
+   * @param length The number of bytes.
+   * @return The new SchemeChunk.
+   */
+  private static SchemeChunk
+  parseSchemeChunk(byte[] bytes, int length) throws IOException
+  {
+    SchemeChunk chunk = new SchemeChunk();
+    SchemeTokenizer tokenizer = new SchemeTokenizer();
+    try (BufferedReader reader = new BufferedReader(new InputStreamReader
+           (new ByteArrayInputStream(bytes, 0, length),
+            Charset.defaultCharset()))) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (!parseSchemeLine(line, tokenizer))
+          continue;
+
+        if (isDescription(tokenizer)) {
+          // Whether to keep the description depends on the arg2 index at
+          // this point in the file, so mergeSchemeChunk decides.
+          chunk.descriptionSubjects.add(tokenizer.getArg2());
+          chunk.escapedDescriptions.add(tokenizer.getLiteral());
+          chunk.descriptionPositions.add(chunk.predicates.size());
+          continue;
+        }
+
+        chunk.predicates.add(tokenizer.getPredicate());
+        chunk.arg2s.add(tokenizer.getArg2());
+        chunk.rests.add(tokenizer.getRest());
+      }
+    }
+
+    return chunk;
+  }
+
+  /**
+   * Add the sentences and descriptions of the chunk to the store in the same
+   * order as loadSchemeFile(filePath) would.
+   * @param chunk The SchemeChunk from parseSchemeChunk.
+   */
+  private void
+  mergeSchemeChunk(SchemeChunk chunk)
+  {
+    int iSentence = 0;
+    for (int iDescription = 0; iDescription < chunk.descriptionSubjects.size();
+         ++iDescription) {
+      int position = chunk.descriptionPositions.get(iDescription);
+      for (; iSentence < position; ++iSentence)
+        addTriple(chunk.predicates.get(iSentence), chunk.arg2s.get(iSentence),
+                  chunk.rests.get(iSentence));
+
+      addDescription(chunk.descriptionSubjects.get(iDescription),
+                     chunk.escapedDescriptions.get(iDescription));
+    }
+
+    for (; iSentence < chunk.predicates.size(); ++iSentence)
+      addTriple(chunk.predicates.get(iSentence), chunk.arg2s.get(iSentence),
+                chunk.rests.get(iSentence));
   }
 
   /**
    * A EventTimeInterval holds an event term and the start and end times of a
    * time interval as milliseconds since the UTC Unix epoch.
    */
-  public class EventTimeInterval {
+  public static class EventTimeInterval {
 
     public final String event;
     public final long startUtcMillis;
@@ -171,88 +1266,118 @@ public class NuvlWorldStore {
       this.startUtcMillis = startUtcMillis;
       this.endUtcMillis = endUtcMillis;
     }
+
+    @Override
+    public boolean
+    equals(Object obj)
+    {
+      if (!(obj instanceof EventTimeInterval))
+        return false;
+      EventTimeInterval other = (EventTimeInterval)obj;
+      return startUtcMillis == other.startUtcMillis &&
+        endUtcMillis == other.endUtcMillis && event.equals(other.event);
+    }
+
+    @Override
+    public int
+    hashCode()
+    {
+      return (event.hashCode() * 31 + Long.hashCode(startUtcMillis)) * 31 +
+        Long.hashCode(endUtcMillis);
+    }
   }
 
   /**
    * Use the day start and end times $DayStart and $DayEnd according to the
    * given timeZone and return a set of EventTimeInterval which satisfy:
    * (AND (subAttrOf $Event (TimeIntervalFn $Start $End))
-   *      (lessThan $Start $DayEnd) (greaterThanOrEqual $End $DayBegin)) .
+   *      (lessThan $Start $DayEnd) (greaterThan $End $DayBegin)) ,
+   * where an interval with $End not after $Start is treated as an instant at
+   * $Start. This is the same as overlapsRange for the day.
+   *
+   * This doesn't take a lock. It uses the EventTimeIndex which was last
+   * published by a writer.
    *
    * @param date The date.
-   * @param timeZone The TimeZone to get the UTC day start and end. If timeZone
-   * is different from the previous call (or this is the first call), this
-   * clears the cache and caches all results. (A future implementation may
-   * maintain results for different timeZone values, but we want to save
-   * memory.)
-   * @return A set of EventTimeInterval which match the query above (possibly
-   * empty) with $Event plus $Start $End as milliseconds since the Unix
-   * epoch.
+   * @param timeZone The TimeZone to get the UTC day start and end. Results are
+   * cached in the calling thread's OverlapsDateCache for each time zone and
+   * date.
+   * @return An unmodifiable set of EventTimeInterval which match the query
+   * above (possibly empty) with $Event plus $Start $End as milliseconds since
+   * the Unix epoch.
    */
   public Set<EventTimeInterval>
   overlapsDate(LocalDate date, TimeZone timeZone)
   {
-    if (timeZone != overlapsDateTimeZone_) {
-      // TODO: Check if sentences_ has changed.
-      // Set up overlapsDate_.
-      Calendar calendar = Calendar.getInstance(timeZone);
-      Pattern timePattern = Pattern.compile
-        ("^\\(subAttrOf (" + TERM + ") \\(TimeIntervalFn (" + INT +
-         ") (" + INT + ")\\)\\)$");
-
-      overlapsDate_.clear();
-      overlapsDateTimeZone_ = timeZone;
-
-      for (Sentence sentence : sentencesByPredicate_.getOrDefault
-           ("subAttrOf", emptySentences_)) {
-        Matcher matcher = timePattern.matcher(sentence.symbol());
-        if (!matcher.find())
-          continue;
-        String event = matcher.group(1);
-
-        long startTimeUtcMillis = Long.parseLong(matcher.group(2));
-        long endTimeUtcMillis = Long.parseLong(matcher.group(3));
-
-        // Find dates with dayStartUtcMillis and dayEndUtcMillis where
-        // (startTimeUtcMillis < dayEndUtcMillis &&
-        //  endTimeUtcMillis >= dayStartUtcMillis)
-        calendar.setTimeInMillis(startTimeUtcMillis);
-        LocalDate startDate = getCalendarLocalDate(calendar);
-        LocalDate endDate;
-        if (endTimeUtcMillis <= startTimeUtcMillis)
-          // A common and simple case (when they are equal).
-          endDate = startDate;
-        else {
-          calendar.setTimeInMillis(endTimeUtcMillis);
-          endDate = getCalendarLocalDate(calendar);
-          if (calendar.get(Calendar.HOUR) == 0 &&
-              calendar.get(Calendar.MINUTE) == 0 &&
-              calendar.get(Calendar.SECOND) == 0)
-            // Make the end be before midnight of the next day.
-            endDate = endDate.plusDays(-1);
-        }
+    ZoneId zoneId = timeZone.toZoneId();
+    EventTimeIndex index = eventTimeIndex_;
+    OverlapsDateCache cache = overlapsDateCache_.get();
+    cache.setIndex(index);
+    Set<EventTimeInterval> result = cache.get(zoneId, date);
+    if (result == null) {
+      result = Collections.unmodifiableSet(new HashSet<>(index.overlaps
+        (date.atStartOfDay(zoneId).toInstant().toEpochMilli(),
+         date.plusDays(1).atStartOfDay(zoneId).toInstant().toEpochMilli())));
+      cache.put(zoneId, date, result);
+    }
 
-        // Add entries to overlapsDate_ for startDate to endDate, inclusive.
-        EventTimeInterval timeInterval = new EventTimeInterval
-          (event, startTimeUtcMillis, endTimeUtcMillis);
-        LocalDate key = startDate;
-        while (true) {
-          Set<EventTimeInterval> timeIntervalSet = overlapsDate_.get(key);
-          if (timeIntervalSet == null) {
-            timeIntervalSet = new HashSet<>();
-            overlapsDate_.put(key, timeIntervalSet);
-          }
-          timeIntervalSet.add(timeInterval);
+    return result;
+  }
 
-          if (key.equals(endDate))
-            break;
+  /**
+   * Get the cache used by overlapsDate in the calling thread, for example to
+   * set the budget or get the hit and miss counts. Each thread has its own
+   * cache so that overlapsDate doesn't need a lock.
+   * @return The OverlapsDateCache of the calling thread.
+   */
+  public OverlapsDateCache
+  getOverlapsDateCache() { return overlapsDateCache_.get(); }
 
-          key = key.plusDays(1);
-        }
+  /**
+   * Return a list of EventTimeInterval for
+   * (subAttrOf $Event (TimeIntervalFn $Start $End)) where the interval
+   * overlaps the range from beginUtcMillis up to but not including
+   * endUtcMillis. An interval with $End not after $Start is treated as an
+   * instant at $Start. This queries the EventTimeIndex over the EventTimeTable
+   * columns and only makes EventTimeInterval objects for the results. This
+   * doesn't take a lock. It uses the EventTimeIndex which was last published
+   * by a writer.
+   *
+   * @param beginUtcMillis The beginning of the range in milliseconds since the
+   * Unix epoch.
+   * @param endUtcMillis The end of the range (exclusive).
+   * @return A new list of the matching EventTimeInterval, sorted by $Start.
+   */
+  public List<EventTimeInterval>
+  overlapsRange(long beginUtcMillis, long endUtcMillis)
+  {
+    return eventTimeIndex_.overlaps(beginUtcMillis, endUtcMillis);
+  }
+
+  /**
+   * Make eventTimes_ from the sentences
+   * (subAttrOf $Event (TimeIntervalFn $Start $End)) , for example after loading
+   * a snapshot.
+   */
+  private void
+  makeEventTimes()
+  {
+    eventTimes_ = new EventTimeTable();
+    IntList triples = getTriplesByTerm
+      (triplesByPredicate_, terms_.getId("subAttrOf"));
+    if (triples != null) {
+      // The triple numbers in the index are in increasing order.
+      for (int i = 0; i < triples.size(); ++i) {
+        int triple = triples.get(i);
+        int arg2Id = triples_.getArg2(triple);
+        if (terms_.getTerm(arg2Id).charAt(0) != '(')
+          eventTimes_.add
+            (triple, arg2Id, terms_.getTerm(triples_.getRest(triple)));
       }
     }
 
-    return overlapsDate_.getOrDefault(date, emptyEventTimeIntervalSet_);
+    // This is a new table, so make a new index instead of updating.
+    eventTimeIndex_ = new EventTimeIndex(eventTimes_, terms_);
   }
 
   /**
@@ -264,13 +1389,13 @@ public class NuvlWorldStore {
    * @param groupNumber The group number of the matched pattern.
    * @param group The value of the group of the patched pattern.
    * @return The regex Matcher object or null if not found.
+   * @see #findFirstArgument for a lookup that doesn't scan all the sentences.
    */
   public Matcher
   findFirstByPredicate
     (String predicate, Pattern pattern, int groupNumber, String group)
   {
-    for (Sentence sentence : sentencesByPredicate_.getOrDefault
-         (predicate, emptySentences_)) {
+    for (Sentence sentence : getSentencesByPredicate(predicate)) {
       Matcher matcher = pattern.matcher(sentence.symbol());
       if (matcher.find() && matcher.group(groupNumber).equals(group)) {
         return matcher;
@@ -330,12 +1455,143 @@ public class NuvlWorldStore {
   public static String
   toEscapedString(String s) { return gson_.toJson(s); }
 
-  /** key: predicate, value: set of Sentence. */
-  public final Map<String, Set<Sentence>> sentencesByPredicate_ = new HashMap<>();
-  /** key: arg2, value: set of Sentence. */
-  public final Map<String, Set<Sentence>> sentencesByArg2_ = new HashMap<>();
+  /**
+   * Get a copy of the list of triples, for a result which is used after the
+   * read lock is released.
+   * @param triples The list, or null for none.
+   * @return A new IntList, or null if triples is null.
+   */
+  static IntList
+  copy(IntList triples)
+  {
+    return triples != null ?
+      new IntList(triples.toArray(), triples.size()) : null;
+  }
+
+  /**
+   * Lock the store for a read. The caller must call unlockForRead in a finally
+   * block.
+   */
+  void lockForRead() { lock_.readLock().lock(); }
+
+  void unlockForRead() { lock_.readLock().unlock(); }
+
+  /**
+   * Lock the store for a write. This can be nested in the same thread. The
+   * caller must call unlockForWrite in a finally block.
+   */
+  void lockForWrite() { lock_.writeLock().lock(); }
+
+  /**
+   * Unlock the store after lockForWrite. When this ends the outermost write,
+   * first publish the EventTimeIndex for the changed eventTimes_ so that
+   * overlapsDate and overlapsRange see the whole write.
+   */
+  void
+  unlockForWrite()
+  {
+    try {
+      if (lock_.getWriteHoldCount() == 1)
+        eventTimeIndex_ = eventTimeIndex_.update(eventTimes_, terms_);
+    }
+    finally {
+      lock_.writeLock().unlock();
+    }
+  }
+
+  /**
+   * A SentenceCollection is a read-only view of a list of triples which makes
+   * a Sentence for each triple while iterating.
+   */
+  private class SentenceCollection extends AbstractCollection<Sentence> {
+    /**
+     * Create a SentenceCollection for the triples.
+     * @param triples The list of triple numbers, or null for none.
+     */
+    public SentenceCollection(IntList triples) { triples_ = triples; }
+
+    @Override
+    public int size() { return triples_ == null ? 0 : triples_.size(); }
+
+    @Override
+    public Iterator<Sentence>
+    iterator()
+    {
+      return new Iterator<Sentence>() {
+        @Override
+        public boolean hasNext() { return i_ < size(); }
+
+        @Override
+        public Sentence
+        next()
+        {
+          if (!hasNext())
+            throw new NoSuchElementException();
+          return getSentence(triples_.get(i_++));
+        }
+
+        private int i_ = 0;
+      };
+    }
+
+    private final IntList triples_;
+  }
+
+  TermDictionary getTerms() { return terms_; }
+
+  TripleTable getTriples() { return triples_; }
+
+  IntList[] getTriplesByPredicate() { return triplesByPredicate_; }
+
+  /**
+   * Get the triples with the predicate.
+   * @return The list of triple numbers, which should not be modified.
+   */
+  IntList
+  getTriplesByPredicate(String predicate)
+  {
+    IntList result = getTriplesByTerm
+      (triplesByPredicate_, terms_.getId(predicate));
+    return result != null ? result : emptyIntList_;
+  }
+
+  /**
+   * Get the rest of the triple's sentence after arg2 (see TripleTable).
+   */
+  String getRestTerm(int triple) { return terms_.getTerm(triples_.getRest(triple)); }
+
+  IntList[] getTriplesByArg2() { return triplesByArg2_; }
+
+  /**
+   * Replace the triples and indexes with the ones loaded from a snapshot. The
+   * caller should hold the write lock.
+   */
+  void
+  setTriples
+    (TermDictionary terms, TripleTable triples, IntList[] triplesByPredicate,
+     IntList[] triplesByArg2)
+  {
+    terms_ = terms;
+    triples_ = triples;
+    triplesByPredicate_ = triplesByPredicate;
+    triplesByArg2_ = triplesByArg2;
+    makeEventTimes();
+    for (SecondaryIndex index : secondaryIndexes_)
+      buildSecondaryIndex(index);
+  }
+
+  /**
+   * These are volatile because setTriples replaces them while methods which
+   * don't take a lock may be reading.
+   */
+  private volatile TermDictionary terms_ = new TermDictionary();
+  private volatile TripleTable triples_ = new TripleTable();
+  /** index: predicate term ID, value: the triple numbers with the predicate. */
+  private IntList[] triplesByPredicate_ = new IntList[0];
+  /** index: arg2 term ID, value: the triple numbers with the arg2. */
+  private IntList[] triplesByArg2_ = new IntList[0];
   /** key: subject, value: the description string (unescaped). */
-  public final Map<String, String> descriptions_ = new HashMap<>();
+  public final DescriptionStore descriptions_ = new DescriptionStore(this);
   public static final String TERM = "[a-zA-Z_]\\w*";
   public static final String INT = "-?\\d+";
   public static final String UNARY =
@@ -353,9 +1609,35 @@ public class NuvlWorldStore {
   public static final Pattern stringPattern_ = Pattern.compile
     ("^\\((" + TERM + ") (" + TERM + ") (\".*\")\\)$");
 
-  private TimeZone overlapsDateTimeZone_ = null;
-  private final Map<LocalDate, Set<EventTimeInterval>> overlapsDate_ = new HashMap<>();
-  private static final Set<EventTimeInterval> emptyEventTimeIntervalSet_ = new HashSet<>();
-  private static final Set<Sentence> emptySentences_ = new HashSet<>();
+  /** The maximum number of bytes to memory-map at once. */
+  private static final long MAX_MAPPED_WINDOW = 1L << 30;
+  private static final int PROGRESS_LINES = 1 << 20;
+  /**
+   * The number of lines that loadSchemeFile(filePath) adds under the write
+   * lock before it releases the lock to publish them.
+   */
+  private static final int WRITE_BATCH_LINES = 10000;
+  private static final IntList emptyIntList_ = new IntList();
+  /** The declared secondary indexes. */
+  private final List<SecondaryIndex> secondaryIndexes_ = new ArrayList<>();
+  /** Held to write, or to read other than the EventTimeIndex. */
+  private final ReentrantReadWriteLock lock_ = new ReentrantReadWriteLock();
+  /** The parsed (subAttrOf $Event (TimeIntervalFn $Start $End)) sentences. */
+  private EventTimeTable eventTimes_ = new EventTimeTable();
+  /**
+   * The index of eventTimes_ as of the last write, which is replaced when a
+   * write ends.
+   */
+  private volatile EventTimeIndex eventTimeIndex_ =
+    new EventTimeIndex(eventTimes_, terms_);
+  /**
+   * The default budget of the OverlapsDateCache, which is enough for about a
+   * year of days in a few time zones with a few events each.
+   */
+  private static final int DEFAULT_OVERLAPS_DATE_CACHE_BUDGET = 10000;
+  /** The OverlapsDateCache of each thread which calls overlapsDate. */
+  private final ThreadLocal<OverlapsDateCache> overlapsDateCache_ =
+    ThreadLocal.withInitial
+      (() -> new OverlapsDateCache(DEFAULT_OVERLAPS_DATE_CACHE_BUDGET));
   private static final Gson gson_ = new GsonBuilder().disableHtmlEscaping().create();;
 }
@@ -0,0 +1,285 @@
+/*
+Copyright (C) 2017 Jeff Thompson
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package org.nuvl.nuvlworld;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import org.nuvl.nuvlworld.NuvlWorldStore.EventTimeInterval;
+
+/**
+ * An OverlapsDateCache holds the results of NuvlWorldStore.overlapsDate for
+ * any number of time zones. The size is the total number of cached
+ * EventTimeInterval references (plus one per day), and when it exceeds the
+ * budget this evicts the least recently used days.
+ * <p>
+ * An OverlapsDateCache is not thread-safe. The NuvlWorldStore keeps one for
+ * each thread which calls overlapsDate, and each follows the EventTimeIndex
+ * versions which that thread has seen (see setIndex).
+ * @author Jeff Thompson, jeff@thefirst.org
+ */
+public class OverlapsDateCache {
+  /**
+   * Create an OverlapsDateCache with the given budget.
+   * @param budget The maximum size, as described in the class comment.
+   */
+  public OverlapsDateCache(int budget) { budget_ = budget; }
+
+  /**
+   * Get the cached result for the zone and date, and count a hit or miss.
+   * @param zoneId The time zone of the query.
+   * @param date The date of the query.
+   * @return The cached set, or null if not cached.
+   */
+  public Set<EventTimeInterval>
+  get(ZoneId zoneId, LocalDate date)
+  {
+    Set<EventTimeInterval> result = cache_.get(new Key(zoneId, date));
+    if (result != null)
+      ++hitCount_;
+    else
+      ++missCount_;
+    return result;
+  }
+
+  /**
+   * Cache the result for the zone and date, then evict the least recently used
+   * days if over the budget.
+   * @param zoneId The time zone of the query.
+   * @param date The date of the query.
+   * @param intervals The result, which should not be modified after this.
+   */
+  public void
+  put(ZoneId zoneId, LocalDate date, Set<EventTimeInterval> intervals)
+  {
+    Set<EventTimeInterval> oldIntervals = cache_.put
+      (new Key(zoneId, date), intervals);
+    if (oldIntervals != null)
+      size_ -= getWeight(oldIntervals);
+    else
+      zoneDayCounts_.merge(zoneId, 1, Integer::sum);
+    size_ += getWeight(intervals);
+    evict();
+  }
+
+  /**
+   * Update the cached days in every time zone which overlap the interval,
+   * after the interval is added to or removed from the store. Days which are
+   * not cached are not affected.
+   * @param interval The EventTimeInterval which was added or removed.
+   * @param isAdded True if added, false if removed.
+   */
+  public void
+  update(EventTimeInterval interval, boolean isAdded)
+  {
+    for (ZoneId zoneId : zoneDayCounts_.keySet()) {
+      // The interval overlaps the dates of its first and last milliseconds.
+      // An interval where the end is not after the start is an instant.
+      long lastUtcMillis = interval.endUtcMillis > interval.startUtcMillis ?
+        interval.endUtcMillis - 1 : interval.startUtcMillis;
+      LocalDate startDate = Instant.ofEpochMilli(interval.startUtcMillis)
+        .atZone(zoneId).toLocalDate();
+      LocalDate endDate = Instant.ofEpochMilli(lastUtcMillis).atZone(zoneId)
+        .toLocalDate();
+
+      if (ChronoUnit.DAYS.between(startDate, endDate) < cache_.size()) {
+        for (LocalDate date = startDate; !date.isAfter(endDate);
+             date = date.plusDays(1)) {
+          Key key = new Key(zoneId, date);
+          Set<EventTimeInterval> intervals = cache_.get(key);
+          if (intervals != null)
+            cache_.put(key, update(intervals, interval, isAdded));
+        }
+      }
+      else {
+        // The interval is long, so check the cached days instead.
+        for (Map.Entry<Key, Set<EventTimeInterval>> entry : cache_.entrySet()) {
+          Key key = entry.getKey();
+          if (key.zoneId_.equals(zoneId) && !key.date_.isBefore(startDate) &&
+              !key.date_.isAfter(endDate))
+            entry.setValue(update(entry.getValue(), interval, isAdded));
+        }
+      }
+    }
+
+    evict();
+  }
+
+  /**
+   * Bring the cached days up to date with the EventTimeIndex of the store, if
+   * it is a different version than the last call. If the index is an update of
+   * the previous one, this calls update for each interval which was added or
+   * removed since. Otherwise this calls clear().
+   * @param index The current EventTimeIndex of the store.
+   */
+  public void
+  setIndex(EventTimeIndex index)
+  {
+    if (index == index_)
+      return;
+
+    ArrayList<EventTimeInterval> added = new ArrayList<>();
+    ArrayList<EventTimeInterval> removed = new ArrayList<>();
+    if (index_ != null && index.getChangesSince(index_, added, removed)) {
+      for (EventTimeInterval interval : removed)
+        update(interval, false);
+      for (EventTimeInterval interval : added)
+        update(interval, true);
+    }
+    else
+      clear();
+    index_ = index;
+  }
+
+  /**
+   * Remove all cached results, for example when the sentences change. This
+   * does not reset the counts.
+   */
+  public void
+  clear()
+  {
+    cache_.clear();
+    zoneDayCounts_.clear();
+    size_ = 0;
+  }
+
+  /**
+   * Set the budget, and evict days if the cache is now over the budget.
+   * @param budget The maximum size, as described in the class comment.
+   */
+  public void
+  setBudget(int budget)
+  {
+    budget_ = budget;
+    evict();
+  }
+
+  public int getBudget() { return budget_; }
+
+  /**
+   * Get the current size, as described in the class comment.
+   */
+  public long getSize() { return size_; }
+
+  public long getHitCount() { return hitCount_; }
+
+  public long getMissCount() { return missCount_; }
+
+  public long getEvictionCount() { return evictionCount_; }
+
+  @Override
+  public String
+  toString()
+  {
+    return "OverlapsDateCache days: " + cache_.size() + ", size: " + size_ +
+      " of " + budget_ + ", hits: " + hitCount_ + ", misses: " + missCount_ +
+      ", evictions: " + evictionCount_;
+  }
+
+  /**
+   * Remove the least recently used days until the size is within the budget.
+   */
+  private void
+  evict()
+  {
+    // The iterator of an access-ordered LinkedHashMap starts from the least
+    // recently used.
+    Iterator<Map.Entry<Key, Set<EventTimeInterval>>> iterator =
+      cache_.entrySet().iterator();
+    while (size_ > budget_ && iterator.hasNext()) {
+      Map.Entry<Key, Set<EventTimeInterval>> entry = iterator.next();
+      size_ -= getWeight(entry.getValue());
+      iterator.remove();
+      ++evictionCount_;
+
+      ZoneId zoneId = entry.getKey().zoneId_;
+      if (zoneDayCounts_.merge(zoneId, -1, Integer::sum) == 0)
+        zoneDayCounts_.remove(zoneId);
+    }
+  }
+
+  /**
+   * Return a new unmodifiable copy of intervals with the interval added or
+   * removed, and update size_.
+   */
+  private Set<EventTimeInterval>
+  update
+    (Set<EventTimeInterval> intervals, EventTimeInterval interval,
+     boolean isAdded)
+  {
+    HashSet<EventTimeInterval> result = new HashSet<>(intervals);
+    if (isAdded)
+      result.add(interval);
+    else
+      result.remove(interval);
+
+    size_ += getWeight(result) - getWeight(intervals);
+    return Collections.unmodifiableSet(result);
+  }
+
+  private static int
+  getWeight(Set<EventTimeInterval> intervals) { return intervals.size() + 1; }
+
+  /**
+   * A Key is a time zone and date.
+   */
+  private static class Key {
+    public Key(ZoneId zoneId, LocalDate date)
+    {
+      zoneId_ = zoneId;
+      date_ = date;
+    }
+
+    @Override
+    public boolean
+    equals(Object obj)
+    {
+      if (!(obj instanceof Key))
+        return false;
+      Key other = (Key)obj;
+      return date_.equals(other.date_) && zoneId_.equals(other.zoneId_);
+    }
+
+    @Override
+    public int
+    hashCode() { return 31 * zoneId_.hashCode() + date_.hashCode(); }
+
+    private final ZoneId zoneId_;
+    private final LocalDate date_;
+  }
+
+  private final LinkedHashMap<Key, Set<EventTimeInterval>> cache_ =
+    new LinkedHashMap<>(16, 0.75f, true);
+  /** key: time zone, value: the number of cached days in the time zone. */
+  private final HashMap<ZoneId, Integer> zoneDayCounts_ = new HashMap<>();
+  /** The EventTimeIndex of the cached results, or null if not set. */
+  private EventTimeIndex index_ = null;
+  private int budget_;
+  private long size_ = 0;
+  private long hitCount_ = 0;
+  private long missCount_ = 0;
+  private long evictionCount_ = 0;
+}
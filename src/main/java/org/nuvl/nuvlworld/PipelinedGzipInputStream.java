@@ -0,0 +1,235 @@
+/*
+Copyright (C) 2017 Jeff Thompson
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+
+package org.nuvl.nuvlworld;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * A PipelinedGzipInputStream reads a gzip file and returns the uncompressed
+ * bytes. A separate thread decompresses the file into blocks and puts them in
+ * a bounded queue, so that decompression runs at the same time as the caller
+ * parses the previous blocks, and is at most a few blocks ahead. The used
+ * blocks are given back to the thread to reuse.
+ * @author Jeff Thompson, jeff@thefirst.org
+ */
+public class PipelinedGzipInputStream extends InputStream {
+  /**
+   * Open the gzip file and start the thread to decompress it.
+   * @param filePath The gzip file, which may have more than one member.
+   */
+  public PipelinedGzipInputStream(String filePath) throws IOException
+  {
+    file_ = new FileInputStream(filePath);
+    final GZIPInputStream gzip;
+    try {
+      size_ = file_.getChannel().size();
+      gzip = new GZIPInputStream(file_, 1 << 16);
+    } catch (IOException ex) {
+      file_.close();
+      throw ex;
+    }
+
+    thread_ = new Thread(() -> decompress(gzip), "Decompress " + filePath);
+    thread_.setDaemon(true);
+    thread_.start();
+  }
+
+  @Override
+  public int
+  read() throws IOException
+  {
+    if (!ensureBlock())
+      return -1;
+    return block_.bytes[position_++] & 0xff;
+  }
+
+  @Override
+  public int
+  read(byte[] bytes, int offset, int length) throws IOException
+  {
+    if (length == 0)
+      return 0;
+    if (!ensureBlock())
+      return -1;
+
+    int nBytes = Math.min(length, block_.length - position_);
+    System.arraycopy(block_.bytes, position_, bytes, offset, nBytes);
+    position_ += nBytes;
+    return nBytes;
+  }
+
+  /**
+   * Get the fraction of the compressed file which has been decompressed, which
+   * can be used to show progress.
+   * @return The fraction from 0.0 to 1.0.
+   */
+  public double
+  getCompressedFraction()
+  {
+    if (isDecompressed_)
+      // The file is closed.
+      return 1.0;
+    try {
+      return size_ == 0 ? 1.0 : (double)file_.getChannel().position() / size_;
+    } catch (IOException ex) {
+      return 0;
+    }
+  }
+
+  /**
+   * Stop the decompression thread and close the file.
+   */
+  @Override
+  public void
+  close() throws IOException
+  {
+    if (isClosed_)
+      return;
+    isClosed_ = true;
+    thread_.interrupt();
+    file_.close();
+  }
+
+  /**
+   * Make block_ have bytes to read, taking the next block from the queue if
+   * needed.
+   * @return True if there are bytes, or false for the end of the file.
+   * @throws IOException for a decompression error, or if closed.
+   */
+  private boolean
+  ensureBlock() throws IOException
+  {
+    if (isClosed_)
+      throw new IOException("The PipelinedGzipInputStream is closed");
+
+    while (block_ == null || position_ >= block_.length) {
+      if (block_ == END)
+        return false;
+      if (block_ != null)
+        freeBlocks_.offer(block_);
+
+      try {
+        block_ = fullBlocks_.take();
+      } catch (InterruptedException ex) {
+        throw new InterruptedIOException();
+      }
+      position_ = 0;
+      if (block_ == END && error_ != null)
+        throw new IOException("Error decompressing: " + error_, error_);
+    }
+
+    return true;
+  }
+
+  /**
+   * This runs in thread_ to fill blocks and put them in fullBlocks_, ending
+   * with END. When finished or stopped, this closes gzip to free its native
+   * Inflater memory now instead of waiting for GC.
+   */
+  private void
+  decompress(GZIPInputStream gzip)
+  {
+    try {
+      decompressBlocks(gzip);
+    }
+    finally {
+      isDecompressed_ = true;
+      try {
+        // This also closes file_.
+        gzip.close();
+      } catch (IOException ex) {
+        // We are finished, so ignore an error closing.
+      }
+    }
+  }
+
+  /**
+   * Fill blocks and put them in fullBlocks_, then put END. If there is any
+   * error, including a RuntimeException or an Error like OutOfMemoryError, set
+   * error_ and still put END so that the reader doesn't wait forever.
+   */
+  private void
+  decompressBlocks(GZIPInputStream gzip)
+  {
+    try {
+      while (true) {
+        Block block = freeBlocks_.poll();
+        if (block == null)
+          block = new Block(BLOCK_SIZE);
+
+        block.length = 0;
+        while (block.length < BLOCK_SIZE) {
+          int nBytes = gzip.read
+            (block.bytes, block.length, BLOCK_SIZE - block.length);
+          if (nBytes < 0)
+            break;
+          block.length += nBytes;
+        }
+
+        if (block.length > 0)
+          fullBlocks_.put(block);
+        if (block.length < BLOCK_SIZE)
+          // The end of the file.
+          break;
+      }
+    } catch (Throwable ex) {
+      if (isClosed_)
+        // close() interrupted the thread or closed the file, so nobody reads.
+        return;
+      error_ = ex;
+    }
+
+    try {
+      fullBlocks_.put(END);
+    } catch (InterruptedException ex) {
+      // close() was called.
+    }
+  }
+
+  private static class Block {
+    public Block(int size) { bytes = new byte[size]; }
+
+    public final byte[] bytes;
+    public int length = 0;
+  }
+
+  private static final int BLOCK_SIZE = 1 << 20;
+  /** The number of decompressed blocks which can wait for the reader. */
+  private static final int QUEUE_BLOCKS = 4;
+  private static final Block END = new Block(0);
+  private final FileInputStream file_;
+  /** True when thread_ has finished and closed the file. */
+  private volatile boolean isDecompressed_ = false;
+  private final long size_;
+  private final Thread thread_;
+  private final BlockingQueue<Block> fullBlocks_ =
+    new ArrayBlockingQueue<>(QUEUE_BLOCKS);
+  private final BlockingQueue<Block> freeBlocks_ =
+    new ArrayBlockingQueue<>(QUEUE_BLOCKS + 2);
+  private volatile boolean isClosed_ = false;
+  /** Set by thread_ before it puts END, so the reader sees it after END. */
+  private volatile Throwable error_ = null;
+  private Block block_ = null;
+  private int position_ = 0;
+}
@@ -0,0 +1,297 @@
+/*
+Copyright (C) 2017 Jeff Thompson
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package org.nuvl.nuvlworld;
+
+/**
+ * A SchemeTokenizer classifies a line of a Scheme file in one left-to-right
+ * pass. It accepts exactly the lines accepted by NuvlWorldStore.termPattern_,
+ * termPattern4_, integerPattern_ and stringPattern_ and gives the same
+ * predicate, arg2 and literal as their groups 1, 2 and 3. A SchemeTokenizer
+ * holds the result of the last call to tokenize, so each thread should use
+ * its own.
+ * @author Jeff Thompson, jeff@thefirst.org
+ */
+public class SchemeTokenizer {
+  /**
+   * The Kind of a line is the first of the NuvlWorldStore patterns that
+   * matches it.
+   */
+  public enum Kind {
+    /** The line matches termPattern_. */
+    TERM,
+    /** The line matches termPattern4_. */
+    TERM4,
+    /** The line matches integerPattern_. */
+    INTEGER,
+    /** The line matches stringPattern_. */
+    STRING
+  }
+
+  /**
+   * Classify the line and save the positions of its parts.
+   * @param line The line without the end of line characters.
+   * @return True if the line matches one of the patterns, false if not.
+   */
+  public boolean
+  tokenize(String line)
+  {
+    line_ = line;
+    kind_ = null;
+
+    // The patterns end with $ which also matches before a final line
+    // terminator.
+    int end = line.length();
+    if (end > 0 && isLineTerminator(line.charAt(end - 1))) {
+      --end;
+      if (end > 0 && line.charAt(end) == '\n' && line.charAt(end - 1) == '\r')
+        --end;
+    }
+    // Every pattern ends with ")".
+    if (end < 1 || line.charAt(end - 1) != ')')
+      return false;
+    int close = end - 1;
+
+    if (line.charAt(0) != '(')
+      return false;
+    predicateEnd_ = scanTerm(line, 1, close);
+    if (predicateEnd_ < 0 || predicateEnd_ >= close ||
+        line.charAt(predicateEnd_) != ' ')
+      return false;
+
+    arg2Begin_ = predicateEnd_ + 1;
+    boolean arg2IsTerm;
+    arg2End_ = scanTerm(line, arg2Begin_, close);
+    if (arg2End_ >= 0)
+      arg2IsTerm = true;
+    else {
+      arg2End_ = scanCompound(line, arg2Begin_, close);
+      if (arg2End_ < 0)
+        return false;
+      arg2IsTerm = false;
+    }
+    if (arg2End_ >= close || line.charAt(arg2End_) != ' ')
+      return false;
+
+    int arg3Begin = arg2End_ + 1;
+    restBegin_ = arg3Begin;
+    restEnd_ = close;
+    literalBegin_ = arg3Begin;
+    if (arg3Begin >= close)
+      return false;
+    char c = line.charAt(arg3Begin);
+
+    if (isTermStart(c)) {
+      int arg3End = scanTerm(line, arg3Begin, close);
+      if (arg3End == close) {
+        kind_ = Kind.TERM;
+        literalEnd_ = arg3End;
+        return true;
+      }
+
+      // Try termPattern4_.
+      if (!arg2IsTerm || line.charAt(arg3End) != ' ')
+        return false;
+      int arg4Begin = arg3End + 1;
+      int arg4End = scanTerm(line, arg4Begin, close);
+      if (arg4End < 0)
+        arg4End = scanCompound(line, arg4Begin, close);
+      if (arg4End != close)
+        return false;
+      kind_ = Kind.TERM4;
+      literalEnd_ = arg3End;
+      return true;
+    }
+    else if (c == '(') {
+      if (scanCompound(line, arg3Begin, close) != close)
+        return false;
+      kind_ = Kind.TERM;
+      literalEnd_ = close;
+      return true;
+    }
+    else if (c == '-' || isDigit(c)) {
+      if (!arg2IsTerm || scanInt(line, arg3Begin, close) != close)
+        return false;
+      kind_ = Kind.INTEGER;
+      literalEnd_ = close;
+      return true;
+    }
+    else if (c == '"') {
+      // The quotes must be different characters, and "." in the pattern
+      // doesn't match a line terminator.
+      if (!arg2IsTerm || close - arg3Begin < 2 || line.charAt(close - 1) != '"')
+        return false;
+      for (int i = arg3Begin + 1; i < close - 1; ++i) {
+        if (isLineTerminator(line.charAt(i)))
+          return false;
+      }
+      kind_ = Kind.STRING;
+      literalEnd_ = close;
+      return true;
+    }
+    else
+      return false;
+  }
+
+  /**
+   * Get the Kind from the last call to tokenize.
+   * @return The Kind, or null if the last line was not recognized.
+   */
+  public Kind getKind() { return kind_; }
+
+  /**
+   * Get the predicate. This is the same as group 1 of the matching pattern.
+   * @return The predicate.
+   */
+  public String getPredicate() { return line_.substring(1, predicateEnd_); }
+
+  /**
+   * Get the second term. This is the same as group 2 of the matching pattern.
+   * @return The arg2.
+   */
+  public String getArg2() { return line_.substring(arg2Begin_, arg2End_); }
+
+  /**
+   * Get the third term, which is the same as group 3 of the matching pattern.
+   * For Kind.INTEGER this is the integer text, and for Kind.STRING this is the
+   * escaped string including the quotes.
+   * @return The literal.
+   */
+  public String getLiteral() { return line_.substring(literalBegin_, literalEnd_); }
+
+  /**
+   * Get the text after arg2 and its following space, up to but not including
+   * the final ")". For all kinds except Kind.TERM4 this is the same as
+   * getLiteral().
+   * @return The rest of the line.
+   */
+  public String getRest() { return line_.substring(restBegin_, restEnd_); }
+
+  /**
+   * Check if the predicate of the last tokenized line equals the given value
+   * without making a substring.
+   * @param predicate The predicate to compare.
+   * @return True if equal.
+   */
+  public boolean
+  predicateEquals(String predicate)
+  {
+    return predicateEnd_ - 1 == predicate.length() &&
+      line_.startsWith(predicate, 1);
+  }
+
+  /**
+   * Scan TERM = [a-zA-Z_]\w* starting at begin.
+   * @return The index after the term, or -1 if there is no term at begin.
+   */
+  private static int
+  scanTerm(String line, int begin, int limit)
+  {
+    if (begin >= limit || !isTermStart(line.charAt(begin)))
+      return -1;
+
+    int i = begin + 1;
+    while (i < limit && isWordChar(line.charAt(i)))
+      ++i;
+    return i;
+  }
+
+  /**
+   * Scan INT = -?\d+ starting at begin.
+   * @return The index after the integer, or -1 if there is no integer at begin.
+   */
+  private static int
+  scanInt(String line, int begin, int limit)
+  {
+    int i = begin;
+    if (i < limit && line.charAt(i) == '-')
+      ++i;
+    int digitsBegin = i;
+    while (i < limit && isDigit(line.charAt(i)))
+      ++i;
+    if (i == digitsBegin)
+      return -1;
+    // A TERM or INT is always followed by a space or ")". Don't accept the
+    // digits if they are followed by a word character.
+    if (i < limit && isWordChar(line.charAt(i)))
+      return -1;
+    return i;
+  }
+
+  /**
+   * Scan UNARY or BINARY starting at begin.
+   * @return The index after the closing ")", or -1 if there is no match.
+   */
+  private static int
+  scanCompound(String line, int begin, int limit)
+  {
+    if (begin >= limit || line.charAt(begin) != '(')
+      return -1;
+
+    int i = scanTerm(line, begin + 1, limit);
+    if (i < 0 || i >= limit || line.charAt(i) != ' ')
+      return -1;
+
+    for (int nArgs = 0; nArgs < 2; ++nArgs) {
+      int argEnd = scanTerm(line, i + 1, limit);
+      if (argEnd < 0)
+        argEnd = scanInt(line, i + 1, limit);
+      if (argEnd < 0 || argEnd >= limit)
+        return -1;
+
+      if (line.charAt(argEnd) == ')')
+        return argEnd + 1;
+      if (line.charAt(argEnd) != ' ')
+        return -1;
+      i = argEnd;
+    }
+
+    return -1;
+  }
+
+  private static boolean
+  isTermStart(char c)
+  {
+    return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_';
+  }
+
+  private static boolean
+  isDigit(char c) { return c >= '0' && c <= '9'; }
+
+  private static boolean
+  isWordChar(char c) { return isTermStart(c) || isDigit(c); }
+
+  /**
+   * Check for the characters which "." doesn't match and which "$" may
+   * precede, as in java.util.regex.Pattern.
+   */
+  private static boolean
+  isLineTerminator(char c)
+  {
+    return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' ||
+      c == '\u2029';
+  }
+
+  private String line_;
+  private Kind kind_;
+  private int predicateEnd_;
+  private int arg2Begin_;
+  private int arg2End_;
+  private int literalBegin_;
+  private int literalEnd_;
+  private int restBegin_;
+  private int restEnd_;
+}
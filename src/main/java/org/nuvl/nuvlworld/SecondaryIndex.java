@@ -0,0 +1,114 @@
+/*
+Copyright (C) 2017 Jeff Thompson
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package org.nuvl.nuvlworld;
+
+import java.util.Arrays;
+
+/**
+ * A SecondaryIndex maps the value of one argument position of the sentences
+ * with a given predicate to the triple numbers of those sentences. For
+ * example, the index for predicate "iataAirportCode" and position 3 maps
+ * "\"SFO\"" to the triple of (iataAirportCode Q8688 "SFO") . The
+ * NuvlWorldStore maintains each declared SecondaryIndex as sentences are added
+ * and removed. An argument in the rest of a sentence may not be a term by
+ * itself, so the keys are in the index's own TermDictionary instead of the
+ * store's, and the key ID is the index in an array of lists.
+ * @author Jeff Thompson, jeff@thefirst.org
+ */
+public class SecondaryIndex {
+  /**
+   * Create an empty SecondaryIndex.
+   * @param predicate The predicate of the indexed sentences.
+   * @param argPosition The argument position of the key, where 2 is the arg2
+   * and 3 is the next argument (see NuvlWorldStore.getArgument).
+   */
+  public SecondaryIndex(String predicate, int argPosition)
+  {
+    predicate_ = predicate;
+    argPosition_ = argPosition;
+  }
+
+  public String getPredicate() { return predicate_; }
+
+  public int getArgPosition() { return argPosition_; }
+
+  /**
+   * Get the triples whose argument is the key.
+   * @param key The argument value.
+   * @return The list of triple numbers, or null if none.
+   */
+  public IntList
+  get(String key)
+  {
+    int keyId = keys_.getId(key);
+    if (keyId < 0 || keyId >= triples_.length)
+      return null;
+    return triples_[keyId];
+  }
+
+  /**
+   * Add the triple to the list for the key.
+   * @param key The argument value.
+   * @param triple The triple number.
+   */
+  public void
+  add(String key, int triple)
+  {
+    int keyId = keys_.add(key);
+    if (keyId >= triples_.length)
+      // Grow by half, the same as the store's indexes.
+      triples_ = Arrays.copyOf
+        (triples_, Math.max
+         (keyId + 1, triples_.length + (triples_.length >> 1) + 16));
+    if (triples_[keyId] == null)
+      triples_[keyId] = new IntList();
+    triples_[keyId].add(triple);
+  }
+
+  /**
+   * Remove the triple from the list for the key. The key stays in the
+   * dictionary since it is likely to be added again.
+   * @param key The argument value.
+   * @param triple The triple number.
+   */
+  public void
+  remove(String key, int triple)
+  {
+    IntList triples = get(key);
+    if (triples == null)
+      return;
+    triples.remove(triple);
+    if (triples.size() == 0)
+      triples_[keys_.getId(key)] = null;
+  }
+
+  /**
+   * Remove all entries, for example to build the index again.
+   */
+  public void
+  clear()
+  {
+    keys_ = new TermDictionary();
+    triples_ = new IntList[0];
+  }
+
+  private final String predicate_;
+  private final int argPosition_;
+  private TermDictionary keys_ = new TermDictionary();
+  /** index: the key ID in keys_, value: the triple numbers or null. */
+  private IntList[] triples_ = new IntList[0];
+}
@@ -0,0 +1,543 @@
+/*
+Copyright (C) 2017 Jeff Thompson
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package org.nuvl.nuvlworld;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * StoreSnapshot has static methods to save the contents of a NuvlWorldStore
+ * to a binary snapshot file and load it again. The file has a header with the
+ * source files it was made from, followed by sections which are arrays of
+ * big-endian ints or padded UTF-8 bytes, so that loading maps each section and
+ * copies it in bulk instead of parsing text:
+ * <pre>
+ * int MAGIC, int VERSION
+ * int nSources, then for each: int nBytes, bytes of the path, long size,
+ *   long lastModified
+ * term dictionary: int nTerms, int[nTerms + 1] offsets, bytes,
+ *   int tableSize, int[tableSize] TermDictionary hash table
+ * triples: int nTriples, int[3 * nTriples] of predicate, arg2, rest term,
+ *   int tableSize, int[tableSize] TripleTable hash table
+ * predicate index: int nKeys, int[nKeys] key terms, int[nKeys + 1] offsets,
+ *   int[nTriples] triple numbers
+ * arg2 index: the same as the predicate index
+ * descriptions: int nDescriptions, int[nDescriptions] subject terms,
+ *   int[nDescriptions + 1] offsets, bytes
+ * </pre>
+ * Each byte section is padded to a multiple of 4 bytes. The hash tables are
+ * saved so that loading doesn't need to rehash the terms and triples.
+ * @author Jeff Thompson, jeff@thefirst.org
+ */
+class StoreSnapshot {
+  /**
+   * Write the store to snapshotFile, replacing it if it exists.
+   * @param store The NuvlWorldStore to save.
+   * @param snapshotFile The snapshot file. This first writes to a temporary
+   * file and renames it when done.
+   * @param sources The source files that the store was loaded from. The
+   * snapshot saves their size and last modified time.
+   */
+  static void
+  save(NuvlWorldStore store, File snapshotFile, List<File> sources)
+    throws IOException
+  {
+    TermDictionary terms = store.getTerms();
+    TripleTable triples = store.getTriples();
+
+    File tempFile = new File(snapshotFile.getPath() + ".tmp");
+    try (SnapshotOutput out = new SnapshotOutput(tempFile)) {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+
+      out.writeInt(sources.size());
+      for (File source : sources) {
+        out.writeBytes(source.getAbsolutePath().getBytes(StandardCharsets.UTF_8));
+        out.writeLong(source.length());
+        out.writeLong(source.lastModified());
+      }
+
+      out.writeInt(terms.size());
+      List<String> termList = new ArrayList<>(terms.size());
+      for (int i = 0; i < terms.size(); ++i)
+        termList.add(terms.getTerm(i));
+      out.writeStringBytes(termList);
+      out.writeInt(terms.getTable().length);
+      out.writeInts(terms.getTable(), terms.getTable().length);
+
+      out.writeInt(triples.size());
+      out.writeInts(triples.getTriples(), 3 * triples.size());
+      out.writeInt(triples.getTable().length);
+      out.writeInts(triples.getTable(), triples.getTable().length);
+
+      writeIndex(out, store.getTriplesByPredicate());
+      writeIndex(out, store.getTriplesByArg2());
+
+      IntList subjects = store.descriptions_.getTermIds();
+      out.writeInt(subjects.size());
+      out.writeInts(subjects.toArray(), subjects.size());
+      List<String> descriptions = new ArrayList<>(subjects.size());
+      for (int i = 0; i < subjects.size(); ++i)
+        descriptions.add(store.descriptions_.get(subjects.get(i)));
+      out.writeStringBytes(descriptions);
+    }
+
+    Files.move(tempFile.toPath(), snapshotFile.toPath(),
+               StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  /**
+   * Read snapshotFile and add its contents to the store, which should be
+   * empty. If the snapshot is missing, has a different VERSION or is stale,
+   * then don't change the store and return false.
+   * @param store The NuvlWorldStore to add to.
+   * @param snapshotFile The snapshot file written by save.
+   * @param sources The source files that the store would be loaded from. The
+   * snapshot is stale if these are not the same files (in the same order) with
+   * the same size and last modified time as when the snapshot was saved.
+   * @return True if loaded, false if the snapshot can't be used.
+   * @throws IOException for a read error or if the file is corrupted.
+   */
+  static boolean
+  load(NuvlWorldStore store, File snapshotFile, List<File> sources)
+    throws IOException
+  {
+    if (!snapshotFile.isFile())
+      return false;
+
+    try (FileChannel channel = FileChannel.open
+           (snapshotFile.toPath(), StandardOpenOption.READ)) {
+      SnapshotInput in = new SnapshotInput(channel);
+      if (in.readInt() != MAGIC || in.readInt() != VERSION)
+        return false;
+
+      if (in.readInt() != sources.size())
+        return false;
+      for (File source : sources) {
+        String path = new String(in.readBytes(), StandardCharsets.UTF_8);
+        long size = in.readLong();
+        long lastModified = in.readLong();
+        if (!path.equals(source.getAbsolutePath()) || !source.isFile() ||
+            size != source.length() || lastModified != source.lastModified())
+          return false;
+      }
+
+      int nTerms = in.readInt();
+      String[] termArray = in.readStrings(nTerms);
+      for (String term : termArray) {
+        if (term.isEmpty())
+          throw new IOException("Corrupted snapshot file " + snapshotFile);
+      }
+      int[] termTable = in.readInts(in.readInt());
+      checkTable(termTable, nTerms, snapshotFile);
+      TermDictionary terms = new TermDictionary(termArray, nTerms, termTable);
+
+      int nTriples = in.readInt();
+      int[] tripleArray = in.readInts(3 * nTriples);
+      checkTriples(tripleArray, nTerms, snapshotFile);
+      int[] tripleTable = in.readInts(in.readInt());
+      checkTable(tripleTable, nTriples, snapshotFile);
+      TripleTable triples = new TripleTable(tripleArray, nTriples, tripleTable);
+
+      IntList[] triplesByPredicate = readIndex
+        (in, nTerms, nTriples, snapshotFile);
+      IntList[] triplesByArg2 = readIndex(in, nTerms, nTriples, snapshotFile);
+
+      int nDescriptions = in.readInt();
+      int[] subjects = in.readInts(nDescriptions);
+      // Copy the UTF-8 descriptions to the DescriptionStore without decoding.
+      int[] offsets = in.readInts(nDescriptions + 1);
+      byte[] descriptionBytes = in.readPaddedBytes(offsets[nDescriptions]);
+      for (int i = 0; i < nDescriptions; ++i) {
+        if (subjects[i] < 0 || subjects[i] >= nTerms ||
+            offsets[i] < 0 || offsets[i] > offsets[i + 1])
+          throw new IOException("Corrupted snapshot file " + snapshotFile);
+      }
+
+      // Everything is read and checked, so update the store.
+      store.setTriples(terms, triples, triplesByPredicate, triplesByArg2);
+      for (int i = 0; i < nDescriptions; ++i)
+        store.descriptions_.putUtf8
+          (subjects[i], descriptionBytes, offsets[i], offsets[i + 1] - offsets[i]);
+    } catch (IndexOutOfBoundsException | IllegalArgumentException ex) {
+      throw new IOException("Corrupted snapshot file " + snapshotFile, ex);
+    }
+
+    return true;
+  }
+
+  static String
+  toSymbol(String predicate, String arg2, String rest)
+  {
+    return "(" + predicate + " " + arg2 + " " + rest + ")";
+  }
+
+  /**
+   * Write the term IDs which have a list in the index, then the offsets of the
+   * lists, then the lists.
+   */
+  private static void
+  writeIndex(SnapshotOutput out, IntList[] index) throws IOException
+  {
+    int nKeys = 0;
+    for (IntList list : index) {
+      if (list != null)
+        ++nKeys;
+    }
+
+    out.writeInt(nKeys);
+    for (int termId = 0; termId < index.length; ++termId) {
+      if (index[termId] != null)
+        out.writeInt(termId);
+    }
+
+    int offset = 0;
+    out.writeInt(offset);
+    for (IntList list : index) {
+      if (list != null) {
+        offset += list.size();
+        out.writeInt(offset);
+      }
+    }
+
+    for (IntList list : index) {
+      if (list != null)
+        out.writeInts(list.toArray(), list.size());
+    }
+  }
+
+  /**
+   * Read the index written by writeIndex, and check that the keys are term IDs
+   * in increasing order and that each list has triple numbers in increasing
+   * order.
+   * @param nTerms The number of terms in the dictionary, which is the size of
+   * the returned index.
+   * @param nTriples The number of triples.
+   * @throws IOException if the index is corrupted.
+   */
+  private static IntList[]
+  readIndex(SnapshotInput in, int nTerms, int nTriples, File snapshotFile)
+    throws IOException
+  {
+    int nKeys = in.readInt();
+    int[] keys = in.readInts(nKeys);
+    int[] offsets = in.readInts(nKeys + 1);
+    int[] tripleNumbers = in.readInts(offsets[nKeys]);
+    if (offsets[0] != 0)
+      throw new IOException("Corrupted snapshot file " + snapshotFile);
+    for (int i = 0; i < nKeys; ++i) {
+      if (keys[i] < 0 || keys[i] >= nTerms ||
+          (i > 0 && keys[i] <= keys[i - 1]) || offsets[i + 1] < offsets[i])
+        throw new IOException("Corrupted snapshot file " + snapshotFile);
+      for (int j = offsets[i]; j < offsets[i + 1]; ++j) {
+        if (tripleNumbers[j] < 0 || tripleNumbers[j] >= nTriples ||
+            (j > offsets[i] && tripleNumbers[j] <= tripleNumbers[j - 1]))
+          throw new IOException("Corrupted snapshot file " + snapshotFile);
+      }
+    }
+
+    IntList[] index = new IntList[nTerms];
+    for (int i = 0; i < nKeys; ++i) {
+      int size = offsets[i + 1] - offsets[i];
+      index[keys[i]] = new IntList
+        (Arrays.copyOfRange(tripleNumbers, offsets[i], offsets[i + 1]), size);
+    }
+
+    return index;
+  }
+
+  /**
+   * Check that each term ID in the triples array is a term ID, or ~id for a
+   * removed triple where all three are ~id.
+   * @throws IOException if the triples are corrupted.
+   */
+  private static void
+  checkTriples(int[] triples, int nTerms, File snapshotFile)
+    throws IOException
+  {
+    for (int i = 0; i < triples.length; i += 3) {
+      boolean isRemoved = triples[i] < 0;
+      for (int j = i; j < i + 3; ++j) {
+        int termId = isRemoved ? ~triples[j] : triples[j];
+        if (termId < 0 || termId >= nTerms)
+          throw new IOException("Corrupted snapshot file " + snapshotFile);
+      }
+    }
+  }
+
+  /**
+   * Check that the hash table of a TermDictionary or TripleTable has a power
+   * of two length with an empty slot, and that each entry is 0 for empty or
+   * an ID + 1.
+   * @param size The number of IDs.
+   * @throws IOException if the table is corrupted.
+   */
+  private static void
+  checkTable(int[] table, int size, File snapshotFile) throws IOException
+  {
+    if (table.length <= size || Integer.bitCount(table.length) != 1)
+      throw new IOException("Corrupted snapshot file " + snapshotFile);
+    for (int entry : table) {
+      if (entry < 0 || entry > size)
+        throw new IOException("Corrupted snapshot file " + snapshotFile);
+    }
+  }
+
+  /**
+   * A SnapshotOutput writes the snapshot sections with a DataOutputStream and
+   * keeps the byte position to pad the byte sections.
+   */
+  private static class SnapshotOutput implements AutoCloseable {
+    public SnapshotOutput(File file) throws IOException
+    {
+      out_ = new DataOutputStream(new BufferedOutputStream
+        (new FileOutputStream(file), 1 << 16));
+    }
+
+    public void
+    writeInt(int value) throws IOException
+    {
+      out_.writeInt(value);
+      position_ += 4;
+    }
+
+    public void
+    writeLong(long value) throws IOException
+    {
+      out_.writeLong(value);
+      position_ += 8;
+    }
+
+    public void
+    writeInts(int[] values, int count) throws IOException
+    {
+      for (int i = 0; i < count; ++i)
+        out_.writeInt(values[i]);
+      position_ += 4L * count;
+    }
+
+    /**
+     * Write the length of the bytes, then the padded bytes.
+     */
+    public void
+    writeBytes(byte[] bytes) throws IOException
+    {
+      writeInt(bytes.length);
+      out_.write(bytes);
+      position_ += bytes.length;
+      pad();
+    }
+
+    /**
+     * Write the offsets of the UTF-8 encoded strings, then the padded bytes.
+     */
+    public void
+    writeStringBytes(List<String> strings) throws IOException
+    {
+      List<byte[]> encoded = new ArrayList<>(strings.size());
+      int offset = 0;
+      writeInt(offset);
+      for (String s : strings) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        encoded.add(bytes);
+        offset += bytes.length;
+        writeInt(offset);
+      }
+
+      for (byte[] bytes : encoded) {
+        out_.write(bytes);
+        position_ += bytes.length;
+      }
+      pad();
+    }
+
+    @Override
+    public void
+    close() throws IOException { out_.close(); }
+
+    /**
+     * Write zeros up to a multiple of 4 bytes.
+     */
+    private void
+    pad() throws IOException
+    {
+      while (position_ % 4 != 0) {
+        out_.write(0);
+        ++position_;
+      }
+    }
+
+    private final DataOutputStream out_;
+    private long position_ = 0;
+  }
+
+  /**
+   * A SnapshotInput reads the snapshot sections from a FileChannel. The header
+   * fields and other small sections are read through one buffer. Large array
+   * sections are memory-mapped and copied in bulk.
+   */
+  private static class SnapshotInput {
+    public SnapshotInput(FileChannel channel)
+    {
+      channel_ = channel;
+      // Start with an empty buffer.
+      buffer_.limit(0);
+    }
+
+    public int
+    readInt() throws IOException { return read(4).getInt(); }
+
+    public long
+    readLong() throws IOException { return read(8).getLong(); }
+
+    public int[]
+    readInts(int count) throws IOException
+    {
+      if (count < 0)
+        throw new IOException("Snapshot section is out of bounds");
+      int[] result = new int[count];
+      long size = 4L * count;
+      if (size <= BUFFER_SIZE) {
+        ByteBuffer buffer = read((int)size);
+        // The int view doesn't move the buffer position.
+        buffer.asIntBuffer().get(result);
+        buffer.position(buffer.position() + (int)size);
+      }
+      else
+        map(size).asIntBuffer().get(result);
+      return result;
+    }
+
+    /**
+     * Read the length of the bytes, then the padded bytes.
+     */
+    public byte[]
+    readBytes() throws IOException { return readPaddedBytes(readInt()); }
+
+    /**
+     * Read the given number of bytes, then skip the padding.
+     */
+    public byte[]
+    readPaddedBytes(int length) throws IOException
+    {
+      if (length < 0)
+        throw new IOException("Snapshot section is out of bounds");
+      byte[] result = new byte[length];
+      if (length <= BUFFER_SIZE)
+        read(length).get(result);
+      else
+        map(length).get(result);
+      skipPadding();
+      return result;
+    }
+
+    /**
+     * Read the offsets of the UTF-8 encoded strings, then the padded bytes.
+     */
+    public String[]
+    readStrings(int count) throws IOException
+    {
+      int[] offsets = readInts(count + 1);
+      byte[] bytes = readPaddedBytes(offsets[count]);
+
+      String[] result = new String[count];
+      for (int i = 0; i < count; ++i)
+        result[i] = new String
+          (bytes, offsets[i], offsets[i + 1] - offsets[i],
+           StandardCharsets.UTF_8);
+      return result;
+    }
+
+    /**
+     * Make sure that buffer_ has the next size bytes, and advance position_.
+     * @param size The number of bytes, which is not more than BUFFER_SIZE.
+     * @return The buffer_, positioned at the bytes to read with relative gets.
+     */
+    private ByteBuffer
+    read(int size) throws IOException
+    {
+      if (buffer_.remaining() < size) {
+        // Refill from position_, which is the position of buffer_.
+        buffer_.clear();
+        long filePosition = position_;
+        while (buffer_.hasRemaining()) {
+          int nBytes = channel_.read(buffer_, filePosition);
+          if (nBytes < 0)
+            break;
+          filePosition += nBytes;
+        }
+        buffer_.flip();
+        if (buffer_.remaining() < size)
+          throw new IOException("Snapshot section is out of bounds");
+      }
+
+      position_ += size;
+      return buffer_;
+    }
+
+    /**
+     * Map the next size bytes and advance position_. This is for sections
+     * larger than buffer_, so discard buffer_ and the next read refills it.
+     */
+    private ByteBuffer
+    map(long size) throws IOException
+    {
+      if (size < 0 || size > Integer.MAX_VALUE ||
+          position_ + size > channel_.size())
+        throw new IOException("Snapshot section is out of bounds");
+
+      ByteBuffer buffer = channel_.map
+        (FileChannel.MapMode.READ_ONLY, position_, size);
+      position_ += size;
+      buffer_.limit(0);
+      return buffer;
+    }
+
+    private void
+    skipPadding()
+    {
+      int nPadding = (int)((4 - position_ % 4) % 4);
+      if (buffer_.remaining() >= nPadding)
+        buffer_.position(buffer_.position() + nPadding);
+      else
+        buffer_.limit(0);
+      position_ += nPadding;
+    }
+
+    private final FileChannel channel_;
+    private final ByteBuffer buffer_ = ByteBuffer.allocate(BUFFER_SIZE);
+    /** The file position of the next read, which is where buffer_ is. */
+    private long position_ = 0;
+    private static final int BUFFER_SIZE = 1 << 16;
+  }
+
+  private static final int MAGIC = 0x4e575353;
+  /** Change this whenever the format changes so that old snapshots are rejected. */
+  private static final int VERSION = 2;
+}
@@ -0,0 +1,149 @@
+/*
+Copyright (C) 2017 Jeff Thompson
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package org.nuvl.nuvlworld;
+
+import java.util.Arrays;
+
+/**
+ * A TermDictionary assigns a dense int ID to each distinct term string, in the
+ * order they are added. The lookup table is open addressing over the IDs so
+ * that there is no per-entry object besides the term String itself.
+ * <p>
+ * There must be only one thread which adds at a time, but getId and getTerm
+ * can be called from other threads at the same time without a lock. A term
+ * is visible to them once add returns, which publishes it by writing the
+ * volatile size.
+ * @author Jeff Thompson, jeff@thefirst.org
+ */
+public class TermDictionary {
+  public TermDictionary()
+  {
+    terms_ = new String[16];
+    table_ = new int[32];
+  }
+
+  /**
+   * Create a TermDictionary from the arrays saved by a snapshot.
+   * @param terms The terms where the index is the ID. This is used directly.
+   * @param size The number of terms.
+   * @param table The hash table from getTable().
+   */
+  TermDictionary(String[] terms, int size, int[] table)
+  {
+    terms_ = terms;
+    size_ = size;
+    table_ = table;
+  }
+
+  /**
+   * Get the ID of the term.
+   * @param term The term.
+   * @return The ID, or -1 if the term has not been added.
+   */
+  public int
+  getId(String term)
+  {
+    // Read size_ first. The arrays are at least as new as when it was written,
+    // and an entry for a later ID may be from an add in progress, so treat it
+    // as empty.
+    int size = size_;
+    int[] table = table_;
+    String[] terms = terms_;
+    int mask = table.length - 1;
+    for (int i = mix(term.hashCode()) & mask; ; i = (i + 1) & mask) {
+      int entry = table[i];
+      if (entry == 0 || entry > size)
+        return -1;
+      if (terms[entry - 1].equals(term))
+        return entry - 1;
+    }
+  }
+
+  /**
+   * Get the ID of the term, adding it if it is new.
+   * @param term The term.
+   * @return The ID.
+   */
+  public int
+  add(String term)
+  {
+    int mask = table_.length - 1;
+    int i = mix(term.hashCode()) & mask;
+    for (; ; i = (i + 1) & mask) {
+      int entry = table_[i];
+      if (entry == 0)
+        break;
+      if (terms_[entry - 1].equals(term))
+        return entry - 1;
+    }
+
+    if (size_ == terms_.length)
+      terms_ = Arrays.copyOf(terms_, Math.max(16, size_ * 2));
+    int id = size_;
+    terms_[id] = term;
+    table_[i] = id + 1;
+    // Publish the term to other threads.
+    size_ = id + 1;
+
+    if (size_ * 2 > table_.length)
+      rehash(table_.length * 2);
+    return id;
+  }
+
+  /**
+   * Get the term for the ID.
+   * @param id The ID from add.
+   * @return The term.
+   */
+  public String getTerm(int id) { return terms_[id]; }
+
+  public int size() { return size_; }
+
+  /**
+   * Get the internal hash table, which holds ID + 1 or 0 for an empty slot.
+   * This is used to save a snapshot.
+   */
+  int[] getTable() { return table_; }
+
+  private void
+  rehash(int capacity)
+  {
+    int[] table = new int[capacity];
+    int mask = capacity - 1;
+    for (int id = 0; id < size_; ++id) {
+      int i = mix(terms_[id].hashCode()) & mask;
+      while (table[i] != 0)
+        i = (i + 1) & mask;
+      table[i] = id + 1;
+    }
+    table_ = table;
+  }
+
+  /**
+   * Spread the bits of the hash code since the table size is a power of 2.
+   */
+  static int
+  mix(int hash)
+  {
+    hash *= 0x9e3779b9;
+    return hash ^ (hash >>> 16);
+  }
+
+  private volatile String[] terms_;
+  private volatile int size_ = 0;
+  private volatile int[] table_;
+}
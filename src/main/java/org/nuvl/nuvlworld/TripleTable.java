@@ -0,0 +1,203 @@
+/*
+Copyright (C) 2017 Jeff Thompson
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package org.nuvl.nuvlworld;
+
+import java.util.Arrays;
+
+/**
+ * A TripleTable holds each distinct triple of term IDs (predicate, arg2, rest)
+ * as three consecutive ints in one array, and assigns it a dense triple
+ * number. A triple is the Sentence "(" + predicate + " " + arg2 + " " + rest +
+ * ")" where rest is the text after arg2, for example "Q5" or
+ * "(TimeIntervalFn 1 2)". When a triple is removed, its triple number is not
+ * reused and its term IDs are stored as ~id (which is negative). So the term
+ * IDs of a triple number never change, and a reader which got the triple
+ * number before it was removed can still get its terms without a lock.
+ * @author Jeff Thompson, jeff@thefirst.org
+ */
+public class TripleTable {
+  public TripleTable()
+  {
+    triples_ = new int[3 * 16];
+    table_ = new int[32];
+  }
+
+  /**
+   * Create a TripleTable from the arrays saved by a snapshot.
+   * @param triples The triples array, which is used directly.
+   * @param size The number of triples.
+   * @param table The hash table from getTable().
+   */
+  TripleTable(int[] triples, int size, int[] table)
+  {
+    triples_ = triples;
+    size_ = size;
+    table_ = table;
+  }
+
+  /**
+   * Add the triple if it is not already in the table.
+   * @return The new triple number, or -1 if the triple is already in the
+   * table.
+   */
+  public int
+  add(int predicate, int arg2, int rest)
+  {
+    int i = findSlot(predicate, arg2, rest);
+    if (table_[i] != 0)
+      return -1;
+
+    if (3 * size_ == triples_.length)
+      triples_ = Arrays.copyOf(triples_, Math.max(3 * 16, triples_.length * 2));
+    int triple = size_++;
+    triples_[3 * triple] = predicate;
+    triples_[3 * triple + 1] = arg2;
+    triples_[3 * triple + 2] = rest;
+    table_[i] = triple + 1;
+
+    if (size_ * 2 > table_.length)
+      rehash(table_.length * 2);
+    return triple;
+  }
+
+  /**
+   * Get the triple number of the triple.
+   * @return The triple number, or -1 if not in the table.
+   */
+  public int
+  getTriple(int predicate, int arg2, int rest)
+  {
+    return table_[findSlot(predicate, arg2, rest)] - 1;
+  }
+
+  /**
+   * Remove the triple from the table.
+   * @return The removed triple number, or -1 if not in the table.
+   */
+  public int
+  remove(int predicate, int arg2, int rest)
+  {
+    int i = findSlot(predicate, arg2, rest);
+    if (table_[i] == 0)
+      return -1;
+    int triple = table_[i] - 1;
+    for (int j = 3 * triple; j < 3 * triple + 3; ++j)
+      triples_[j] = ~triples_[j];
+
+    // Shift back the following entries of the probe sequence which would not
+    // be found after emptying slot i.
+    int mask = table_.length - 1;
+    for (int j = (i + 1) & mask; table_[j] != 0; j = (j + 1) & mask) {
+      int entry = table_[j] - 1;
+      int home = hash(triples_[3 * entry], triples_[3 * entry + 1],
+                      triples_[3 * entry + 2]) & mask;
+      // Keep the entry if its home slot is cyclically in (i, j].
+      if (i <= j ? (i < home && home <= j) : (i < home || home <= j))
+        continue;
+      table_[i] = table_[j];
+      i = j;
+    }
+    table_[i] = 0;
+
+    return triple;
+  }
+
+  public int getPredicate(int triple) { return getTermId(3 * triple); }
+
+  public int getArg2(int triple) { return getTermId(3 * triple + 1); }
+
+  public int getRest(int triple) { return getTermId(3 * triple + 2); }
+
+  /**
+   * Check if the triple was removed.
+   */
+  public boolean isRemoved(int triple) { return triples_[3 * triple] < 0; }
+
+  public int size() { return size_; }
+
+  /**
+   * Get the internal triples array. This is used to save a snapshot.
+   */
+  int[] getTriples() { return triples_; }
+
+  /**
+   * Get the internal hash table, which holds triple number + 1 or 0 for an
+   * empty slot. This is used to save a snapshot.
+   */
+  int[] getTable() { return table_; }
+
+  private void
+  rehash(int capacity)
+  {
+    int[] table = new int[capacity];
+    int mask = capacity - 1;
+    for (int triple = 0; triple < size_; ++triple) {
+      if (triples_[3 * triple] < 0)
+        // Removed.
+        continue;
+      int i = hash(triples_[3 * triple], triples_[3 * triple + 1],
+                   triples_[3 * triple + 2]) & mask;
+      while (table[i] != 0)
+        i = (i + 1) & mask;
+      table[i] = triple + 1;
+    }
+    table_ = table;
+  }
+
+  /**
+   * Find the slot in table_ with the triple using linear probing.
+   * @return The index in table_ of the triple, or of the empty slot where it
+   * would be added.
+   */
+  private int
+  findSlot(int predicate, int arg2, int rest)
+  {
+    int[] triples = triples_;
+    int mask = table_.length - 1;
+    int i = hash(predicate, arg2, rest) & mask;
+    for (; ; i = (i + 1) & mask) {
+      int entry = table_[i];
+      if (entry == 0)
+        return i;
+      int offset = 3 * (entry - 1);
+      if (triples[offset] == predicate && triples[offset + 1] == arg2 &&
+          triples[offset + 2] == rest)
+        return i;
+    }
+  }
+
+  /**
+   * Get the term ID at the offset in triples_, including for a removed triple.
+   */
+  private int
+  getTermId(int offset)
+  {
+    int id = triples_[offset];
+    return id >= 0 ? id : ~id;
+  }
+
+  private static int
+  hash(int predicate, int arg2, int rest)
+  {
+    return TermDictionary.mix((predicate * 31 + arg2) * 31 + rest);
+  }
+
+  /** This is volatile so that a reader without a lock sees the grown array. */
+  private volatile int[] triples_;
+  private int size_ = 0;
+  private int[] table_;
+}
@@ -0,0 +1,287 @@
+/*
+Copyright (C) 2017 Jeff Thompson
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package org.nuvl.nuvlworld.gui;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * A ConflictComponent is a set of assumptions which are connected by attacks,
+ * with the implications that their deductions use. An assumption attacks
+ * another if it deduces the contrary of the other or of something that the
+ * other deduces. Since assumptions in different components can't attack each
+ * other, each component can be solved as a separate argumentation framework,
+ * and the preferred extensions of the whole framework are the product of the
+ * preferred extensions of the components. The grounded extension is the union
+ * of the grounded extensions of the components.
+ * @author Jeff Thompson, jeff@thefirst.org
+ */
+public class ConflictComponent {
+  /**
+   * An Implication is a rule with one antecedent, where the consequent may be
+   * a contrary.
+   */
+  public static class Implication {
+    public Implication(String antecedent, String consequent, boolean isContrary)
+    {
+      this.antecedent = antecedent;
+      this.consequent = consequent;
+      this.isContrary = isContrary;
+    }
+
+    /** The symbol of the antecedent Sentence. */
+    public final String antecedent;
+    /** The symbol of the consequent Sentence. */
+    public final String consequent;
+    /** True if the consequent is the contrary of the symbol. */
+    public final boolean isContrary;
+  }
+
+  /**
+   * Partition the assumptions into connected components of the attack graph.
+   * The assumptions which don't attack and are not attacked are put together
+   * in one unconflicted component, since it has only one preferred extension.
+   * @param assumptions The symbols of the assumption Sentences.
+   * @param implications The rules.
+   * @return A new list of the ConflictComponent. The unconflicted component
+   * (if any) is first, then the conflicted components in order of their first
+   * assumption. The assumptions in each component are sorted.
+   */
+  public static List<ConflictComponent>
+  partition
+    (Collection<String> assumptions, Collection<Implication> implications)
+  {
+    // key: antecedent, value: the implications with the antecedent.
+    HashMap<String, List<Implication>> byAntecedent = new HashMap<>();
+    for (Implication implication : implications)
+      byAntecedent.computeIfAbsent
+        (implication.antecedent, k -> new ArrayList<>()).add(implication);
+
+    // Index the assumptions and find what each deduces.
+    ArrayList<String> sortedAssumptions = new ArrayList<>
+      (new HashSet<>(assumptions));
+    Collections.sort(sortedAssumptions);
+    int n = sortedAssumptions.size();
+    ArrayList<Deduction> deductions = new ArrayList<>(n);
+    // key: a deduced symbol, value: the assumptions which deduce it.
+    HashMap<String, List<Integer>> deducers = new HashMap<>();
+    for (int i = 0; i < n; ++i) {
+      Deduction deduction = deduce(sortedAssumptions.get(i), byAntecedent);
+      deductions.add(deduction);
+      for (String symbol : deduction.symbols)
+        deducers.computeIfAbsent(symbol, k -> new ArrayList<>()).add(i);
+    }
+
+    // Union the assumptions which attack each other.
+    int[] parents = new int[n];
+    boolean[] isConflicted = new boolean[n];
+    for (int i = 0; i < n; ++i)
+      parents[i] = i;
+    for (int i = 0; i < n; ++i) {
+      for (String contrary : deductions.get(i).contraries) {
+        List<Integer> attacked = deducers.get(contrary);
+        if (attacked == null)
+          continue;
+        isConflicted[i] = true;
+        for (int j : attacked) {
+          isConflicted[j] = true;
+          union(parents, i, j);
+        }
+      }
+    }
+
+    // Group by root. The root is the first assumption of the component since
+    // union keeps the smaller index.
+    ConflictComponent unconflicted = null;
+    TreeMap<Integer, ConflictComponent> components = new TreeMap<>();
+    for (int i = 0; i < n; ++i) {
+      ConflictComponent component;
+      if (!isConflicted[i]) {
+        if (unconflicted == null)
+          unconflicted = new ConflictComponent(false);
+        component = unconflicted;
+      }
+      else
+        component = components.computeIfAbsent
+          (find(parents, i), k -> new ConflictComponent(true));
+      component.add(sortedAssumptions.get(i), deductions.get(i), byAntecedent);
+    }
+
+    ArrayList<ConflictComponent> result = new ArrayList<>();
+    if (unconflicted != null)
+      result.add(unconflicted);
+    result.addAll(components.values());
+    return result;
+  }
+
+  /**
+   * Get the symbols of the assumptions in this component, sorted.
+   */
+  public List<String> getAssumptions() { return assumptions_; }
+
+  /**
+   * Get the implications used by the deductions of the assumptions in this
+   * component, in no particular order.
+   */
+  public List<Implication> getImplications() { return implications_; }
+
+  /**
+   * Check if this component has attacks. If false, this is the component of
+   * the assumptions which don't attack and are not attacked, and it has only
+   * one preferred extension which is all the assumptions.
+   */
+  public boolean isConflicted() { return isConflicted_; }
+
+  /**
+   * Forward chain from the assumptions over the implications of this
+   * component, using a worklist which doesn't go past a symbol that is
+   * already known. For example, known is the closure of the grounded
+   * extension, so that the cost for a preferred extension only depends on
+   * what its added assumptions deduce.
+   * @param assumptions The symbols of the assumptions to add.
+   * @param known The symbols which are already deduced, and all that they
+   * deduce. This is not changed.
+   * @return A new set of the deduced symbols which are not in known,
+   * including the added assumptions. This does not include contraries.
+   */
+  public Set<String>
+  deduce(Collection<String> assumptions, Set<String> known)
+  {
+    HashSet<String> result = new HashSet<>();
+    ArrayDeque<String> worklist = new ArrayDeque<>();
+    for (String assumption : assumptions) {
+      if (!known.contains(assumption) && result.add(assumption))
+        worklist.push(assumption);
+    }
+
+    while (!worklist.isEmpty()) {
+      List<Implication> implications = byAntecedent_.get(worklist.pop());
+      if (implications == null)
+        continue;
+
+      for (Implication implication : implications) {
+        if (implication.isContrary || known.contains(implication.consequent))
+          continue;
+        if (result.add(implication.consequent))
+          worklist.push(implication.consequent);
+      }
+    }
+
+    return result;
+  }
+
+  private ConflictComponent(boolean isConflicted)
+  {
+    isConflicted_ = isConflicted;
+  }
+
+  /**
+   * Add the assumption and the implications which its deduction uses.
+   */
+  private void
+  add(String assumption, Deduction deduction,
+      Map<String, List<Implication>> byAntecedent)
+  {
+    assumptions_.add(assumption);
+    for (String symbol : deduction.symbols) {
+      if (!antecedents_.add(symbol))
+        // Already added by another assumption.
+        continue;
+      List<Implication> implications = byAntecedent.get(symbol);
+      if (implications != null) {
+        implications_.addAll(implications);
+        byAntecedent_.put(symbol, implications);
+      }
+    }
+  }
+
+  /**
+   * Find the symbols which the assumption deduces, including itself, and the
+   * symbols whose contrary it deduces.
+   */
+  private static Deduction
+  deduce(String assumption, Map<String, List<Implication>> byAntecedent)
+  {
+    Deduction result = new Deduction();
+    ArrayDeque<String> stack = new ArrayDeque<>();
+    result.symbols.add(assumption);
+    stack.push(assumption);
+    while (!stack.isEmpty()) {
+      List<Implication> implications = byAntecedent.get(stack.pop());
+      if (implications == null)
+        continue;
+
+      for (Implication implication : implications) {
+        if (implication.isContrary)
+          // A contrary is not the antecedent of a rule.
+          result.contraries.add(implication.consequent);
+        else if (result.symbols.add(implication.consequent))
+          stack.push(implication.consequent);
+      }
+    }
+
+    return result;
+  }
+
+  private static int
+  find(int[] parents, int i)
+  {
+    while (parents[i] != i) {
+      // Path halving.
+      parents[i] = parents[parents[i]];
+      i = parents[i];
+    }
+    return i;
+  }
+
+  private static void
+  union(int[] parents, int i, int j)
+  {
+    int rootI = find(parents, i);
+    int rootJ = find(parents, j);
+    // Keep the smaller index as the root.
+    if (rootI < rootJ)
+      parents[rootJ] = rootI;
+    else if (rootJ < rootI)
+      parents[rootI] = rootJ;
+  }
+
+  /**
+   * A Deduction holds what an assumption deduces.
+   */
+  private static class Deduction {
+    public final HashSet<String> symbols = new HashSet<>();
+    public final HashSet<String> contraries = new HashSet<>();
+  }
+
+  private final boolean isConflicted_;
+  private final ArrayList<String> assumptions_ = new ArrayList<>();
+  private final ArrayList<Implication> implications_ = new ArrayList<>();
+  /** The symbols whose implications are already in implications_. */
+  private final HashSet<String> antecedents_ = new HashSet<>();
+  /** key: antecedent, value: the implications in implications_ with it. */
+  private final HashMap<String, List<Implication>> byAntecedent_ =
+    new HashMap<>();
+}
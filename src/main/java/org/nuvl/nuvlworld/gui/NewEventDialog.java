@@ -8,6 +8,7 @@ package org.nuvl.nuvlworld.gui;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import java.awt.Color;
+import java.awt.Component;
 import java.awt.Container;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
@@ -18,22 +19,22 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Date;
-import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Random;
-import java.util.Set;
 import java.util.TimeZone;
-import java.util.regex.Matcher;
 import javax.swing.DefaultComboBoxModel;
 import javax.swing.JFormattedTextField;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
+import javax.swing.SwingUtilities;
 import org.jdatepicker.JDatePicker;
 import org.jdatepicker.impl.JDatePanelImpl;
 import org.jdatepicker.impl.JDatePickerImpl;
 import org.jdatepicker.impl.UtilDateModel;
-import org.nuvl.argue.aba_plus.Sentence;
+import org.nuvl.nuvlworld.EventLog;
 import org.nuvl.nuvlworld.NuvlWorldPreferences;
 import org.nuvl.nuvlworld.NuvlWorldStore;
 
@@ -45,14 +46,17 @@ public class NewEventDialog extends javax.swing.JDialog {
 
   /**
    * Creates a new NewEventDialog.
+   * @param eventLog The EventLog to append the new event's sentences, or null
+   * to not save them.
    */
   public NewEventDialog
     (java.awt.Frame parent, NuvlWorldStore store,
-     NuvlWorldPreferences preferences, LocalDate initialDate)
+     NuvlWorldPreferences preferences, EventLog eventLog, LocalDate initialDate)
   {
     super(parent, true);
     store_ = store;
     preferences_ = preferences;
+    eventLog_ = eventLog;
     
     initComponents();
 
@@ -67,11 +71,11 @@ public class NewEventDialog extends javax.swing.JDialog {
     // Set up the airport combo boxes with IATA codes.
     List<String> airports = new ArrayList<>();
     airports.add("");
-    for (Sentence sentence : store_.sentencesByPredicate_.getOrDefault
-         ("iataAirportCode", emptySentences_)) {
-      Matcher matcher = NuvlWorldStore.stringPattern_.matcher(sentence.symbol());
-      if (matcher.find())
-        airports.add(NuvlWorldStore.fromEscapedString(matcher.group(3)));
+    for (Iterator<Map<String, String>> results = store_.query
+           ("(iataAirportCode $Airport $Code)"); results.hasNext(); ) {
+      String code = results.next().get("$Code");
+      if (code.startsWith("\""))
+        airports.add(NuvlWorldStore.fromEscapedString(code));
     }
     Object[] airportsArray = airports.toArray();
     Arrays.sort(airportsArray);
@@ -322,18 +326,32 @@ public class NewEventDialog extends javax.swing.JDialog {
     String eventId = preferences_.getUsername() + "_" + eventClass + "_" +
       new SimpleDateFormat("yyyyMMdd_HHmmss").format(startMillis) + "_" +
       random_.nextInt(1000);
-    System.out.println("");
-    System.out.println("(instanceOf " + eventId + " " + eventClass + ")");
-    System.out.println
-      ("(description " + eventId + " " + NuvlWorldStore.toEscapedString(titleText_.getText()) + ")");
-    System.out.println
-      ("(subAttrOf " + eventId + " (TimeIntervalFn " + startMillis + " " +
-       endMillis + "))");
-    System.out.println("(participant " + eventId + " " + preferences_.getUsername() + ")");
-    System.out.println
-      ("(startPoint " + eventId + " " + fromAirportId[0] + ")");
-    System.out.println
-      ("(destinationPoint " + eventId + " " + toAirportId[0] + ")");
+    String[] sentences = new String[] {
+      "(instanceOf " + eventId + " " + eventClass + ")",
+      "(description " + eventId + " " + NuvlWorldStore.toEscapedString(titleText_.getText()) + ")",
+      "(subAttrOf " + eventId + " (TimeIntervalFn " + startMillis + " " +
+        endMillis + "))",
+      "(participant " + eventId + " " + preferences_.getUsername() + ")",
+      "(startPoint " + eventId + " " + fromAirportId[0] + ")",
+      "(destinationPoint " + eventId + " " + toAirportId[0] + ")"
+    };
+
+    for (String sentence : sentences)
+      // This incrementally updates the store's event time index.
+      store_.addSentence(sentence);
+
+    if (eventLog_ != null) {
+      // The writer thread saves the event, so don't block the EDT.
+      final Component parent = getParent();
+      eventLog_.append(Arrays.asList(sentences)).whenComplete
+        ((result, ex) -> {
+          if (ex != null)
+            SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog
+              (parent, "Error saving the new event: " + ex));
+        });
+    }
+
+    dispose();
   }//GEN-LAST:event_okButton_ActionPerformed
 
   /**
@@ -345,25 +363,24 @@ public class NewEventDialog extends javax.swing.JDialog {
   private TimeZone
   airportIataToTimeZone(String airportIata, String[] airportId)
   {
-    // Reverse look up from airportIata to its ID.
-    Matcher airportMatch = store_.findFirstByPredicate
-      ("iataAirportCode", NuvlWorldStore.stringPattern_, 3,
-       NuvlWorldStore.toEscapedString(airportIata));
-    if (airportMatch == null) {
+    // Reverse look up from airportIata to its ID. NuvlWorldApp declares a
+    // SecondaryIndex for this.
+    airportId[0] = store_.findFirstArgument
+      ("iataAirportCode", 3, NuvlWorldStore.toEscapedString(airportIata), 2);
+    if (airportId[0] == null) {
       // We don't expect this to happen.
       JOptionPane.showMessageDialog(this, "Unrecognized airport code " + airportIata);
       return null;
     }
-    airportId[0] = airportMatch.group(2);
 
-    Matcher locationMatch = store_.findFirstByPredicate
-      ("locationIanaTimeZone", NuvlWorldStore.termPattern_, 2, airportId[0]);
-    if (locationMatch == null) {
+    // This uses the arg2 index.
+    String locationIanaId = store_.findFirstArgument
+      ("locationIanaTimeZone", 2, airportId[0], 3);
+    if (locationIanaId == null) {
       JOptionPane.showMessageDialog
         (this, "Can't find location time zone for " + airportIata);
       return null;
     }
-    String locationIanaId = locationMatch.group(3);
 
     String locationIanaLabel = store_.descriptions_.getOrDefault
       (locationIanaId, null);
@@ -442,7 +459,7 @@ public class NewEventDialog extends javax.swing.JDialog {
       public void run()
       {
         NewEventDialog dialog = new NewEventDialog
-          (new javax.swing.JFrame(), null, null, LocalDate.now());
+          (new javax.swing.JFrame(), null, null, null, LocalDate.now());
         dialog.addWindowListener(new java.awt.event.WindowAdapter() {
           @Override
           public void windowClosing(java.awt.event.WindowEvent e)
@@ -473,9 +490,9 @@ public class NewEventDialog extends javax.swing.JDialog {
   // End of variables declaration//GEN-END:variables
   private final NuvlWorldStore store_;
   private final NuvlWorldPreferences preferences_;
+  private final EventLog eventLog_;
   private final JDatePicker startDatePicker_;
   private final JDatePicker endDatePicker_;
   private static final Gson gson_ = new GsonBuilder().disableHtmlEscaping().create();
   private static final Random random_ = new Random();
-  private static final Set<Sentence> emptySentences_ = new HashSet<>();
 }
@@ -21,37 +21,56 @@ import java.awt.Container;
 import java.awt.Font;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.math.BigInteger;
 import java.text.SimpleDateFormat;
 import java.time.LocalDate;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Properties;
 import java.util.Set;
 import java.util.TimeZone;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import javax.swing.BorderFactory;
 import javax.swing.JComponent;
 import javax.swing.JLabel;
+import javax.swing.JProgressBar;
 import javax.swing.JList;
 import javax.swing.JPanel;
 import javax.swing.JScrollPane;
 import javax.swing.ListCellRenderer;
 import javax.swing.ListSelectionModel;
 import javax.swing.SwingConstants;
+import javax.swing.SwingUtilities;
 import javax.swing.event.HyperlinkEvent;
 import javax.swing.event.HyperlinkListener;
 import javax.swing.event.ListSelectionEvent;
 import javax.swing.event.ListSelectionListener;
 import org.jdatepicker.impl.JDatePanelImpl;
 import org.jdatepicker.impl.UtilCalendarModel;
+import org.nuvl.nuvlworld.EventLog;
+import org.nuvl.nuvlworld.IntList;
 import org.nuvl.nuvlworld.NuvlWorldPreferences;
 import org.nuvl.nuvlworld.NuvlWorldStore;
 import org.nuvl.nuvlworld.NuvlWorldStore.EventTimeInterval;
+import org.nuvl.nuvlworld.gui.ConflictComponent.Implication;
 import org.nuvl.argue.aba_plus.Sentence;
 import org.nuvl.argue.aba_plus.Rule;
 import org.nuvl.argue.aba_plus.ABA_Plus;
@@ -67,24 +86,46 @@ import scala.collection.JavaConversions;
  */
 public class NuvlCalendarFrame extends javax.swing.JFrame {
   /**
-   * Create a new NuvlCalendarFrame to use the given store and preferences.
+   * Create a new NuvlCalendarFrame to use the given store and preferences,
+   * without an EventLog.
    */
   public NuvlCalendarFrame
     (NuvlWorldStore store, NuvlWorldPreferences preferences)
+  {
+    this(store, preferences, null);
+  }
+
+  /**
+   * Create a new NuvlCalendarFrame to use the given store and preferences.
+   * @param eventLog The EventLog to save new events, or null to not save them.
+   */
+  public NuvlCalendarFrame
+    (NuvlWorldStore store, NuvlWorldPreferences preferences, EventLog eventLog)
   {
     super("Calendar");
     preferences_ = preferences;
     store_ = store;
+    eventLog_ = eventLog;
 
     initComponents();
+    // The progress bar is placed by hand at the top right of the calendar like
+    // the day headers, and is only shown while loading.
+    loadingProgressBar_.setStringPainted(true);
+    loadingProgressBar_.setVisible(false);
+    calendarPanel_.add(loadingProgressBar_);
+
     scenariosTextPane_.addHyperlinkListener
       (new HyperlinkListener(){
       @Override
       public void hyperlinkUpdate(HyperlinkEvent e) {
         if (e.getEventType() == HyperlinkEvent.EventType.ACTIVATED) {
-          if (e.getDescription().startsWith("scenario"))
-            selectScenario(Integer.parseInt
-              (e.getDescription().substring("scenario".length())));
+          if (e.getDescription().startsWith("scenario")) {
+            // The link is "scenario" + conflictNumber + "." + scenarioNumber.
+            String[] numbers = e.getDescription().substring
+              ("scenario".length()).split("\\.");
+            selectScenario
+              (Integer.parseInt(numbers[0]), Integer.parseInt(numbers[1]));
+          }
         }
       }
     });
@@ -156,28 +197,149 @@ public class NuvlCalendarFrame extends javax.swing.JFrame {
   }
 
   /**
-   * Compute conflicts and set up scenariosTextPane_. Reset
-   * selectedScenarioNumber_ to 1.
+   * Replace the store, for example when the facts have been loaded in the
+   * background, and recompute the scenarios (in the background) and the days
+   * panel.
+   * @param store The new NuvlWorldStore.
    */
-  private void setUpScenarios()
+  public void
+  setStore(NuvlWorldStore store)
   {
-    HashSet<Sentence> assumptions = new HashSet<>();
-    HashSet<Rule> rules = new HashSet<>();
+    store_ = store;
+    setUpScenarios();
+    setUpDaysPanel(true);
+  }
+
+  /**
+   * Show the loading progress at the top of the calendar. While loading, the
+   * New Event menu item is disabled because another thread may be changing
+   * the store.
+   * @param message The message to show, or null to hide the progress bar when
+   * loading is finished.
+   * @param percent The percent done, or -1 if not known.
+   */
+  public void
+  setLoadingProgress(String message, int percent)
+  {
+    newEventMenuItem_.setEnabled(message == null);
+    if (message == null) {
+      loadingProgressBar_.setVisible(false);
+      return;
+    }
+
+    loadingProgressBar_.setIndeterminate(percent < 0);
+    if (percent >= 0) {
+      loadingProgressBar_.setValue(percent);
+      message += " " + percent + "%";
+    }
+    loadingProgressBar_.setString(message);
+    loadingProgressBar_.setVisible(true);
+    layOutLoadingProgressBar();
+  }
+
+  /**
+   * Set the number of threads which solve the conflict components of the
+   * scenarios at the same time. This takes effect the next time the scenarios
+   * are computed.
+   * @param nThreads The number of solver threads. If this is 1 or less, solve
+   * the components one at a time on the scenarios thread.
+   */
+  public void
+  setSolverParallelism(int nThreads)
+  {
+    final ForkJoinPool oldPool = solverPool_;
+    solverPool_ = (nThreads <= 1 ? null : new ForkJoinPool(nThreads));
+    if (oldPool != null)
+      // A running computeScenarios may have read oldPool but not yet called
+      // invoke, which would be rejected after shutdown. The scenariosExecutor_
+      // runs one task at a time, so shut down oldPool after the current
+      // computation finishes. A later computation reads the new solverPool_.
+      scenariosExecutor_.submit(new Runnable() {
+        @Override
+        public void run() { oldPool.shutdown(); }
+      });
+  }
+
+  /**
+   * Refresh the days panel to show the event descriptions which were loaded
+   * since the last refresh. Until then, an event is shown by its term.
+   */
+  public void
+  refreshDescriptions() { setUpDaysPanel(true); }
+
+  private void
+  layOutLoadingProgressBar()
+  {
+    int width = 300;
+    loadingProgressBar_.setBounds
+      (calendarPanel_.getSize().width - width - 5, 5, width,
+       decrementButton_.getPreferredSize().height);
+  }
+
+  /**
+   * Start computing the conflicts and scenarios from store_ on the
+   * scenariosExecutor_ so that the GUI doesn't freeze. This cancels the
+   * computation for earlier inputs if it is still running. Until the results
+   * are published by showScenarios, scenariosTextPane_ shows the progress.
+   * This must be called on the Event Dispatch Thread.
+   */
+  private void
+  setUpScenarios()
+  {
+    if (scenariosFuture_ != null)
+      scenariosFuture_.cancel(true);
+    final int generation = ++scenariosGeneration_;
+    final NuvlWorldStore store = store_;
+
+    showScenariosProgress(generation, "Computing scenarios");
+    scenariosFuture_ = scenariosExecutor_.submit(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          final ScenarioResults results = computeScenarios(store, generation);
+          SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() { showScenarios(generation, results); }
+          });
+        } catch (CancellationException ex) {
+          // setUpScenarios was called again for new inputs.
+        } catch (RuntimeException ex) {
+          ex.printStackTrace();
+          showScenariosProgress
+            (generation, "Error computing scenarios: " + ex.getMessage());
+        }
+      }
+    });
+  }
+
+  /**
+   * Compute the conflicts and scenarios from the store. This is called on the
+   * scenariosExecutor_ and doesn't change the frame.
+   * @param store The NuvlWorldStore with the implies and disjointAttrs
+   * sentences.
+   * @param generation The value of scenariosGeneration_ for this computation.
+   * @return The new ScenarioResults.
+   * @throws CancellationException if setUpScenarios is called again before
+   * this is finished.
+   */
+  private ScenarioResults
+  computeScenarios(NuvlWorldStore store, int generation)
+  {
+    ArrayList<String> assumptions = new ArrayList<>();
+    ArrayList<Implication> implications = new ArrayList<>();
 
     // Add rules for (implies (task $InAttr) (attr $OutAttr)).
     // Also add each task as an assumption.
     Pattern rulePattern = Pattern.compile
       ("^\\(implies \\(task (" + TERM + ")\\) \\(attr (" + TERM + ")\\)\\)$");
-    for (Sentence sentence : store_.sentencesByPredicate_.getOrDefault
-         ("implies", new HashSet<>())) {
+    for (Sentence sentence : store.getSentencesByPredicate("implies")) {
       Matcher matcher = rulePattern.matcher(sentence.symbol());
       if (matcher.find()) {
-        Sentence task = new Sentence("(task " + matcher.group(1) + ")");
-        Sentence inAttr =  new Sentence("(attr " + matcher.group(1) + ")");
-        Sentence outAttr = new Sentence("(attr " + matcher.group(2) + ")");
-
-        rules.add(new Rule(task, inAttr));
-        rules.add(new Rule(task, outAttr));
+        String task = "(task " + matcher.group(1) + ")";
+        implications.add(new Implication
+          (task, "(attr " + matcher.group(1) + ")", false));
+        implications.add(new Implication
+          (task, "(attr " + matcher.group(2) + ")", false));
         assumptions.add(task);
       }
     }
@@ -185,69 +347,241 @@ public class NuvlCalendarFrame extends javax.swing.JFrame {
     // Add disjoint attributes.
     Pattern disjointPattern = Pattern.compile
       ("^\\(disjointAttrs (" + TERM + ") (" + TERM + ")\\)$");
-    for (Sentence sentence : store_.sentencesByPredicate_.getOrDefault
-         ("disjointAttrs", new HashSet<>())) {
+    for (Sentence sentence : store.getSentencesByPredicate("disjointAttrs")) {
       Matcher matcher = disjointPattern.matcher(sentence.symbol());
       if (matcher.find())
-        rules.add(new Rule(new Sentence("(attr " + matcher.group(1) + ")"),
-                           new Sentence("(attr " + matcher.group(2) + ")", true)));
+        implications.add(new Implication
+          ("(attr " + matcher.group(1) + ")", "(attr " + matcher.group(2) + ")",
+           true));
     }
 
     // TODO: Derive these from loaded location data.
-    rules.add(new Rule(new Sentence("(attr LondonWet)"), new Sentence("(attr ImperialWet)")));
-    rules.add(new Rule(new Sentence("(attr LondonWet)"), new Sentence("(attr ScienceMuseumWet)")));
+    implications.add(new Implication("(attr LondonWet)", "(attr ImperialWet)", false));
+    implications.add(new Implication("(attr LondonWet)", "(attr ScienceMuseumWet)", false));
+
+    // Solve each component as its own framework so that the number of
+    // scenarios is the sum over the components instead of the product.
+    List<ConflictComponent> components = ConflictComponent.partition
+      (assumptions, implications);
+    Conflict[] solved = new Conflict[components.size()];
+    ForkJoinPool solverPool = solverPool_;
+    if (solverPool == null || components.size() <= 1) {
+      for (int i = 0; i < components.size(); ++i) {
+        ConflictComponent component = components.get(i);
+        checkScenariosCanceled(generation);
+        showScenariosProgress
+          (generation, "Solving conflict component " + (i + 1) + " of " +
+           components.size() + " with " + component.getAssumptions().size() +
+           " assumptions");
+        solved[i] = solveComponent(component, generation);
+      }
+    }
+    else {
+      showScenariosProgress
+        (generation, "Solving " + components.size() +
+         " conflict components on " + solverPool.getParallelism() +
+         " threads");
+      solverPool.invoke(new SolveComponentsTask
+        (components, solved, 0, components.size(), generation,
+         new AtomicInteger()));
+    }
+
+    // Merge in the order of the components so that the conflict numbers don't
+    // depend on which thread finished first.
+    ArrayList<Conflict> conflicts = new ArrayList<>();
+    HashSet<String> groundedAttrs = new HashSet<>();
+    for (int i = 0; i < components.size(); ++i) {
+      groundedAttrs.addAll(solved[i].groundedAttrs);
+      if (components.get(i).isConflicted())
+        conflicts.add(solved[i]);
+    }
+
+    System.out.println("groundedAttrs: " + groundedAttrs);
+    return new ScenarioResults
+      (conflicts, new AttrIndex(conflicts, groundedAttrs));
+  }
+
+  /**
+   * Make a NuvlFramework for the component, and compute its grounded extension
+   * and a Scenario for each preferred extension. If the component is not
+   * conflicted, only find its grounded attrs.
+   * @param component The ConflictComponent.
+   * @param generation The value of scenariosGeneration_ for the computation.
+   * @return A new Conflict.
+   * @throws CancellationException if setUpScenarios is called again before
+   * this is finished.
+   */
+  private Conflict
+  solveComponent(ConflictComponent component, int generation)
+  {
+    if (!component.isConflicted())
+      // Nothing attacks these assumptions, so they are all in the grounded
+      // extension and the only preferred extension. Skip the framework since
+      // this component usually has most of the assumptions, and the merge
+      // doesn't keep its scenarios.
+      return new Conflict
+        (component.getAssumptions(), new ArrayList<Scenario>(),
+         getAttrs(component.deduce
+           (component.getAssumptions(), Collections.<String>emptySet())));
+
+    HashSet<Sentence> assumptions = new HashSet<>();
+    for (String assumption : component.getAssumptions())
+      assumptions.add(new Sentence(assumption));
+    HashSet<Rule> rules = new HashSet<>();
+    for (Implication implication : component.getImplications())
+      rules.add(new Rule
+        (new Sentence(implication.antecedent),
+         new Sentence(implication.consequent, implication.isContrary)));
 
-    // Compute the framework.
     NuvlFramework framework = new NuvlFramework(assumptions, rules);
     HashSet<Sentence> groundedExtension = new HashSet<>
       (JavaConversions.asJavaCollection(framework.groundedExtension()));
 
-    // Get all $Attr in the deductions of the grounded extension which match (attr $Attr).
-    groundedAttrs_.clear();
-    for (Sentence deduction : JavaConversions.asJavaCollection
-         (framework.aba().generate_all_deductions(framework.groundedExtension()))) {
-      if (deduction.is_contrary())
-        continue;
+    // Deduce from the grounded extension once. Each scenario only deduces from
+    // the assumptions it adds.
+    Set<String> groundedClosure = component.deduce
+      (symbols(groundedExtension), Collections.<String>emptySet());
+    Set<String> groundedAttrs = getAttrs(groundedClosure);
 
-      Matcher matcher = attrPattern_.matcher(deduction.symbol());
+    // Create the scenarios.
+    ArrayList<Scenario> scenarios = new ArrayList<>();
+    for (scala.collection.immutable.Set<Sentence> extension : JavaConversions.asJavaCollection
+         (framework.preferredExtensions())) {
+      checkScenariosCanceled(generation);
+      scenarios.add(new Scenario
+        (extension, groundedExtension, component, groundedClosure));
+    }
+
+    return new Conflict(component.getAssumptions(), scenarios, groundedAttrs);
+  }
+
+  /**
+   * Get the symbols of the sentences.
+   * @param sentences The Sentences, which are not contraries.
+   * @return A new list of the symbols.
+   */
+  private static List<String>
+  symbols(Collection<Sentence> sentences)
+  {
+    ArrayList<String> result = new ArrayList<>(sentences.size());
+    for (Sentence sentence : sentences)
+      result.add(sentence.symbol());
+    return result;
+  }
+
+  /**
+   * Get all $Attr in the symbols which match (attr $Attr).
+   * @param symbols The deduced symbols.
+   * @return A new set of the $Attr.
+   */
+  private static Set<String>
+  getAttrs(Collection<String> symbols)
+  {
+    HashSet<String> result = new HashSet<>();
+    for (String symbol : symbols) {
+      Matcher matcher = attrPattern_.matcher(symbol);
       if (matcher.find())
-        groundedAttrs_.add(matcher.group(1));
+        result.add(matcher.group(1));
     }
+    return result;
+  }
 
-    // Create the scenarios.
-    scenarios_.clear();
-    for (scala.collection.immutable.Set<Sentence> extension : JavaConversions.asJavaCollection
-         (framework.preferredExtensions()))
-      scenarios_.add(new Scenario(extension, framework, groundedExtension));
-    selectedScenarioNumber_ = 1;
+  /**
+   * Publish the results of computeScenarios by replacing conflicts_ and
+   * attrIndex_ together, select the first scenario of each conflict and
+   * refresh the panes. This is called on the Event Dispatch Thread.
+   * @param generation The value of scenariosGeneration_ when the computation
+   * started. If setUpScenarios was called again since, ignore the results.
+   * @param results The results of computeScenarios.
+   */
+  private void
+  showScenarios(int generation, ScenarioResults results)
+  {
+    if (generation != scenariosGeneration_)
+      return;
 
-    System.out.println("groundedExtension: " + groundedExtension);
-    System.out.println("groundedAttrs: " + groundedAttrs_);
+    scenariosFuture_ = null;
+    conflicts_ = results.conflicts;
+    attrIndex_ = results.attrIndex;
+    selectedScenarios_ = new int[conflicts_.size()];
+    setUpSelectedAttrIds();
 
     refreshScenariosTextPane();
+    // Change the colors of the events.
+    setUpDaysPanel(true);
+    eventDetailTextPane_.setText("");
   }
 
   /**
-   * Refresh the scenariosTextPane_ based on scenarios_ and
-   * selectedScenarioNumber_ .
+   * Show the progress message in scenariosTextPane_ on the Event Dispatch
+   * Thread, unless setUpScenarios was called again since the computation
+   * started. This can be called from any thread.
+   * @param generation The value of scenariosGeneration_ for the computation.
+   * @param message The progress message.
    */
   private void
-  refreshScenariosTextPane()
+  showScenariosProgress(final int generation, final String message)
   {
-    String text = "";
-    for (int i = 0; i < scenarios_.size(); ++i) {
-      int scenarioNumber = i + 1;
-      text += "<a href=\"scenario" + scenarioNumber + "\">";
-      if (scenarioNumber == selectedScenarioNumber_)
-        // Make the selected scenario number bold.
-        text += "<b>";
-      text += "Scenario " + scenarioNumber;
-      if (scenarioNumber == selectedScenarioNumber_)
-        text += "</b>";
-      text += "</a>";
+    SwingUtilities.invokeLater(new Runnable() {
+      @Override
+      public void run() {
+        if (generation == scenariosGeneration_)
+          scenariosTextPane_.setText("<i>" + message + "...</i>");
+      }
+    });
+  }
 
-      text += "<br/>" + scenarios_.get(i).deducedAttrs;
-      text += "<br/><br/>";
+  /**
+   * Check if setUpScenarios was called again since the computation started.
+   * @param generation The value of scenariosGeneration_ for the computation.
+   * @throws CancellationException if canceled.
+   */
+  private void
+  checkScenariosCanceled(int generation)
+  {
+    if (generation != scenariosGeneration_ ||
+        Thread.currentThread().isInterrupted())
+      throw new CancellationException();
+  }
+
+  /**
+   * Refresh the scenariosTextPane_ based on conflicts_ and selectedScenarios_.
+   * A global scenario is one choice of scenario for each conflict, so this
+   * shows the scenarios of each conflict and only the count of the global
+   * scenarios.
+   */
+  private void
+  refreshScenariosTextPane()
+  {
+    BigInteger nGlobalScenarios = BigInteger.ONE;
+    for (Conflict conflict : conflicts_)
+      nGlobalScenarios = nGlobalScenarios.multiply
+        (BigInteger.valueOf(conflict.scenarios.size()));
+
+    String text = conflicts_.size() + " conflicts, " + nGlobalScenarios +
+      " scenarios<br/><br/>";
+    for (int iConflict = 0; iConflict < conflicts_.size(); ++iConflict) {
+      Conflict conflict = conflicts_.get(iConflict);
+      int conflictNumber = iConflict + 1;
+      text += "Conflict " + conflictNumber + ": " + conflict.assumptions +
+        "<br/>";
+
+      for (int i = 0; i < conflict.scenarios.size(); ++i) {
+        int scenarioNumber = i + 1;
+        text += "<a href=\"scenario" + conflictNumber + "." + scenarioNumber +
+          "\">";
+        if (i == selectedScenarios_[iConflict])
+          // Make the selected scenario number bold.
+          text += "<b>";
+        text += "Scenario " + conflictNumber + "." + scenarioNumber;
+        if (i == selectedScenarios_[iConflict])
+          text += "</b>";
+        text += "</a>";
+
+        text += "<br/>" + conflict.scenarios.get(i).deducedAttrs;
+        text += "<br/>";
+      }
+      text += "<br/>";
     }
 
     scenariosTextPane_.setText(text);
@@ -376,7 +710,7 @@ public class NuvlCalendarFrame extends javax.swing.JFrame {
             }
 
             panelEntries[entryCount++] = new DayPanel.Entry
-             (timeInterval, displayTime + title);
+             (timeInterval, displayTime + title, attrIndex_.getId(event));
           }
 
           // Sort according to DayPanel.Entry.compareTo.
@@ -397,12 +731,19 @@ public class NuvlCalendarFrame extends javax.swing.JFrame {
     daysPanel_ComponentResized(null);
   }
 
-  private void selectScenario(int scenarioNumber)
+  /**
+   * Select the scenario of the conflict, which doesn't change the selected
+   * scenarios of the other conflicts.
+   * @param conflictNumber The conflict number, starting from 1.
+   * @param scenarioNumber The scenario number in the conflict, starting from 1.
+   */
+  private void selectScenario(int conflictNumber, int scenarioNumber)
   {
-    if (selectedScenarioNumber_ == scenarioNumber)
+    if (selectedScenarios_[conflictNumber - 1] == scenarioNumber - 1)
       return;
 
-    selectedScenarioNumber_ = scenarioNumber;
+    selectedScenarios_[conflictNumber - 1] = scenarioNumber - 1;
+    setUpSelectedAttrIds();
     // Make the selected scenario bold.
     refreshScenariosTextPane();
     // Change the colors of the events.
@@ -423,7 +764,7 @@ public class NuvlCalendarFrame extends javax.swing.JFrame {
 
     String text = "";
     String title = store_.descriptions_.getOrDefault(event, event);
-    EventStatus status = getEventStatus(event);
+    EventStatus status = getEventStatus(entry.attrId);
     String color;
     if (status == EventStatus.GROUNDED)
       color = "black";
@@ -437,31 +778,54 @@ public class NuvlCalendarFrame extends javax.swing.JFrame {
     text += "<br/>Start: " + format.format(new Date(entry.timeInterval.startUtcMillis));
     text += "<br/>End:&nbsp; " + format.format(new Date(entry.timeInterval.endUtcMillis));
 
-    String scenarioNumbers = "";
-    for (int i = 0; i < scenarios_.size(); ++i) {
-      if (scenarios_.get(i).deducedAttrs.contains(event)) {
+    if (status == EventStatus.GROUNDED)
+      text += "<br/>In all scenarios";
+    else {
+      String scenarioNumbers = "";
+      for (int scenarioId : attrIndex_.getScenarioIds(entry.attrId)) {
         if (!scenarioNumbers.equals(""))
           scenarioNumbers += ", ";
-        scenarioNumbers += (i + 1);
+        scenarioNumbers += (attrIndex_.getConflict(scenarioId) + 1) + "." +
+          (attrIndex_.getScenario(scenarioId) + 1);
       }
+      text += "<br/>In scenario " + scenarioNumbers;
     }
-    text += "<br/>In scenario " + scenarioNumbers;
 
     eventDetailTextPane_.setText(text);
   }
 
+  /**
+   * Get the status of the event from attrIndex_ and selectedAttrIds_.
+   * @param attrId The attr ID of the event from attrIndex_.getId, or -1 if it
+   * is not deduced in any scenario.
+   * @return The EventStatus.
+   */
   private EventStatus
-  getEventStatus(String event)
+  getEventStatus(int attrId)
   {
-    if (groundedAttrs_.contains(event))
+    if (attrId < 0)
+      return EventStatus.UNSELECTED;
+    else if (attrIndex_.isGrounded(attrId))
       return EventStatus.GROUNDED;
-    else if (scenarios_.get(selectedScenarioNumber_ - 1).deducedAttrs.contains
-             (event))
+    else if (selectedAttrIds_.get(attrId))
       return EventStatus.SELECTED;
     else
       return EventStatus.UNSELECTED;
   }
 
+  /**
+   * Set selectedAttrIds_ to the union of the attr IDs of the selected scenario
+   * of each conflict.
+   */
+  private void
+  setUpSelectedAttrIds()
+  {
+    BitSet selectedAttrIds = new BitSet();
+    for (int i = 0; i < selectedScenarios_.length; ++i)
+      selectedAttrIds.or(attrIndex_.getAttrIds(i, selectedScenarios_[i]));
+    selectedAttrIds_ = selectedAttrIds;
+  }
+
   /**
    * This method is called from within the constructor to initialize the form.
    * WARNING: Do NOT modify this code. The content of this method is always
@@ -690,12 +1054,15 @@ public class NuvlCalendarFrame extends javax.swing.JFrame {
     daysPanel_.setSize
       (calendarPanel_.getSize().width,
        calendarPanel_.getSize().height - daysPanel_.getLocation().y);
+    layOutLoadingProgressBar();
   }//GEN-LAST:event_calendarPanel_ComponentResized
 
   private void newEventMenuItem_ActionPerformed(java.awt.event.ActionEvent evt)//GEN-FIRST:event_newEventMenuItem_ActionPerformed
   {//GEN-HEADEREND:event_newEventMenuItem_ActionPerformed
     new NewEventDialog
-      (this, store_, preferences_, selectedDate_).setVisible(true);
+      (this, store_, preferences_, eventLog_, selectedDate_).setVisible(true);
+    // The modal dialog has closed. Show any new event.
+    setUpDaysPanel(true);
   }//GEN-LAST:event_newEventMenuItem_ActionPerformed
 
   /**
@@ -768,10 +1135,11 @@ public class NuvlCalendarFrame extends javax.swing.JFrame {
     }
 
     public static class Entry implements Comparable<Entry> {
-      public Entry(EventTimeInterval timeInterval, String label)
+      public Entry(EventTimeInterval timeInterval, String label, int attrId)
       {
         this.timeInterval = timeInterval;
         this.label = label;
+        this.attrId = attrId;
 
         if (label.startsWith("<-> "))
           labelRank_ = 1;
@@ -806,6 +1174,11 @@ public class NuvlCalendarFrame extends javax.swing.JFrame {
 
       public final EventTimeInterval timeInterval;
       public final String label;
+      /**
+       * The attr ID of the event from the frame's AttrIndex when this was
+       * created, or -1 if the event is not deduced in any scenario.
+       */
+      public final int attrId;
       private final int labelRank_;
     }
 
@@ -823,7 +1196,7 @@ public class NuvlCalendarFrame extends javax.swing.JFrame {
         setText(entry.toString());
         //setIcon(entry.getIcon());
 
-        EventStatus status = parent_.getEventStatus(entry.timeInterval.event);
+        EventStatus status = parent_.getEventStatus(entry.attrId);
         Color color;
         if (status == EventStatus.GROUNDED)
           color = Color.black;
@@ -912,6 +1285,246 @@ public class NuvlCalendarFrame extends javax.swing.JFrame {
     private final JList<Entry> entries_ = new JList<>();
   }
 
+  /**
+   * A SolveComponentsTask solves a range of the conflict components by
+   * splitting it in half until there is one component, so that the work is
+   * balanced by the ForkJoinPool work stealing.
+   */
+  private class SolveComponentsTask extends RecursiveAction {
+    /**
+     * Create a SolveComponentsTask to set solved[i] for each i in the range.
+     * @param components The list of all components.
+     * @param solved The array of results, with the same size as components.
+     * @param begin The index of the first component in the range.
+     * @param end The index after the last component in the range.
+     * @param generation The value of scenariosGeneration_ for the computation.
+     * @param nSolved The count of solved components, shared by all tasks for
+     * the progress message.
+     */
+    public SolveComponentsTask
+      (List<ConflictComponent> components, Conflict[] solved, int begin,
+       int end, int generation, AtomicInteger nSolved)
+    {
+      components_ = components;
+      solved_ = solved;
+      begin_ = begin;
+      end_ = end;
+      generation_ = generation;
+      nSolved_ = nSolved;
+    }
+
+    @Override
+    protected void
+    compute()
+    {
+      if (end_ - begin_ > 1) {
+        int middle = (begin_ + end_) / 2;
+        invokeAll
+          (new SolveComponentsTask
+             (components_, solved_, begin_, middle, generation_, nSolved_),
+           new SolveComponentsTask
+             (components_, solved_, middle, end_, generation_, nSolved_));
+        return;
+      }
+
+      checkScenariosCanceled(generation_);
+      solved_[begin_] = solveComponent(components_.get(begin_), generation_);
+      showScenariosProgress
+        (generation_, "Solved " + nSolved_.incrementAndGet() + " of " +
+         components_.size() + " conflict components");
+    }
+
+    private static final long serialVersionUID = 1L;
+    private final List<ConflictComponent> components_;
+    private final Conflict[] solved_;
+    private final int begin_;
+    private final int end_;
+    private final int generation_;
+    private final AtomicInteger nSolved_;
+  }
+
+  /**
+   * ScenarioResults holds the results of computeScenarios so that they can be
+   * published together.
+   */
+  private static class ScenarioResults {
+    public ScenarioResults(List<Conflict> conflicts, AttrIndex attrIndex)
+    {
+      this.conflicts = conflicts;
+      this.attrIndex = attrIndex;
+    }
+
+    /** The conflicted components, which each have one or more scenarios. */
+    public final List<Conflict> conflicts;
+    public final AttrIndex attrIndex;
+  }
+
+  /**
+   * An AttrIndex gives each attr of the grounded attrs and the scenarios a
+   * dense ID, so that the event status can be found from a BitSet instead of
+   * looking up the attr string in each scenario. Each scenario in the list of
+   * conflicts also has a scenario ID, in order of the conflicts and their
+   * scenarios.
+   */
+  private static class AttrIndex {
+    /**
+     * Create an AttrIndex for the scenarios of the conflicts.
+     * @param conflicts The list of Conflict.
+     * @param groundedAttrs The grounded attrs of all the components.
+     */
+    public AttrIndex(List<Conflict> conflicts, Set<String> groundedAttrs)
+    {
+      for (String attr : groundedAttrs)
+        groundedAttrIds_.set(getOrAddId(attr));
+
+      int nScenarios = 0;
+      for (Conflict conflict : conflicts)
+        nScenarios += conflict.scenarios.size();
+      scenarioConflicts_ = new int[nScenarios];
+      scenarioOffsets_ = new int[conflicts.size()];
+
+      // Also make the lists of scenario IDs for each attr ID.
+      ArrayList<IntList> attrScenarioIds = new ArrayList<>();
+      int scenarioId = 0;
+      for (int iConflict = 0; iConflict < conflicts.size(); ++iConflict) {
+        scenarioOffsets_[iConflict] = scenarioId;
+        for (Scenario scenario : conflicts.get(iConflict).scenarios) {
+          scenarioConflicts_[scenarioId] = iConflict;
+          BitSet attrIds = new BitSet();
+          for (String attr : scenario.deducedAttrs) {
+            int attrId = getOrAddId(attr);
+            attrIds.set(attrId);
+            while (attrScenarioIds.size() <= attrId)
+              attrScenarioIds.add(null);
+            if (attrScenarioIds.get(attrId) == null)
+              attrScenarioIds.set(attrId, new IntList());
+            attrScenarioIds.get(attrId).add(scenarioId);
+          }
+          scenarioAttrIds_.add(attrIds);
+          ++scenarioId;
+        }
+      }
+
+      attrScenarioIds_ = new int[ids_.size()][];
+      for (int attrId = 0; attrId < attrScenarioIds_.length; ++attrId) {
+        IntList scenarioIds = attrId < attrScenarioIds.size() ?
+          attrScenarioIds.get(attrId) : null;
+        attrScenarioIds_[attrId] = (scenarioIds == null ?
+          new int[0] : scenarioIds.toArray());
+      }
+    }
+
+    /**
+     * Create an empty AttrIndex for when there are no results.
+     */
+    public AttrIndex()
+    {
+      this(new ArrayList<Conflict>(), new HashSet<String>());
+    }
+
+    /**
+     * Get the ID of the attr.
+     * @param attr The attr, which is the event term.
+     * @return The attr ID, or -1 if the attr is not grounded or deduced in any
+     * scenario.
+     */
+    public int
+    getId(String attr)
+    {
+      Integer id = ids_.get(attr);
+      return id == null ? -1 : id;
+    }
+
+    public boolean
+    isGrounded(int attrId) { return groundedAttrIds_.get(attrId); }
+
+    /**
+     * Get the attr IDs of the deducedAttrs of the scenario.
+     * @param conflict The index of the conflict.
+     * @param scenario The index of the scenario in the conflict.
+     * @return The BitSet of attr IDs. This is shared, so don't change it.
+     */
+    public BitSet
+    getAttrIds(int conflict, int scenario)
+    {
+      return scenarioAttrIds_.get(scenarioOffsets_[conflict] + scenario);
+    }
+
+    /**
+     * Get the IDs of the scenarios which deduce the attr.
+     * @param attrId The attr ID, or -1 for none.
+     * @return The sorted array of scenario IDs. This is shared, so don't change
+     * it.
+     */
+    public int[]
+    getScenarioIds(int attrId)
+    {
+      return attrId < 0 ? NO_SCENARIO_IDS : attrScenarioIds_[attrId];
+    }
+
+    /**
+     * Get the index of the conflict of the scenario.
+     * @param scenarioId The scenario ID.
+     */
+    public int
+    getConflict(int scenarioId) { return scenarioConflicts_[scenarioId]; }
+
+    /**
+     * Get the index of the scenario in its conflict.
+     * @param scenarioId The scenario ID.
+     */
+    public int
+    getScenario(int scenarioId)
+    {
+      return scenarioId - scenarioOffsets_[scenarioConflicts_[scenarioId]];
+    }
+
+    private int
+    getOrAddId(String attr)
+    {
+      Integer id = ids_.get(attr);
+      if (id == null) {
+        id = ids_.size();
+        ids_.put(attr, id);
+      }
+      return id;
+    }
+
+    private final HashMap<String, Integer> ids_ = new HashMap<>();
+    private final BitSet groundedAttrIds_ = new BitSet();
+    /** The BitSet of attr IDs for each scenario ID. */
+    private final ArrayList<BitSet> scenarioAttrIds_ = new ArrayList<>();
+    /** The sorted scenario IDs for each attr ID. */
+    private final int[][] attrScenarioIds_;
+    /** The index of the conflict for each scenario ID. */
+    private final int[] scenarioConflicts_;
+    /** The scenario ID of the first scenario of each conflict. */
+    private final int[] scenarioOffsets_;
+    private static final int[] NO_SCENARIO_IDS = new int[0];
+  }
+
+  /**
+   * A Conflict holds the results of solving one ConflictComponent.
+   */
+  private static class Conflict {
+    public Conflict
+      (List<String> assumptions, List<Scenario> scenarios,
+       Set<String> groundedAttrs)
+    {
+      this.assumptions = assumptions;
+      this.scenarios = scenarios;
+      this.groundedAttrs = groundedAttrs;
+    }
+
+    public final List<String> assumptions;
+    /**
+     * A Scenario for each preferred extension of the component, or empty for
+     * the unconflicted component.
+     */
+    public final List<Scenario> scenarios;
+    public final Set<String> groundedAttrs;
+  }
+
   /**
    * A Scenario holds the scenario results based on a preferred extension.
    */
@@ -920,13 +1533,16 @@ public class NuvlCalendarFrame extends javax.swing.JFrame {
      * Create a new Scenario for the preferredExtension.
      * @param preferredExtensionScala The preferred extension as a Scala set.
      * This is converted to a Java Set and saved as preferredExtension.
-     * @param framework The NuvlFramework that the preferred extension came from.
      * @param groundedExtension The pre-computed grounded extension which is the
      * intersection of the preferred extensions, and converted to a Java Set.
+     * @param component The ConflictComponent that the preferred extension came
+     * from.
+     * @param groundedClosure The symbols deduced from the groundedExtension.
      */
     public Scenario
       (scala.collection.immutable.Set<Sentence> preferredExtensionScala,
-       NuvlFramework framework, Set<Sentence> groundedExtension) {
+       Set<Sentence> groundedExtension, ConflictComponent component,
+       Set<String> groundedClosure) {
       preferredExtension = new HashSet<>(JavaConversions.asJavaCollection
         (preferredExtensionScala));
 
@@ -934,21 +1550,17 @@ public class NuvlCalendarFrame extends javax.swing.JFrame {
       conflictingAssumptions = new HashSet<>(preferredExtension);
       conflictingAssumptions.removeAll(groundedExtension);
 
-      // Get all $Attr in the deductions of the extension which match (attr $Attr).
-      for (Sentence deduction : JavaConversions.asJavaCollection
-           (framework.aba().generate_all_deductions(preferredExtensionScala))) {
-        if (deduction.is_contrary())
-          continue;
-
-        Matcher matcher = attrPattern_.matcher(deduction.symbol());
-        if (matcher.find())
-          deducedAttrs.add(matcher.group(1));
-      }
+      deducedAttrs = getAttrs(component.deduce
+        (symbols(conflictingAssumptions), groundedClosure));
     }
 
     public final Set<Sentence> preferredExtension;
     public final Set<Sentence> conflictingAssumptions;
-    public final Set<String> deducedAttrs = new HashSet<>();
+    /**
+     * The attrs deduced from the preferredExtension which are not deduced from
+     * the grounded extension.
+     */
+    public final Set<String> deducedAttrs;
   }
 
   // Variables declaration - do not modify//GEN-BEGIN:variables
@@ -968,17 +1580,45 @@ public class NuvlCalendarFrame extends javax.swing.JFrame {
   private javax.swing.JButton todayButton_;
   private javax.swing.JSplitPane topHorizontalSplitPane_;
   // End of variables declaration//GEN-END:variables
-  private final NuvlWorldStore store_;
+  private NuvlWorldStore store_;
   private final NuvlWorldPreferences preferences_;
+  private final EventLog eventLog_;
   private final ArrayList<ArrayList<DayPanel>> daysPanelGrid_ = new ArrayList<>();
   private final ArrayList<JLabel> daysPanelHeaders_ = new ArrayList<>();
-  private final ArrayList<Scenario> scenarios_ = new ArrayList<>();
-  private final HashSet<String> groundedAttrs_ = new HashSet<>();
-  private int selectedScenarioNumber_ = 1;
+  /**
+   * The results of the last computeScenarios, which are replaced by
+   * showScenarios and are empty until the first results.
+   */
+  private List<Conflict> conflicts_ = new ArrayList<>();
+  private AttrIndex attrIndex_ = new AttrIndex();
+  /** The index in each Conflict of its selected scenario. */
+  private int[] selectedScenarios_ = new int[0];
+  /** The attr IDs of the selected scenarios. See setUpSelectedAttrIds. */
+  private BitSet selectedAttrIds_ = new BitSet();
+  /** This is incremented by setUpScenarios to cancel an earlier computation. */
+  private volatile int scenariosGeneration_ = 0;
+  private Future<?> scenariosFuture_ = null;
+  /**
+   * The pool which solves the conflict components for computeScenarios, or
+   * null to solve them one at a time. See setSolverParallelism.
+   */
+  private volatile ForkJoinPool solverPool_ = null;
+  /** The thread which runs computeScenarios. */
+  private final ExecutorService scenariosExecutor_ =
+    Executors.newSingleThreadExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "NuvlCalendarFrame scenarios");
+        // Don't keep the application running.
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
   private LocalDate selectedDate_ = LocalDate.now();
   private LocalDate daysPanelPreviousDate_ = LocalDate.of(1900, 1, 1);
   private int nWeekRows_ = 0;
   private final JDatePanelImpl datePanel_;
+  private final JProgressBar loadingProgressBar_ = new JProgressBar(0, 100);
   private static final DateTimeFormatter monthAndDayFormatter_ =
     DateTimeFormatter.ofPattern("MMM d");
   private static final DateTimeFormatter monthAndYearFormatter_ =
@@ -0,0 +1,381 @@
+/*
+Copyright (C) 2017 Jeff Thompson
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package org.nuvl.nuvlworld;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import org.junit.Before;
+import org.junit.Test;
+import org.nuvl.argue.aba_plus.Sentence;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Check the results of ConjunctiveQuery against a brute-force nested loop over
+ * all the sentences of each pattern's predicate, and check that the results
+ * are streamed lazily.
+ * @author Jeff Thompson, jeff@thefirst.org
+ */
+public class ConjunctiveQueryTest {
+  @Before
+  public void
+  setUp()
+  {
+    Random random = new Random(2017);
+    store_ = new NuvlWorldStore();
+    // Also check the lookups through a SecondaryIndex.
+    store_.addSecondaryIndex("knows", 3);
+    for (int i = 0; i < 300; ++i) {
+      store_.addSentence
+        ("(knows P" + random.nextInt(40) + " P" + random.nextInt(40) + ")");
+      store_.addSentence("(age P" + i % 40 + " " + random.nextInt(100) + ")");
+      store_.addSentence
+        ("(at P" + random.nextInt(40) + " (loc C" + random.nextInt(4) + " C" +
+         random.nextInt(4) + "))");
+      long start = 1000 + random.nextInt(10000);
+      store_.addSentence
+        ("(subAttrOf E" + i + " (TimeIntervalFn " + start + " " +
+         (start + random.nextInt(500)) + "))");
+    }
+    store_.addSentence("(knows P1 P1)");
+    store_.addSentence("(subAttrOf E0 E1)");
+  }
+
+  @Test
+  public void
+  testJoin()
+  {
+    checkQuery("(knows $a $b)", "(knows $b $c)");
+    checkQuery("(age $a $n)", "(knows $a $b)", "(age $b $n)");
+  }
+
+  @Test
+  public void
+  testConstants()
+  {
+    checkQuery("(knows P3 $b)");
+    checkQuery("(knows $a P3)");
+    checkQuery("(knows $a P3)", "(knows P3 $c)");
+    checkQuery("(knows NoSuchTerm $b)");
+    checkQuery("(noSuchPredicate $a $b)");
+  }
+
+  @Test
+  public void
+  testRepeatedVariables()
+  {
+    checkQuery("(knows $a $a)");
+    checkQuery("(knows $a $b)", "(knows $b $a)");
+    checkQuery("(at $p (loc $x $x))");
+  }
+
+  @Test
+  public void
+  testNestedPatterns()
+  {
+    checkQuery("(at $p (loc C1 $y))");
+    checkQuery("(at $p $loc)", "(at $q $loc)", "(knows $p $q)");
+    checkQuery("(subAttrOf $e (TimeIntervalFn $s $t))");
+    // A nested pattern doesn't match an atom argument.
+    checkQuery("(subAttrOf E0 (TimeIntervalFn $s $t))");
+  }
+
+  @Test
+  public void
+  testFilters()
+  {
+    checkQuery
+      ("(knows $a $b)", "(age $b $n)", "(greaterThan $n 50)",
+       "(lessThanOrEqual $n 80)");
+    checkQuery("(age $a $n)", "(age $b $m)", "(equal $n $m)", "(lessThan $a $b)");
+    checkQuery("(age $a $n)", "(age $b $m)", "(lessThan $n $m)", "(equal $m 99)");
+  }
+
+  @Test
+  public void
+  testTimeFilters()
+  {
+    checkQuery
+      ("(subAttrOf $e (TimeIntervalFn $s $t))", "(lessThan $s 6000)",
+       "(greaterThanOrEqual $t 5000)");
+    checkQuery
+      ("(subAttrOf $e (TimeIntervalFn $s $t))",
+       "(subAttrOf $f (TimeIntervalFn $t $u))");
+  }
+
+  @Test
+  public void
+  testLazyStreaming() throws InterruptedException
+  {
+    // A cross product with tens of thousands of results.
+    Iterator<Map<String, String>> results = store_.query
+      ("(AND (age $a $n) (age $b $m))");
+
+    // Nothing is computed until hasNext(), so this is found.
+    assertTrue(store_.addSentence("(age P1000 1000)"));
+    int nAges = store_.getSentencesByPredicate("age").size();
+    assertTrue(results.hasNext());
+    results.next();
+
+    // The read lock is not held between calls, so a writer isn't blocked.
+    Thread writer = new Thread(() -> store_.addSentence("(age P1001 1001)"));
+    writer.start();
+    writer.join(10000);
+    assertFalse("The writer was blocked by the iterator", writer.isAlive());
+
+    boolean foundAdded = false;
+    int nResults = 1;
+    while (results.hasNext()) {
+      if (results.next().get("$a").equals("P1000"))
+        foundAdded = true;
+      ++nResults;
+    }
+    assertTrue(foundAdded);
+    assertTrue(nResults >= nAges * nAges);
+  }
+
+  @Test
+  public void
+  testSkipsRemoved()
+  {
+    Iterator<Map<String, String>> results = store_.query("(knows $a $b)");
+    assertTrue(results.hasNext());
+    Map<String, String> first = results.next();
+
+    List<String> remaining = new ArrayList<>();
+    for (Sentence sentence : store_.getSentencesByPredicate("knows")) {
+      String symbol = sentence.symbol();
+      if (!symbol.equals
+          ("(knows " + first.get("$a") + " " + first.get("$b") + ")"))
+        remaining.add(symbol);
+    }
+    // Remove one sentence after the candidates were copied.
+    String removed = remaining.remove(0);
+    assertTrue(store_.removeSentence(removed));
+
+    List<String> found = new ArrayList<>();
+    while (results.hasNext()) {
+      Map<String, String> result = results.next();
+      found.add("(knows " + result.get("$a") + " " + result.get("$b") + ")");
+    }
+    Collections.sort(found);
+    Collections.sort(remaining);
+    assertEquals(remaining, found);
+  }
+
+  @Test
+  public void
+  testSecondaryIndexKeys()
+  {
+    store_.addSentence("(between X1 Y1 Z1)");
+    store_.addSecondaryIndex("between", 4);
+    store_.addSentence("(between X2 Y2 Z1)");
+    store_.addSentence("(between X3 Y3 (loc C9 C8))");
+    checkQuery("(between $a $b Z1)");
+    checkQuery("(between $a $b (loc C9 $c))");
+
+    // The keys are not added to the store's terms.
+    assertTrue(store_.getTerms().getId("Z1") < 0);
+    assertTrue(store_.getTerms().getId("(loc C9 C8)") < 0);
+    assertEquals(2, store_.getSentencesByArgument("between", 4, "Z1").size());
+    assertTrue(store_.removeSentence("(between X1 Y1 Z1)"));
+    assertTrue(store_.removeSentence("(between X2 Y2 Z1)"));
+    assertEquals(0, store_.getSentencesByArgument("between", 4, "Z1").size());
+    assertEquals
+      (1, store_.getSentencesByArgument("between", 4, "(loc C9 C8)").size());
+  }
+
+  @Test
+  public void
+  testParseErrors()
+  {
+    String[] queries = {
+      "(AND (knows $a $b)", "(AND (lessThan 1 2))", "($p a b)",
+      "(AND (knows $a $b) (lessThan $c 1))", "(knows $a $b) x",
+      "(AND (knows $a $b) (lessThan $a x))" };
+    for (String query : queries) {
+      try {
+        new ConjunctiveQuery(query);
+        fail("Expected an Error for " + query);
+      } catch (Error ex) {
+        // Expected.
+      }
+    }
+  }
+
+  /**
+   * Check that the query of the conjuncts gives the same results as the brute
+   * force evaluation.
+   * @param conjuncts The patterns and filters.
+   */
+  private void
+  checkQuery(String... conjuncts)
+  {
+    String query = "(AND";
+    for (String conjunct : conjuncts)
+      query += " " + conjunct;
+    query += ")";
+
+    List<String> expected = new ArrayList<>();
+    List<List<Object>> patterns = new ArrayList<>();
+    List<List<Object>> filters = new ArrayList<>();
+    for (String conjunct : conjuncts) {
+      List<Object> terms = parse(conjunct);
+      if (FILTERS.contains((String)terms.get(0)))
+        filters.add(terms);
+      else
+        patterns.add(terms);
+    }
+    bruteForce(patterns, filters, 0, new HashMap<>(), expected);
+    Collections.sort(expected);
+
+    List<String> actual = new ArrayList<>();
+    for (Iterator<Map<String, String>> i = store_.query(query); i.hasNext(); )
+      actual.add(new TreeMap<>(i.next()).toString());
+    Collections.sort(actual);
+
+    assertEquals(query, expected, actual);
+  }
+
+  private void
+  bruteForce
+    (List<List<Object>> patterns, List<List<Object>> filters, int level,
+     Map<String, String> bindings, List<String> results)
+  {
+    if (level == patterns.size()) {
+      for (List<Object> filter : filters) {
+        if (!test(filter, bindings))
+          return;
+      }
+      results.add(new TreeMap<>(bindings).toString());
+      return;
+    }
+
+    List<Object> pattern = patterns.get(level);
+    for (Sentence sentence :
+         store_.getSentencesByPredicate((String)pattern.get(0))) {
+      Map<String, String> newBindings = new HashMap<>(bindings);
+      if (unify(pattern, parse(sentence.symbol()), newBindings))
+        bruteForce(patterns, filters, level + 1, newBindings, results);
+    }
+  }
+
+  private static boolean
+  unify(Object pattern, Object value, Map<String, String> bindings)
+  {
+    if (pattern instanceof String) {
+      String atom = (String)pattern;
+      if (!atom.startsWith("$"))
+        return atom.equals(value);
+
+      String text = toText(value);
+      String bound = bindings.putIfAbsent(atom, text);
+      return bound == null || bound.equals(text);
+    }
+
+    if (!(value instanceof List))
+      return false;
+    List<?> patterns = (List<?>)pattern;
+    List<?> values = (List<?>)value;
+    if (patterns.size() != values.size())
+      return false;
+    for (int i = 0; i < patterns.size(); ++i) {
+      if (!unify(patterns.get(i), values.get(i), bindings))
+        return false;
+    }
+    return true;
+  }
+
+  private static boolean
+  test(List<Object> filter, Map<String, String> bindings)
+  {
+    long[] values = new long[2];
+    for (int i = 0; i < 2; ++i) {
+      String arg = (String)filter.get(i + 1);
+      if (arg.startsWith("$"))
+        arg = bindings.get(arg);
+      try {
+        values[i] = Long.parseLong(arg);
+      } catch (NumberFormatException ex) {
+        return false;
+      }
+    }
+
+    switch ((String)filter.get(0)) {
+      case "lessThan": return values[0] < values[1];
+      case "lessThanOrEqual": return values[0] <= values[1];
+      case "greaterThan": return values[0] > values[1];
+      case "greaterThanOrEqual": return values[0] >= values[1];
+      default: return values[0] == values[1];
+    }
+  }
+
+  /**
+   * Parse the expression with atoms and nested lists, without quoted strings.
+   */
+  private static List<Object>
+  parse(String text)
+  {
+    List<List<Object>> stack = new ArrayList<>();
+    List<Object> result = null;
+    for (String token : text.replace("(", " ( ").replace(")", " ) ").trim()
+                            .split(" +")) {
+      if (token.equals("("))
+        stack.add(new ArrayList<>());
+      else if (token.equals(")")) {
+        List<Object> list = stack.remove(stack.size() - 1);
+        if (stack.isEmpty())
+          result = list;
+        else
+          stack.get(stack.size() - 1).add(list);
+      }
+      else
+        stack.get(stack.size() - 1).add(token);
+    }
+    return result;
+  }
+
+  private static String
+  toText(Object term)
+  {
+    if (term instanceof String)
+      return (String)term;
+
+    StringBuilder result = new StringBuilder("(");
+    List<?> terms = (List<?>)term;
+    for (int i = 0; i < terms.size(); ++i) {
+      if (i > 0)
+        result.append(' ');
+      result.append(toText(terms.get(i)));
+    }
+    return result.append(')').toString();
+  }
+
+  private static final List<String> FILTERS = Arrays.asList
+    ("lessThan", "lessThanOrEqual", "greaterThan", "greaterThanOrEqual",
+     "equal");
+  private NuvlWorldStore store_;
+}
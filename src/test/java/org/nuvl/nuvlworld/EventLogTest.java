@@ -0,0 +1,237 @@
+/*
+Copyright (C) 2017 Jeff Thompson
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package org.nuvl.nuvlworld;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Check that EventLog records survive a reopen, that a torn or corrupted
+ * record at the end is dropped, and that appends are grouped and rejected
+ * after close.
+ * @author Jeff Thompson, jeff@thefirst.org
+ */
+public class EventLogTest {
+  @Rule
+  public TemporaryFolder folder_ = new TemporaryFolder();
+
+  @Before
+  public void
+  setUp() throws IOException
+  {
+    logPath_ = new File(folder_.getRoot(), "events.log").getPath();
+  }
+
+  @Test
+  public void
+  testRoundTrip() throws Exception
+  {
+    List<List<String>> expected = makeRecords(200);
+    try (EventLog log = new EventLog(logPath_)) {
+      assertEquals(0, log.getRecords().size());
+      List<CompletableFuture<Void>> futures = new ArrayList<>();
+      for (List<String> record : expected)
+        futures.add(log.append(record));
+      for (CompletableFuture<Void> future : futures)
+        future.get();
+
+      // The records were synced in groups, not one at a time.
+      assertTrue(log.getSyncCount() >= 1);
+      assertTrue(log.getSyncCount() <= expected.size());
+    }
+
+    try (EventLog log = new EventLog(logPath_)) {
+      assertEquals(expected, log.getRecords());
+
+      NuvlWorldStore store = new NuvlWorldStore();
+      assertEquals(expected.size(), log.replay(store));
+      assertEquals
+        (expected.size(), store.getSentencesByPredicate("subAttrOf").size());
+      assertEquals
+        (1, store.overlapsRange(1000, 1001).size());
+    }
+  }
+
+  @Test
+  public void
+  testTruncatedTail() throws Exception
+  {
+    List<List<String>> expected = makeRecords(10);
+    writeRecords(expected);
+
+    // Cut 3 bytes from the last record as if the process crashed while
+    // writing it.
+    long length = new File(logPath_).length();
+    truncate(length - 3);
+
+    List<List<String>> recovered = expected.subList(0, expected.size() - 1);
+    long recoveredLength;
+    try (EventLog log = new EventLog(logPath_)) {
+      assertEquals(recovered, log.getRecords());
+      recoveredLength = new File(logPath_).length();
+      assertTrue(recoveredLength < length - 3);
+
+      // Appending after recovery goes after the last good record.
+      log.append(Arrays.asList("(instanceOf E1000 Event)")).get();
+    }
+
+    List<List<String>> expectedAfterAppend = new ArrayList<>(recovered);
+    expectedAfterAppend.add(Arrays.asList("(instanceOf E1000 Event)"));
+    try (EventLog log = new EventLog(logPath_)) {
+      assertEquals(expectedAfterAppend, log.getRecords());
+    }
+
+    // A file shorter than the header is not overwritten.
+    truncate(5);
+    try {
+      new EventLog(logPath_).close();
+      fail("Expected an IOException for a file shorter than the header");
+    } catch (IOException ex) {
+      // Expected.
+    }
+    assertEquals(5, new File(logPath_).length());
+
+    // An empty file gets a header.
+    truncate(0);
+    try (EventLog log = new EventLog(logPath_)) {
+      assertEquals(0, log.getRecords().size());
+      log.append(Arrays.asList("(instanceOf E1 Event)")).get();
+    }
+    try (EventLog log = new EventLog(logPath_)) {
+      assertEquals(1, log.getRecords().size());
+    }
+  }
+
+  @Test
+  public void
+  testCorruptedChecksum() throws Exception
+  {
+    List<List<String>> expected = makeRecords(10);
+    writeRecords(expected);
+
+    // Change the last byte of the last record's payload.
+    long length = new File(logPath_).length();
+    try (RandomAccessFile file = new RandomAccessFile(logPath_, "rw")) {
+      file.seek(length - 1);
+      int b = file.read();
+      file.seek(length - 1);
+      file.write(b ^ 1);
+    }
+
+    try (EventLog log = new EventLog(logPath_)) {
+      assertEquals(expected.subList(0, expected.size() - 1), log.getRecords());
+    }
+    assertTrue(new File(logPath_).length() < length);
+  }
+
+  @Test
+  public void
+  testBadMagicNumber() throws Exception
+  {
+    writeRecords(makeRecords(2));
+    try (RandomAccessFile file = new RandomAccessFile(logPath_, "rw")) {
+      file.seek(0);
+      file.writeInt(0x12345678);
+    }
+    long length = new File(logPath_).length();
+
+    try {
+      new EventLog(logPath_).close();
+      fail("Expected an IOException for a bad magic number");
+    } catch (IOException ex) {
+      // Expected.
+    }
+    // The file is not truncated.
+    assertEquals(length, new File(logPath_).length());
+  }
+
+  @Test
+  public void
+  testAppendAfterClose() throws Exception
+  {
+    EventLog log = new EventLog(logPath_);
+    CompletableFuture<Void> written = log.append
+      (Arrays.asList("(instanceOf E1 Event)"));
+    log.close();
+    // A record appended before close is written.
+    written.get();
+
+    CompletableFuture<Void> rejected = log.append
+      (Arrays.asList("(instanceOf E2 Event)"));
+    try {
+      rejected.get();
+      fail("Expected an append after close to fail");
+    } catch (ExecutionException ex) {
+      assertTrue(ex.getCause() instanceof IOException);
+    }
+    // Closing again does nothing.
+    log.close();
+
+    try (EventLog reopened = new EventLog(logPath_)) {
+      assertEquals(1, reopened.getRecords().size());
+    }
+  }
+
+  private void
+  writeRecords(List<List<String>> records) throws Exception
+  {
+    try (EventLog log = new EventLog(logPath_)) {
+      CompletableFuture<Void> last = null;
+      for (List<String> record : records)
+        last = log.append(record);
+      last.get();
+    }
+  }
+
+  private void
+  truncate(long length) throws IOException
+  {
+    try (RandomAccessFile file = new RandomAccessFile(logPath_, "rw")) {
+      file.setLength(length);
+    }
+  }
+
+  /**
+   * Make the records of new events, each with two sentences.
+   */
+  private static List<List<String>>
+  makeRecords(int count)
+  {
+    List<List<String>> result = new ArrayList<>();
+    for (int i = 0; i < count; ++i)
+      result.add(Arrays.asList
+        ("(subAttrOf E" + i + " (TimeIntervalFn " + (1000 + i * 10) + " " +
+         (1000 + i * 10) + "))",
+         "(description E" + i + " \"Event \\u00e9 " + i + "\")"));
+    return result;
+  }
+
+  private String logPath_;
+}
@@ -0,0 +1,296 @@
+/*
+Copyright (C) 2017 Jeff Thompson
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package org.nuvl.nuvlworld;
+
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.TimeZone;
+import org.junit.Test;
+import org.nuvl.nuvlworld.NuvlWorldStore.EventTimeInterval;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Check overlapsRange and overlapsDate against a brute-force scan of the
+ * intervals over random sequences of adds and removes, so that the
+ * EventTimeIndex delta rows and rebuilds and the OverlapsDateCache updates are
+ * covered, including days with a daylight saving time change and zero-length
+ * events at midnight.
+ * @author Jeff Thompson, jeff@thefirst.org
+ */
+public class EventTimeIndexTest {
+  @Test
+  public void
+  testMidnightAndDst()
+  {
+    NuvlWorldStore store = new NuvlWorldStore();
+    TimeZone newYork = TimeZone.getTimeZone("America/New_York");
+    // 2017-03-12 has 23 hours in New York.
+    LocalDate dstDate = LocalDate.of(2017, 3, 12);
+    long midnight = getMillis(dstDate, NEW_YORK);
+    long nextMidnight = getMillis(dstDate.plusDays(1), NEW_YORK);
+    assertEquals(23 * HOUR, nextMidnight - midnight);
+
+    addInterval(store, "Instant", midnight, midnight);
+    addInterval(store, "EndsAtMidnight", midnight - HOUR, midnight);
+    addInterval(store, "LastMillisecond", nextMidnight - 1, nextMidnight);
+    addInterval(store, "NextDay", nextMidnight, nextMidnight + HOUR);
+    addInterval(store, "Backwards", midnight + HOUR, midnight);
+
+    // Query the days before the changes below so that they are cached.
+    assertEquals
+      (events("EndsAtMidnight"),
+       getEvents(store.overlapsDate(dstDate.minusDays(1), newYork)));
+    assertEquals
+      (events("Instant", "LastMillisecond", "Backwards"),
+       getEvents(store.overlapsDate(dstDate, newYork)));
+    assertEquals
+      (events("NextDay"),
+       getEvents(store.overlapsDate(dstDate.plusDays(1), newYork)));
+
+    // Update the cached days.
+    addInterval(store, "NextInstant", nextMidnight, nextMidnight);
+    assertTrue(store.removeSentence
+      (makeSentence("Instant", midnight, midnight)));
+    assertEquals
+      (events("LastMillisecond", "Backwards"),
+       getEvents(store.overlapsDate(dstDate, newYork)));
+    assertEquals
+      (events("NextDay", "NextInstant"),
+       getEvents(store.overlapsDate(dstDate.plusDays(1), newYork)));
+    assertEquals
+      (events("EndsAtMidnight"),
+       getEvents(store.overlapsDate(dstDate.minusDays(1), newYork)));
+    assertTrue(store.getOverlapsDateCache().getHitCount() >= 3);
+  }
+
+  @Test
+  public void
+  testRandomChanges()
+  {
+    for (int seed = 0; seed < 4; ++seed)
+      checkRandomChanges(new Random(seed), seed % 2 == 0 ? 100000 : 50);
+  }
+
+  /**
+   * Make random adds and removes in a store and check the queries after each
+   * change against a brute-force scan.
+   * @param budget The budget of the OverlapsDateCache.
+   */
+  private static void
+  checkRandomChanges(Random random, int budget)
+  {
+    NuvlWorldStore store = new NuvlWorldStore();
+    store.getOverlapsDateCache().setBudget(budget);
+    ArrayList<EventTimeInterval> intervals = new ArrayList<>();
+
+    for (int step = 0; step < 1500; ++step) {
+      int nChanges = 1;
+      if (random.nextInt(100) == 0)
+        // Enough changes in one write to build the tree again.
+        nChanges = 300 + random.nextInt(300);
+      else if (random.nextInt(10) == 0)
+        nChanges = 2 + random.nextInt(20);
+
+      store.lockForWrite();
+      try {
+        for (int i = 0; i < nChanges; ++i)
+          makeChange(random, store, intervals);
+      }
+      finally {
+        store.unlockForWrite();
+      }
+
+      for (int i = 0; i < 3; ++i) {
+        ZoneId zoneId = ZONES[random.nextInt(ZONES.length)];
+        LocalDate date = getRandomDate(random);
+        long begin = getMillis(date, zoneId);
+        long end = getMillis(date.plusDays(1), zoneId);
+        Set<EventTimeInterval> expected = new HashSet<>(overlaps
+          (intervals, begin, end));
+        assertEquals
+          (zoneId + " " + date, expected,
+           store.overlapsDate(date, TimeZone.getTimeZone(zoneId)));
+      }
+
+      long begin = getRandomTime(random);
+      long end = begin + random.nextInt(3) * HOUR + random.nextInt(2);
+      checkRange(store, intervals, begin, end);
+    }
+
+    assertTrue(store.getOverlapsDateCache().getHitCount() > 0);
+    if (budget < 100)
+      assertTrue(store.getOverlapsDateCache().getEvictionCount() > 0);
+  }
+
+  /**
+   * Add a random interval or remove a random interval in the list, and update
+   * the list.
+   */
+  private static void
+  makeChange
+    (Random random, NuvlWorldStore store, List<EventTimeInterval> intervals)
+  {
+    if (intervals.size() > 0 && random.nextInt(10) < 4) {
+      EventTimeInterval interval = intervals.remove
+        (random.nextInt(intervals.size()));
+      assertTrue(store.removeSentence(makeSentence
+        (interval.event, interval.startUtcMillis, interval.endUtcMillis)));
+      return;
+    }
+
+    String event = "E" + random.nextInt(50);
+    long start = getRandomTime(random);
+    long end;
+    int r = random.nextInt(10);
+    if (r == 0)
+      end = start;
+    else if (r == 1)
+      end = start - random.nextInt(2) * HOUR;
+    else if (r == 2)
+      end = start + 40 * DAY;
+    else
+      end = start + random.nextInt(4) * HOUR * (1 + random.nextInt(24));
+
+    EventTimeInterval interval = new EventTimeInterval(event, start, end);
+    if (!intervals.contains(interval)) {
+      intervals.add(interval);
+      assertTrue(store.addSentence(makeSentence(event, start, end)));
+    }
+    else
+      assertFalse(store.addSentence(makeSentence(event, start, end)));
+  }
+
+  private static void
+  checkRange
+    (NuvlWorldStore store, List<EventTimeInterval> intervals, long begin,
+     long end)
+  {
+    List<EventTimeInterval> result = store.overlapsRange(begin, end);
+    for (int i = 1; i < result.size(); ++i)
+      assertTrue(result.get(i - 1).startUtcMillis <=
+                 result.get(i).startUtcMillis);
+    assertEquals(result.size(), new HashSet<>(result).size());
+    assertEquals
+      (new HashSet<>(overlaps(intervals, begin, end)), new HashSet<>(result));
+  }
+
+  /**
+   * Get the intervals which overlap the range from begin up to but not
+   * including end, where an interval with the end not after the start is the
+   * single millisecond at the start.
+   */
+  private static List<EventTimeInterval>
+  overlaps(Collection<EventTimeInterval> intervals, long begin, long end)
+  {
+    ArrayList<EventTimeInterval> result = new ArrayList<>();
+    if (begin >= end)
+      // The range is empty.
+      return result;
+    for (EventTimeInterval interval : intervals) {
+      long effectiveEnd = interval.endUtcMillis > interval.startUtcMillis ?
+        interval.endUtcMillis : interval.startUtcMillis + 1;
+      if (interval.startUtcMillis < end && effectiveEnd > begin)
+        result.add(interval);
+    }
+    return result;
+  }
+
+  /**
+   * Get a random time near a daylight saving time change, often at midnight
+   * in one of the ZONES.
+   */
+  private static long
+  getRandomTime(Random random)
+  {
+    LocalDate date = getRandomDate(random);
+    ZoneId zoneId = ZONES[random.nextInt(ZONES.length)];
+    int r = random.nextInt(4);
+    if (r == 0)
+      return getMillis(date, zoneId);
+    else if (r == 1)
+      return getMillis(date, zoneId) + (random.nextBoolean() ? -1 : 1);
+    else
+      return date.atTime(random.nextInt(24), 30 * random.nextInt(2))
+        .atZone(zoneId).toInstant().toEpochMilli();
+  }
+
+  /**
+   * Get a random date within a few days of a daylight saving time change in
+   * America/New_York or Europe/London.
+   */
+  private static LocalDate
+  getRandomDate(Random random)
+  {
+    LocalDate[] dstDates = {
+      LocalDate.of(2017, 3, 12), LocalDate.of(2017, 3, 26),
+      LocalDate.of(2017, 10, 29), LocalDate.of(2017, 11, 5) };
+    return dstDates[random.nextInt(dstDates.length)].plusDays
+      (random.nextInt(7) - 3);
+  }
+
+  private static long
+  getMillis(LocalDate date, ZoneId zoneId)
+  {
+    return date.atStartOfDay(zoneId).toInstant().toEpochMilli();
+  }
+
+  private static void
+  addInterval(NuvlWorldStore store, String event, long start, long end)
+  {
+    assertTrue(store.addSentence(makeSentence(event, start, end)));
+  }
+
+  private static String
+  makeSentence(String event, long start, long end)
+  {
+    return "(subAttrOf " + event + " (TimeIntervalFn " + start + " " + end +
+      "))";
+  }
+
+  private static Set<String>
+  getEvents(Set<EventTimeInterval> intervals)
+  {
+    HashSet<String> result = new HashSet<>();
+    for (EventTimeInterval interval : intervals)
+      result.add(interval.event);
+    return result;
+  }
+
+  private static Set<String>
+  events(String... events)
+  {
+    HashSet<String> result = new HashSet<>();
+    Collections.addAll(result, events);
+    return result;
+  }
+
+  private static final long HOUR = 3600000L;
+  private static final long DAY = 24 * HOUR;
+  private static final ZoneId NEW_YORK = ZoneId.of("America/New_York");
+  private static final ZoneId[] ZONES = {
+    NEW_YORK, ZoneId.of("Europe/London"), ZoneId.of("UTC"),
+    ZoneId.of("Australia/Lord_Howe"), ZoneId.of("Asia/Kolkata") };
+}
@@ -0,0 +1,165 @@
+/*
+Copyright (C) 2017 Jeff Thompson
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package org.nuvl.nuvlworld;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Check that LabelIndex finds the same descriptions as the TSV file, that the
+ * cache stays bounded, that building from many sorted runs makes the same index
+ * file as one run, and that lookups from many threads at once agree.
+ * @author Jeff Thompson, jeff@thefirst.org
+ */
+public class LabelIndexTest {
+  @Rule
+  public TemporaryFolder folder_ = new TemporaryFolder();
+
+  @Before
+  public void
+  setUp() throws IOException
+  {
+    tsvFile_ = folder_.newFile("labels.tsv");
+    indexPath_ = new File(folder_.getRoot(), "labels.index").getPath();
+    try (PrintWriter writer = new PrintWriter(tsvFile_, "UTF-8")) {
+      // Write the items out of order, with a repeated item and a bad line.
+      for (int i = N_ITEMS - 1; i >= 0; --i)
+        writer.print((i * 3) + "\t" +
+          NuvlWorldStore.toEscapedString(getDescription(i)) + "\r\n");
+      writer.print("0\t\"Replaced\"\n");
+      writer.print("x\t\"Not an item\"\n");
+    }
+  }
+
+  @Test
+  public void
+  testGet() throws IOException
+  {
+    LabelIndex index = new LabelIndex(tsvFile_.getPath(), indexPath_, 100);
+    assertEquals(N_ITEMS, index.size());
+    assertEquals("Replaced", index.get("Q0"));
+    for (int i = 1; i < N_ITEMS; ++i)
+      assertEquals(getDescription(i), index.get("Q" + (i * 3)));
+
+    assertNull(index.get("Q1"));
+    assertNull(index.get("Q03"));
+    assertNull(index.get("P3"));
+    assertNull(index.get("Q3x"));
+    assertNull(index.get("Q99999999999"));
+    assertTrue(index.getCacheSize() <= 100);
+
+    // The index file is used again.
+    long lastModified = new File(indexPath_).lastModified();
+    LabelIndex reopened = new LabelIndex(tsvFile_.getPath(), indexPath_, 100);
+    assertEquals(getDescription(5), reopened.get("Q15"));
+    assertEquals(lastModified, new File(indexPath_).lastModified());
+  }
+
+  @Test
+  public void
+  testRuns() throws IOException
+  {
+    File oneRunFile = new File(folder_.getRoot(), "oneRun.index");
+    LabelIndex.build(tsvFile_, oneRunFile, 1000000);
+    byte[] expected = Files.readAllBytes(oneRunFile.toPath());
+
+    // With 10 lines in a run, the repeated item 0 is in the last two runs.
+    for (int maxRunEntries : new int[] { 10, 7, 1500 }) {
+      File indexFile = new File(indexPath_);
+      LabelIndex.build(tsvFile_, indexFile, maxRunEntries);
+      assertArrayEquals
+        ("maxRunEntries " + maxRunEntries, expected,
+         Files.readAllBytes(indexFile.toPath()));
+      // The run files are deleted, leaving the TSV file and two index files.
+      assertEquals(3, folder_.getRoot().list().length);
+
+      try (LabelIndex index = new LabelIndex
+             (tsvFile_.getPath(), indexPath_, 100)) {
+        assertEquals(N_ITEMS, index.size());
+        assertEquals("Replaced", index.get("Q0"));
+        for (int i = 1; i < N_ITEMS; ++i)
+          assertEquals(getDescription(i), index.get("Q" + (i * 3)));
+      }
+    }
+  }
+
+  @Test
+  public void
+  testConcurrentGet() throws Exception
+  {
+    final LabelIndex index = new LabelIndex(tsvFile_.getPath(), indexPath_, 64);
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<?>> futures = new ArrayList<>();
+      for (int t = 0; t < 8; ++t) {
+        final long seed = t;
+        futures.add(executor.submit(() -> {
+          Random random = new Random(seed);
+          for (int n = 0; n < 20000; ++n) {
+            // Mostly look up a few items so that the cache has hits.
+            int i = random.nextInt(4) == 0 ?
+              random.nextInt(N_ITEMS) : 1 + random.nextInt(20);
+            assertEquals(getDescription(i), index.get(i * 3));
+            assertNull(index.get(i * 3 + 1));
+          }
+        }));
+      }
+      for (Future<?> future : futures)
+        future.get();
+    }
+    finally {
+      executor.shutdown();
+    }
+
+    // Each generation can go over by the number of threads which put at once.
+    assertTrue(index.getCacheSize() <= 64 + 2 * 8);
+  }
+
+  private static String
+  getDescription(int i)
+  {
+    if (i == 0)
+      return "Replaced";
+    // Make some lines longer than the first read buffer.
+    StringBuilder result = new StringBuilder("Item \"" + i + "\" \u00e9");
+    if (i % 50 == 0) {
+      for (int j = 0; j < 100; ++j)
+        result.append(" more");
+    }
+    return result.toString();
+  }
+
+  private static final int N_ITEMS = 2000;
+  private File tsvFile_;
+  private String indexPath_;
+}
@@ -0,0 +1,238 @@
+/*
+Copyright (C) 2017 Jeff Thompson
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package org.nuvl.nuvlworld;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Check that loading Scheme files through a LoadPipeline with
+ * loadSchemeFile(filePath, nThreads) and loadSchemeFiles gives the same terms,
+ * triples and descriptions, with the same IDs and triple numbers, as the
+ * sequential loadSchemeFile(filePath), for plain and gzip files. The files
+ * span several batches of the LoadPipeline and have CRLF line endings,
+ * comments, repeated sentences, a line longer than a batch and descriptions
+ * before and after their subject, so that the order of adding matters.
+ * @author Jeff Thompson, jeff@thefirst.org
+ */
+public class LoadPipelineTest {
+  @Rule
+  public TemporaryFolder folder_ = new TemporaryFolder();
+
+  @Before
+  public void
+  setUp() throws IOException
+  {
+    Random random = new Random(2017);
+    byte[] bytes1 = makeSchemeFile(random, 60000);
+    byte[] bytes2 = makeSchemeFile(random, 20000);
+    // Make sure that the first file has more than a few batches.
+    assertTrue(bytes1.length > 3 * (1 << 20));
+
+    file1_ = write("test1.scm", bytes1);
+    file2_ = write("test2.scm", bytes2);
+    gzipFile1_ = write("test1.scm.gz", gzip(bytes1, 1));
+    // A gzip file may have more than one member.
+    gzipFile2_ = write("test2.scm.gz", gzip(bytes2, 3));
+  }
+
+  @Test
+  public void
+  testLoadSchemeFile() throws IOException
+  {
+    NuvlWorldStore expected = new NuvlWorldStore();
+    expected.loadSchemeFile(file1_);
+    assertTrue(expected.getTriples().size() > 10000);
+
+    NuvlWorldStore gzipStore = new NuvlWorldStore();
+    gzipStore.loadSchemeFile(gzipFile1_);
+    assertSameStore(expected, gzipStore);
+
+    for (String filePath : Arrays.asList(file1_, gzipFile1_)) {
+      for (int nThreads : new int[] { 2, 5 }) {
+        NuvlWorldStore store = new NuvlWorldStore();
+        store.loadSchemeFile(filePath, nThreads);
+        assertSameStore(expected, store);
+      }
+    }
+  }
+
+  @Test
+  public void
+  testLoadSchemeFiles() throws IOException
+  {
+    NuvlWorldStore expected = new NuvlWorldStore();
+    expected.loadSchemeFile(file1_);
+    expected.loadSchemeFile(file2_);
+
+    NuvlWorldStore store = new NuvlWorldStore();
+    store.loadSchemeFiles(Arrays.asList(file1_, file2_), 4);
+    assertSameStore(expected, store);
+
+    store = new NuvlWorldStore();
+    store.loadSchemeFiles(Arrays.asList(gzipFile1_, file2_), 3);
+    assertSameStore(expected, store);
+
+    store = new NuvlWorldStore();
+    store.loadSchemeFiles(Arrays.asList(file1_, gzipFile2_), 1);
+    assertSameStore(expected, store);
+
+    // The files are added in the order given.
+    NuvlWorldStore reversed = new NuvlWorldStore();
+    reversed.loadSchemeFile(file2_);
+    reversed.loadSchemeFile(file1_);
+    store = new NuvlWorldStore();
+    store.loadSchemeFiles(Arrays.asList(gzipFile2_, gzipFile1_), 4);
+    assertSameStore(reversed, store);
+  }
+
+  /**
+   * Check that the store has the same term IDs, the same triples in the same
+   * order, and the same descriptions as expected.
+   */
+  private static void
+  assertSameStore(NuvlWorldStore expected, NuvlWorldStore store)
+  {
+    TermDictionary expectedTerms = expected.getTerms();
+    TermDictionary terms = store.getTerms();
+    assertEquals(expectedTerms.size(), terms.size());
+    for (int i = 0; i < expectedTerms.size(); ++i)
+      assertEquals(expectedTerms.getTerm(i), terms.getTerm(i));
+
+    TripleTable expectedTriples = expected.getTriples();
+    TripleTable triples = store.getTriples();
+    assertEquals(expectedTriples.size(), triples.size());
+    for (int i = 0; i < expectedTriples.size(); ++i) {
+      assertEquals(expectedTriples.isRemoved(i), triples.isRemoved(i));
+      assertEquals(expectedTriples.getPredicate(i), triples.getPredicate(i));
+      assertEquals(expectedTriples.getArg2(i), triples.getArg2(i));
+      assertEquals(expectedTriples.getRest(i), triples.getRest(i));
+    }
+
+    assertEquals(expected.descriptions_.size(), store.descriptions_.size());
+    for (int i = 0; i < expectedTerms.size(); ++i) {
+      String term = expectedTerms.getTerm(i);
+      assertEquals
+        (term, expected.descriptions_.get(term), store.descriptions_.get(term));
+    }
+  }
+
+  /**
+   * Make the UTF-8 bytes of a Scheme file with random sentences and
+   * descriptions.
+   * @param nLines The number of lines.
+   */
+  private static byte[]
+  makeSchemeFile(Random random, int nLines)
+  {
+    StringBuilder result = new StringBuilder();
+    ArrayList<String> sentences = new ArrayList<>();
+    for (int i = 0; i < nLines; ++i) {
+      String subject = "Q" + random.nextInt(20000);
+      String line;
+      int r = random.nextInt(12);
+      if (i == nLines / 2)
+        // A line longer than a batch of the LoadPipeline.
+        line = "(description " + subject + " \"Long " +
+          String.join("", Collections.nCopies(300000, "\\u00e9 \\\"x\\\" ")) +
+          "\")";
+      else if (r == 0)
+        // The description is kept only if the subject is already an arg2.
+        line = "(description " + subject + " \"Item \\\"" + i +
+          "\\\" \u00e9\")";
+      else if (r == 1)
+        line = random.nextBoolean() ? "; Comment " + i : "";
+      else if (r == 2 && sentences.size() > 0)
+        // Adding a sentence again does nothing.
+        line = sentences.get(random.nextInt(sentences.size()));
+      else {
+        if (r == 3) {
+          long start = 1500000000000L + random.nextInt(1000) * 3600000L;
+          line = "(subAttrOf E" + random.nextInt(5000) + " (TimeIntervalFn " +
+            start + " " + (start + random.nextInt(5) * 86400000L) + "))";
+        }
+        else if (r == 4)
+          line = "(P31 " + subject + " (f Q" + random.nextInt(10) + " " +
+            (random.nextInt(1000) - 500) + "))";
+        else if (r == 5)
+          line = "(population " + subject + " " + random.nextInt(1000000) + ")";
+        else if (r == 6)
+          line = "(label " + subject + " \"Label " + i + " \u00e9\")";
+        else
+          line = "(instanceOf " + subject + " Q" + random.nextInt(50) + ")";
+        sentences.add(line);
+      }
+
+      result.append(line);
+      if (i < nLines - 1)
+        // The last line has no newline.
+        result.append(random.nextInt(4) == 0 ? "\r\n" : "\n");
+    }
+
+    return result.toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Compress the bytes as a gzip file of nMembers concatenated gzip members.
+   */
+  private static byte[]
+  gzip(byte[] bytes, int nMembers) throws IOException
+  {
+    ByteArrayOutputStream result = new ByteArrayOutputStream();
+    int memberSize = bytes.length / nMembers;
+    for (int i = 0; i < nMembers; ++i) {
+      int begin = i * memberSize;
+      int end = i == nMembers - 1 ? bytes.length : begin + memberSize;
+      GZIPOutputStream member = new GZIPOutputStream(result);
+      member.write(bytes, begin, end - begin);
+      // Write the trailer but don't close the result.
+      member.finish();
+    }
+
+    return result.toByteArray();
+  }
+
+  private String
+  write(String fileName, byte[] bytes) throws IOException
+  {
+    File file = folder_.newFile(fileName);
+    try (OutputStream out = new FileOutputStream(file)) {
+      out.write(bytes);
+    }
+    return file.getPath();
+  }
+
+  private String file1_;
+  private String file2_;
+  private String gzipFile1_;
+  private String gzipFile2_;
+}
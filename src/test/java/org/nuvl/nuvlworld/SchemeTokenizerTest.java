@@ -0,0 +1,289 @@
+/*
+Copyright (C) 2017 Jeff Thompson
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package org.nuvl.nuvlworld;
+
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Check that SchemeTokenizer agrees with the NuvlWorldStore patterns which it
+ * replaces, on edge cases and on seeded random lines.
+ * @author Jeff Thompson, jeff@thefirst.org
+ */
+public class SchemeTokenizerTest {
+  @Test
+  public void
+  testEdgeCases()
+  {
+    String[] lines = {
+      "(p a b)",
+      "(p _a b_9)",
+      "(p a (f x))",
+      "(p a (f x y))",
+      "(p (f x) b)",
+      "(p (f 1 -2) (g x))",
+      "(p (f x) (g 1 2))",
+      "(p a b c)",
+      "(p a b (f x))",
+      "(p a b (f x y))",
+      "(p a b -5)",
+      "(p (f x) b c)",
+      "(p a 12)",
+      "(p a -12)",
+      "(p a -)",
+      "(p a 12x)",
+      "(p (f x) 12)",
+      "(p a \"\")",
+      "(p a \"x\")",
+      "(p a \"with \\\"escaped\\\" quotes\")",
+      "(p a \"back\\\\slash\")",
+      "(p a \"a) (b\")",
+      "(p a \")",
+      "(p a \"x\ny\")",
+      "(p (f x) \"x\")",
+      "(p a b)\n",
+      "(p a b)\r\n",
+      "(p a b)\n\n",
+      "(p a b)\u2028",
+      "(p a b) ",
+      " (p a b)",
+      "(p  a b)",
+      "(p a  b)",
+      "(p a b c d)",
+      "(p a (f (g x)))",
+      "(p a (f x y z))",
+      "(p a (f))",
+      "(p a (f x)",
+      "(p a (1 x))",
+      "(1 a b)",
+      "(p 1 b)",
+      "(p a)",
+      "(p)",
+      "()",
+      "(",
+      ")",
+      "",
+      "p a b",
+    };
+
+    SchemeTokenizer tokenizer = new SchemeTokenizer();
+    for (String line : lines)
+      checkLine(tokenizer, line);
+  }
+
+  @Test
+  public void
+  testRandomLines()
+  {
+    Random random = new Random(12345);
+    SchemeTokenizer tokenizer = new SchemeTokenizer();
+    int nAccepted = 0;
+    for (int i = 0; i < 200000; ++i) {
+      if (checkLine(tokenizer, makeRandomLine(random)))
+        ++nAccepted;
+    }
+
+    // Make sure that the random lines are not almost all rejected.
+    assertTrue("Too few accepted lines: " + nAccepted, nAccepted > 20000);
+  }
+
+  @Test
+  public void
+  testUnrecognizedSchemePattern()
+  {
+    NuvlWorldStore store = new NuvlWorldStore();
+    assertTrue(store.addSentence("(p a b)"));
+    try {
+      store.addSentence("(p a (f (g x)))");
+      fail("Expected an Error for an unrecognized line");
+    } catch (Error ex) {
+      assertTrue(ex.getMessage().startsWith("Unrecognized Scheme pattern: "));
+    }
+  }
+
+  /**
+   * Check that the tokenizer and the first matching pattern agree on the line.
+   * @return True if the line was accepted.
+   */
+  private static boolean
+  checkLine(SchemeTokenizer tokenizer, String line)
+  {
+    Matcher matcher = null;
+    SchemeTokenizer.Kind kind = null;
+    for (int i = 0; i < patterns_.length; ++i) {
+      Matcher m = patterns_[i].matcher(line);
+      if (m.find()) {
+        matcher = m;
+        kind = kinds_[i];
+        break;
+      }
+    }
+
+    String message = "Line: " + line;
+    boolean accepted = tokenizer.tokenize(line);
+    assertEquals(message, matcher != null, accepted);
+    if (!accepted) {
+      assertNull(message, tokenizer.getKind());
+      return false;
+    }
+
+    assertEquals(message, kind, tokenizer.getKind());
+    assertEquals(message, matcher.group(1), tokenizer.getPredicate());
+    assertTrue(message, tokenizer.predicateEquals(matcher.group(1)));
+    assertFalse(message, tokenizer.predicateEquals(matcher.group(1) + "x"));
+    assertEquals(message, matcher.group(2), tokenizer.getArg2());
+    assertEquals(message, matcher.group(3), tokenizer.getLiteral());
+    if (kind == SchemeTokenizer.Kind.TERM4)
+      assertEquals
+        (message, matcher.group(3) + " " + matcher.group(4),
+         tokenizer.getRest());
+    else
+      assertEquals(message, matcher.group(3), tokenizer.getRest());
+    return true;
+  }
+
+  /**
+   * Make a line which is usually close to a valid Scheme line.
+   */
+  private static String
+  makeRandomLine(Random random)
+  {
+    StringBuilder line = new StringBuilder();
+    line.append('(');
+    line.append(makeTerm(random));
+    int nArgs = 1 + random.nextInt(4);
+    for (int i = 0; i < nArgs; ++i) {
+      line.append(' ');
+      line.append(makeArg(random));
+    }
+    line.append(')');
+
+    // Sometimes add a line terminator, or mutate one character.
+    int r = random.nextInt(10);
+    if (r == 0)
+      line.append(pick(random, "\n", "\r\n", "\r", "\u0085", "\n\n", " "));
+    else if (r == 1) {
+      int i = random.nextInt(line.length());
+      line.setCharAt(i, pick(random, MUTATIONS).charAt(0));
+    }
+    else if (r == 2)
+      line.deleteCharAt(random.nextInt(line.length()));
+
+    return line.toString();
+  }
+
+  private static String
+  makeArg(Random random)
+  {
+    switch (random.nextInt(5)) {
+    case 0:
+    case 1:
+      return makeTerm(random);
+    case 2:
+      return makeInt(random);
+    case 3:
+      return makeString(random);
+    default:
+      return makeCompound(random, 0);
+    }
+  }
+
+  private static String
+  makeCompound(Random random, int depth)
+  {
+    StringBuilder result = new StringBuilder();
+    result.append('(');
+    result.append(makeTerm(random));
+    // Allow zero or three arguments and nesting to be rejected.
+    int nArgs = random.nextInt(10) == 0 ? random.nextInt(4) * 3 / 2 :
+      1 + random.nextInt(2);
+    for (int i = 0; i < nArgs; ++i) {
+      result.append(' ');
+      if (depth < 2 && random.nextInt(8) == 0)
+        result.append(makeCompound(random, depth + 1));
+      else if (random.nextBoolean())
+        result.append(makeTerm(random));
+      else
+        result.append(makeInt(random));
+    }
+    result.append(')');
+    return result.toString();
+  }
+
+  private static String
+  makeTerm(Random random)
+  {
+    String first = "abzAZ_";
+    String rest = "abzAZ_09";
+    StringBuilder result = new StringBuilder();
+    result.append(first.charAt(random.nextInt(first.length())));
+    int length = random.nextInt(4);
+    for (int i = 0; i < length; ++i)
+      result.append(rest.charAt(random.nextInt(rest.length())));
+    return result.toString();
+  }
+
+  private static String
+  makeInt(Random random)
+  {
+    StringBuilder result = new StringBuilder();
+    if (random.nextInt(3) == 0)
+      result.append('-');
+    int length = random.nextInt(4);
+    for (int i = 0; i < length; ++i)
+      result.append((char)('0' + random.nextInt(10)));
+    if (random.nextInt(10) == 0)
+      result.append(makeTerm(random));
+    return result.toString();
+  }
+
+  private static String
+  makeString(Random random)
+  {
+    StringBuilder result = new StringBuilder();
+    result.append('"');
+    int length = random.nextInt(6);
+    for (int i = 0; i < length; ++i)
+      result.append(pick
+        (random, "a", " ", "\\\"", "\\\\", "\\n", ")", "(", "\u00e9", "\n"));
+    if (random.nextInt(10) != 0)
+      result.append('"');
+    return result.toString();
+  }
+
+  private static String
+  pick(Random random, String... values)
+  {
+    return values[random.nextInt(values.length)];
+  }
+
+  private static final String[] MUTATIONS =
+    { "(", ")", " ", "\"", "-", "1", "a", "_", "\n", "\\" };
+  private static final Pattern[] patterns_ = {
+    NuvlWorldStore.termPattern_, NuvlWorldStore.termPattern4_,
+    NuvlWorldStore.integerPattern_, NuvlWorldStore.stringPattern_ };
+  private static final SchemeTokenizer.Kind[] kinds_ = {
+    SchemeTokenizer.Kind.TERM, SchemeTokenizer.Kind.TERM4,
+    SchemeTokenizer.Kind.INTEGER, SchemeTokenizer.Kind.STRING };
+}
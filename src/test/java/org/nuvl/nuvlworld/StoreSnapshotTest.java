@@ -0,0 +1,324 @@
+/*
+Copyright (C) 2017 Jeff Thompson
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package org.nuvl.nuvlworld;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.nuvl.argue.aba_plus.Sentence;
+import org.nuvl.nuvlworld.NuvlWorldStore.EventTimeInterval;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Check that a store saved with saveSnapshot and loaded with loadSnapshot has
+ * the same sentences, indexes and descriptions as the store loaded from the
+ * source file, and that a snapshot which can't be used leaves the store empty
+ * so that the source file can be loaded instead.
+ * @author Jeff Thompson, jeff@thefirst.org
+ */
+public class StoreSnapshotTest {
+  @Rule
+  public TemporaryFolder folder_ = new TemporaryFolder();
+
+  @Before
+  public void
+  setUp() throws IOException
+  {
+    schemeFile_ = folder_.newFile("test.scm");
+    try (PrintWriter writer = new PrintWriter(schemeFile_, "UTF-8")) {
+      for (int i = 0; i < 500; ++i) {
+        writer.println("(instanceOf Q" + i + " Q" + (i % 7) + ")");
+        writer.println("(P31 Q" + i + " (f Q" + (i % 3) + " " + (i - 250) + "))");
+        writer.println("(population Q" + i + " " + (i * 1000) + ")");
+        writer.println("(subAttrOf E" + i + " (TimeIntervalFn " +
+          (1500000000000L + i * 3600000L) + " " +
+          (1500000000000L + i * 3600000L + (i % 5) * 86400000L) + "))");
+        writer.println
+          ("(description Q" + i + " \"Item \\\"" + i + "\\\" \\u00e9\")");
+      }
+      writer.println("(subAttrOf E0 E1)");
+    }
+    sources_ = Collections.singletonList(schemeFile_.getPath());
+    snapshotPath_ = new File(folder_.getRoot(), "test.snapshot").getPath();
+  }
+
+  @Test
+  public void
+  testRoundTrip() throws IOException
+  {
+    NuvlWorldStore expected = loadSchemeFile();
+    expected.saveSnapshot(snapshotPath_, sources_);
+
+    NuvlWorldStore store = new NuvlWorldStore();
+    assertTrue(store.loadSnapshot(snapshotPath_, sources_));
+    assertSameContents(expected, store);
+
+    // The loaded store can still be changed.
+    assertTrue(store.addSentence
+      ("(subAttrOf E1000 (TimeIntervalFn 1500000000000 1500000000001))"));
+    assertFalse(store.addSentence("(instanceOf Q1 Q1)"));
+    assertEquals(1, store.overlapsRange(1500000000000L, 1500000000001L).size() -
+                    expected.overlapsRange(1500000000000L, 1500000000001L).size());
+  }
+
+  @Test
+  public void
+  testMismatchedVersion() throws IOException
+  {
+    loadSchemeFile().saveSnapshot(snapshotPath_, sources_);
+
+    // Change the VERSION after the MAGIC.
+    try (RandomAccessFile file = new RandomAccessFile(snapshotPath_, "rw")) {
+      file.seek(4);
+      int version = file.readInt();
+      file.seek(4);
+      file.writeInt(version + 1);
+    }
+
+    NuvlWorldStore store = new NuvlWorldStore();
+    assertFalse(store.loadSnapshot(snapshotPath_, sources_));
+    assertFallsBackToSchemeFile(store);
+  }
+
+  @Test
+  public void
+  testStaleSource() throws IOException
+  {
+    loadSchemeFile().saveSnapshot(snapshotPath_, sources_);
+    assertTrue(schemeFile_.setLastModified(schemeFile_.lastModified() - 10000));
+
+    NuvlWorldStore store = new NuvlWorldStore();
+    assertFalse(store.loadSnapshot(snapshotPath_, sources_));
+    assertFallsBackToSchemeFile(store);
+  }
+
+  @Test
+  public void
+  testTruncatedFile() throws IOException
+  {
+    loadSchemeFile().saveSnapshot(snapshotPath_, sources_);
+    long length = new File(snapshotPath_).length();
+
+    // Truncate in the header, in the middle and just before the end.
+    for (long newLength : new long[] { 6, 40, length / 2, length - 1 }) {
+      try (RandomAccessFile file = new RandomAccessFile(snapshotPath_, "rw")) {
+        file.setLength(newLength);
+      }
+
+      NuvlWorldStore store = new NuvlWorldStore();
+      try {
+        assertFalse(store.loadSnapshot(snapshotPath_, sources_));
+      } catch (IOException ex) {
+        // Expected for a truncated section.
+      }
+      assertFallsBackToSchemeFile(store);
+    }
+  }
+
+  @Test
+  public void
+  testCorruptedIds() throws IOException
+  {
+    loadSchemeFile().saveSnapshot(snapshotPath_, sources_);
+    SectionPositions positions = new SectionPositions(snapshotPath_);
+
+    // A term ID in a triple, a triple number in the predicate index, an index
+    // key and an entry of the triple hash table.
+    checkCorruptedInt
+      (positions.triples + 4 * 1, positions.nTerms + 5);
+    checkCorruptedInt
+      (positions.triples + 4 * 5, ~positions.nTerms);
+    checkCorruptedInt
+      (positions.predicateTripleNumbers + 4 * 3, positions.nTriples);
+    checkCorruptedInt(positions.predicateTripleNumbers, -1);
+    checkCorruptedInt(positions.predicateKeys, positions.nTerms);
+    checkCorruptedInt(positions.tripleTable, positions.nTriples + 1);
+  }
+
+  @Test
+  public void
+  testMissingFile() throws IOException
+  {
+    NuvlWorldStore store = new NuvlWorldStore();
+    assertFalse(store.loadSnapshot(snapshotPath_, sources_));
+    assertFallsBackToSchemeFile(store);
+  }
+
+  /**
+   * Replace the int at the position in a fresh copy of the snapshot, then
+   * check that loadSnapshot throws an IOException and doesn't change the
+   * store.
+   */
+  private void
+  checkCorruptedInt(long position, int value) throws IOException
+  {
+    loadSchemeFile().saveSnapshot(snapshotPath_, sources_);
+    try (RandomAccessFile file = new RandomAccessFile(snapshotPath_, "rw")) {
+      file.seek(position);
+      file.writeInt(value);
+    }
+
+    NuvlWorldStore store = new NuvlWorldStore();
+    store.addSecondaryIndex("P31", 3);
+    try {
+      store.loadSnapshot(snapshotPath_, sources_);
+      fail("Expected an IOException for " + value + " at " + position);
+    } catch (IOException ex) {
+      // Expected.
+    }
+    assertEquals(0, store.getTerms().size());
+    assertFallsBackToSchemeFile(store);
+  }
+
+  private NuvlWorldStore
+  loadSchemeFile() throws IOException
+  {
+    NuvlWorldStore store = new NuvlWorldStore();
+    store.loadSchemeFile(schemeFile_.getPath());
+    return store;
+  }
+
+  /**
+   * Check that the store was not changed by a failed loadSnapshot, then load
+   * the Scheme file into it the same as NuvlWorldApp does and check it.
+   */
+  private void
+  assertFallsBackToSchemeFile(NuvlWorldStore store) throws IOException
+  {
+    assertTrue(store.getSentencesByPredicate("instanceOf").isEmpty());
+    assertTrue(store.overlapsRange(Long.MIN_VALUE, Long.MAX_VALUE).isEmpty());
+    assertEquals(0, store.descriptions_.size());
+
+    store.loadSchemeFile(schemeFile_.getPath());
+    assertSameContents(loadSchemeFile(), store);
+  }
+
+  private static void
+  assertSameContents(NuvlWorldStore expected, NuvlWorldStore store)
+  {
+    for (String predicate : PREDICATES)
+      assertEquals
+        (predicate, symbols(expected.getSentencesByPredicate(predicate)),
+         symbols(store.getSentencesByPredicate(predicate)));
+
+    for (int i = 0; i < 500; ++i) {
+      String arg2 = "Q" + i;
+      assertEquals
+        (arg2, symbols(expected.getSentencesByArg2(arg2)),
+         symbols(store.getSentencesByArg2(arg2)));
+      assertEquals
+        (expected.descriptions_.get(arg2), store.descriptions_.get(arg2));
+    }
+    assertEquals
+      (symbols(expected.getSentencesByArg2("E0")),
+       symbols(store.getSentencesByArg2("E0")));
+    assertEquals(expected.descriptions_.size(), store.descriptions_.size());
+
+    assertEquals
+      (intervals(expected.overlapsRange(Long.MIN_VALUE, Long.MAX_VALUE)),
+       intervals(store.overlapsRange(Long.MIN_VALUE, Long.MAX_VALUE)));
+    long begin = 1500000000000L + 100 * 3600000L;
+    long end = begin + 2 * 86400000L;
+    assertEquals
+      (intervals(expected.overlapsRange(begin, end)),
+       intervals(store.overlapsRange(begin, end)));
+  }
+
+  private static List<String>
+  symbols(Iterable<Sentence> sentences)
+  {
+    ArrayList<String> result = new ArrayList<>();
+    for (Sentence sentence : sentences)
+      result.add(sentence.symbol());
+    Collections.sort(result);
+    return result;
+  }
+
+  private static List<String>
+  intervals(List<EventTimeInterval> timeIntervals)
+  {
+    ArrayList<String> result = new ArrayList<>();
+    for (EventTimeInterval timeInterval : timeIntervals)
+      result.add(timeInterval.event + " " + timeInterval.startUtcMillis + " " +
+                 timeInterval.endUtcMillis);
+    Collections.sort(result);
+    return result;
+  }
+
+  /**
+   * SectionPositions reads the snapshot header and the section sizes to find
+   * the file position of some sections, as described in StoreSnapshot.
+   */
+  private static class SectionPositions {
+    public SectionPositions(String snapshotPath) throws IOException
+    {
+      try (RandomAccessFile file = new RandomAccessFile(snapshotPath, "r")) {
+        file.seek(8);
+        int nSources = file.readInt();
+        for (int i = 0; i < nSources; ++i) {
+          int nBytes = file.readInt();
+          file.seek(file.getFilePointer() + padded(nBytes) + 16);
+        }
+
+        nTerms = file.readInt();
+        file.seek(file.getFilePointer() + 4L * nTerms);
+        int nTermBytes = file.readInt();
+        file.seek(file.getFilePointer() + padded(nTermBytes));
+        int termTableSize = file.readInt();
+        file.seek(file.getFilePointer() + 4L * termTableSize);
+
+        nTriples = file.readInt();
+        triples = file.getFilePointer();
+        file.seek(triples + 12L * nTriples);
+        int tripleTableSize = file.readInt();
+        tripleTable = file.getFilePointer();
+        file.seek(tripleTable + 4L * tripleTableSize);
+
+        int nKeys = file.readInt();
+        predicateKeys = file.getFilePointer();
+        predicateTripleNumbers = predicateKeys + 4L * nKeys + 4L * (nKeys + 1);
+      }
+    }
+
+    private static long
+    padded(int nBytes) { return (nBytes + 3) & ~3; }
+
+    public final int nTerms;
+    public final int nTriples;
+    public final long triples;
+    public final long tripleTable;
+    public final long predicateKeys;
+    public final long predicateTripleNumbers;
+  }
+
+  private static final String[] PREDICATES =
+    { "instanceOf", "P31", "population", "subAttrOf", "description" };
+  private File schemeFile_;
+  private List<String> sources_;
+  private String snapshotPath_;
+}
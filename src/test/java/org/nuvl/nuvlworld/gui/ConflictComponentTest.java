@@ -0,0 +1,300 @@
+/*
+Copyright (C) 2017 Jeff Thompson
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package org.nuvl.nuvlworld.gui;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import org.junit.Test;
+import org.nuvl.argue.NuvlFramework;
+import org.nuvl.argue.aba_plus.Rule;
+import org.nuvl.argue.aba_plus.Sentence;
+import org.nuvl.nuvlworld.gui.ConflictComponent.Implication;
+import scala.collection.JavaConversions;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Check that solving each ConflictComponent as its own framework gives the
+ * same grounded attrs and preferred extensions as one NuvlFramework of all the
+ * assumptions, and that deducing a scenario from the grounded closure gives
+ * the same closure as deducing from the whole extension.
+ * @author Jeff Thompson, jeff@thefirst.org
+ */
+public class ConflictComponentTest {
+  @Test
+  public void
+  testRandomFrameworks()
+  {
+    Random random = new Random(2017);
+    int nConflicted = 0;
+    for (int i = 0; i < 300; ++i) {
+      if (checkFramework(random))
+        ++nConflicted;
+    }
+
+    // Make sure that most frameworks have conflicts to check.
+    assertTrue("Too few conflicted frameworks: " + nConflicted,
+               nConflicted > 150);
+  }
+
+  @Test
+  public void
+  testPartition()
+  {
+    ArrayList<String> assumptions = new ArrayList<>();
+    ArrayList<Implication> implications = new ArrayList<>();
+    addTask("(task C)", "(attr C)", assumptions, implications);
+    addTask("(task A)", "(attr A)", assumptions, implications);
+    addTask("(task B)", "(attr B)", assumptions, implications);
+    addTask("(task D)", "(attr D)", assumptions, implications);
+    // A attacks B through a deduced attr. C and D don't attack.
+    implications.add(new Implication("(attr A)", "(attr A2)", false));
+    implications.add(new Implication("(attr A2)", "(attr B)", true));
+
+    List<ConflictComponent> components = ConflictComponent.partition
+      (assumptions, implications);
+    assertEquals(2, components.size());
+    assertFalse(components.get(0).isConflicted());
+    assertEquals
+      (list("(task C)", "(task D)"), components.get(0).getAssumptions());
+    assertTrue(components.get(1).isConflicted());
+    assertEquals
+      (list("(task A)", "(task B)"), components.get(1).getAssumptions());
+    assertEquals(4, components.get(1).getImplications().size());
+
+    Set<String> known = components.get(1).deduce
+      (list("(task B)"), Collections.<String>emptySet());
+    assertEquals(new HashSet<>(list("(task B)", "(attr B)")), known);
+    // A contrary is not deduced, and the known symbols are not repeated.
+    assertEquals
+      (new HashSet<>(list("(task A)", "(attr A)", "(attr A2)")),
+       components.get(1).deduce(list("(task A)", "(task B)"), known));
+  }
+
+  /**
+   * Make a random framework and check the components against one framework.
+   * @return True if the framework has a conflicted component.
+   */
+  private static boolean
+  checkFramework(Random random)
+  {
+    ArrayList<String> assumptions = new ArrayList<>();
+    ArrayList<Implication> implications = new ArrayList<>();
+    int nTasks = 2 + random.nextInt(8);
+    int nAttrs = 4 + random.nextInt(4);
+    for (int i = 0; i < nTasks; ++i) {
+      String task = "(task T" + i + ")";
+      assumptions.add(task);
+      // The same as computeScenarios makes from an implies sentence.
+      implications.add(new Implication(task, "(attr T" + i + ")", false));
+      implications.add(new Implication
+        (task, "(attr A" + random.nextInt(nAttrs) + ")", false));
+    }
+    for (int i = random.nextInt(3); i > 0; --i)
+      implications.add(new Implication
+        ("(attr A" + random.nextInt(nAttrs) + ")",
+         "(attr A" + random.nextInt(nAttrs) + ")", false));
+    for (int i = random.nextInt(4); i > 0; --i)
+      implications.add(new Implication
+        (randomAttr(random, nTasks, nAttrs), randomAttr(random, nTasks, nAttrs),
+         true));
+
+    // Solve all the assumptions as one framework.
+    NuvlFramework framework = makeFramework(assumptions, implications);
+    Set<String> expectedGroundedAttrs = getAttrs
+      (framework.aba().generate_all_deductions(framework.groundedExtension()));
+    Set<Set<String>> expectedExtensions = new HashSet<>();
+    Set<Set<String>> expectedExtensionAttrs = new HashSet<>();
+    for (scala.collection.immutable.Set<Sentence> extension :
+         JavaConversions.asJavaCollection(framework.preferredExtensions())) {
+      expectedExtensions.add(symbols(JavaConversions.asJavaCollection(extension)));
+      expectedExtensionAttrs.add(getAttrs
+        (framework.aba().generate_all_deductions(extension)));
+    }
+
+    // Solve each component and combine the scenarios.
+    List<ConflictComponent> components = ConflictComponent.partition
+      (assumptions, implications);
+    Set<String> groundedAttrs = new HashSet<>();
+    HashSet<String> allAssumptions = new HashSet<>();
+    List<Set<String>> extensions = list(Collections.<String>emptySet());
+    List<Set<String>> extensionAttrs = list(Collections.<String>emptySet());
+    boolean hasConflicted = false;
+    for (int i = 0; i < components.size(); ++i) {
+      ConflictComponent component = components.get(i);
+      if (!component.isConflicted())
+        // The unconflicted component is first.
+        assertEquals(0, i);
+      for (String assumption : component.getAssumptions())
+        assertTrue(allAssumptions.add(assumption));
+
+      if (!component.isConflicted()) {
+        // The same as solveComponent. It is one scenario of all assumptions.
+        Set<String> closure = component.deduce
+          (component.getAssumptions(), Collections.<String>emptySet());
+        groundedAttrs.addAll(getAttrs(closure));
+        extensions = product
+          (extensions, list(new HashSet<>(component.getAssumptions())));
+        extensionAttrs = product(extensionAttrs, list(getAttrs(closure)));
+        continue;
+      }
+
+      hasConflicted = true;
+      NuvlFramework componentFramework = makeFramework
+        (component.getAssumptions(), component.getImplications());
+      Set<String> grounded = symbols(JavaConversions.asJavaCollection
+        (componentFramework.groundedExtension()));
+      Set<String> groundedClosure = component.deduce
+        (grounded, Collections.<String>emptySet());
+      groundedAttrs.addAll(getAttrs(groundedClosure));
+
+      List<Set<String>> componentExtensions = new ArrayList<>();
+      List<Set<String>> componentAttrs = new ArrayList<>();
+      for (scala.collection.immutable.Set<Sentence> extensionScala :
+           JavaConversions.asJavaCollection
+             (componentFramework.preferredExtensions())) {
+        Set<String> extension = symbols
+          (JavaConversions.asJavaCollection(extensionScala));
+        assertTrue(extension.containsAll(grounded));
+
+        // The same as Scenario, which only deduces from the added assumptions.
+        HashSet<String> conflicting = new HashSet<>(extension);
+        conflicting.removeAll(grounded);
+        Set<String> closure = component.deduce(conflicting, groundedClosure);
+        for (String symbol : closure)
+          assertFalse(groundedClosure.contains(symbol));
+        closure.addAll(groundedClosure);
+
+        Set<String> fullClosure = component.deduce
+          (extension, Collections.<String>emptySet());
+        assertEquals(fullClosure, closure);
+        assertEquals
+          (symbols(JavaConversions.asJavaCollection
+             (framework.aba().generate_all_deductions(extensionScala))),
+           fullClosure);
+
+        componentExtensions.add(extension);
+        componentAttrs.add(getAttrs(closure));
+      }
+      extensions = product(extensions, componentExtensions);
+      extensionAttrs = product(extensionAttrs, componentAttrs);
+    }
+
+    assertEquals(new HashSet<>(assumptions), allAssumptions);
+    assertEquals(expectedGroundedAttrs, groundedAttrs);
+    // The preferred extensions are the product of the components.
+    assertEquals(expectedExtensions.size(), extensions.size());
+    assertEquals(expectedExtensions, new HashSet<>(extensions));
+    assertEquals(expectedExtensionAttrs, new HashSet<>(extensionAttrs));
+    return hasConflicted;
+  }
+
+  private static NuvlFramework
+  makeFramework
+    (Collection<String> assumptionSymbols, Collection<Implication> implications)
+  {
+    HashSet<Sentence> assumptions = new HashSet<>();
+    for (String assumption : assumptionSymbols)
+      assumptions.add(new Sentence(assumption));
+    HashSet<Rule> rules = new HashSet<>();
+    for (Implication implication : implications)
+      rules.add(new Rule
+        (new Sentence(implication.antecedent),
+         new Sentence(implication.consequent, implication.isContrary)));
+    return new NuvlFramework(assumptions, rules);
+  }
+
+  /**
+   * Make the union of each set in sets with each set in other.
+   */
+  private static List<Set<String>>
+  product(List<Set<String>> sets, List<Set<String>> other)
+  {
+    ArrayList<Set<String>> result = new ArrayList<>();
+    for (Set<String> set : sets) {
+      for (Set<String> otherSet : other) {
+        HashSet<String> union = new HashSet<>(set);
+        union.addAll(otherSet);
+        result.add(union);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Get the symbols of the sentences which are not contraries.
+   */
+  private static Set<String>
+  symbols(Collection<Sentence> sentences)
+  {
+    HashSet<String> result = new HashSet<>();
+    for (Sentence sentence : sentences) {
+      if (!sentence.is_contrary())
+        result.add(sentence.symbol());
+    }
+    return result;
+  }
+
+  private static Set<String>
+  getAttrs(scala.collection.immutable.Set<Sentence> sentences)
+  {
+    return getAttrs(symbols(JavaConversions.asJavaCollection(sentences)));
+  }
+
+  private static Set<String>
+  getAttrs(Collection<String> symbols)
+  {
+    HashSet<String> result = new HashSet<>();
+    for (String symbol : symbols) {
+      if (symbol.startsWith("(attr "))
+        result.add(symbol.substring(6, symbol.length() - 1));
+    }
+    return result;
+  }
+
+  private static String
+  randomAttr(Random random, int nTasks, int nAttrs)
+  {
+    return random.nextBoolean() ?
+      "(attr T" + random.nextInt(nTasks) + ")" :
+      "(attr A" + random.nextInt(nAttrs) + ")";
+  }
+
+  private static void
+  addTask
+    (String task, String attr, List<String> assumptions,
+     List<Implication> implications)
+  {
+    assumptions.add(task);
+    implications.add(new Implication(task, attr, false));
+  }
+
+  @SafeVarargs
+  private static <T> List<T>
+  list(T... values)
+  {
+    ArrayList<T> result = new ArrayList<>();
+    Collections.addAll(result, values);
+    return result;
+  }
+}